@@ -0,0 +1,107 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.json;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of reading and writing JSON text with a JsonConvertor, for export
+ * batches of different sizes, indented and compact. The concurrent 
+ * benchmarks share one convertor between eight threads, as a building
+ * block's request threads would.
+ *
+ * @author jon
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class JsonConvertorBenchmark
+{
+  @Param( { "PRETTY", "COMPACT" } )
+  public JsonConvertor.Profile profile;
+  
+  @Param( { "1", "100", "10000" } )
+  public int records;
+  
+  JsonConvertor<JsonFormatBenchmark.ExportBatch> convertor;
+  JsonFormatBenchmark.ExportBatch batch;
+  String json;
+  byte[] bytes;
+  
+  @Setup( Level.Trial )
+  public void setup() throws Exception
+  {
+    convertor = new JsonConvertor<>( JsonFormatBenchmark.ExportBatch.class, profile );
+    batch = JsonFormatBenchmark.ExportBatch.make( records, new Random( 42L ) );
+    json = convertor.write( batch );
+    bytes = convertor.writeBytes( batch );
+  }
+  
+  @Benchmark
+  public String write() throws Exception
+  {
+    return convertor.write( batch );
+  }
+  
+  @Benchmark
+  public JsonFormatBenchmark.ExportBatch read() throws Exception
+  {
+    return convertor.read( json );
+  }
+  
+  @Benchmark
+  public byte[] writeBytes() throws Exception
+  {
+    return convertor.writeBytes( batch );
+  }
+  
+  @Benchmark
+  public JsonFormatBenchmark.ExportBatch readBytes() throws Exception
+  {
+    return convertor.read( bytes );
+  }
+  
+  @Benchmark
+  @Threads( 8 )
+  public String concurrentWrite() throws Exception
+  {
+    return convertor.write( batch );
+  }
+  
+  @Benchmark
+  @Threads( 8 )
+  public JsonFormatBenchmark.ExportBatch concurrentRead() throws Exception
+  {
+    return convertor.read( json );
+  }
+}
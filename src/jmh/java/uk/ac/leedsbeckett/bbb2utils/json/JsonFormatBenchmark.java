@@ -0,0 +1,149 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.json;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares JSON, Smile and CBOR for a batch of records shaped like the
+ * gradebook exports sent between servers. Setup checks that each format
+ * reads back what it wrote. The encoded size, which is part of the 
+ * comparison, is reported alongside the scores as the encodedbytes 
+ * secondary result.
+ *
+ * @author jon
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class JsonFormatBenchmark
+{
+  @Param( { "JSON", "SMILE", "CBOR" } )
+  public JsonConvertor.Format format;
+  
+  @Param( { "1", "1000" } )
+  public int records;
+  
+  JsonConvertor<ExportBatch> convertor;
+  ExportBatch batch;
+  byte[] encoded;
+  
+  @Setup( Level.Trial )
+  public void setup() throws Exception
+  {
+    convertor = new JsonConvertor<>( ExportBatch.class, JsonConvertor.Profile.COMPACT, format );
+    batch = ExportBatch.make( records, new Random( 42L ) );
+    encoded = convertor.writeBytes( batch );
+    byte[] again = convertor.writeBytes( convertor.read( encoded ) );
+    if ( !Arrays.equals( encoded, again ) )
+      throw new IllegalStateException( format + " did not read back what it wrote." );
+  }
+  
+  @Benchmark
+  public byte[] write( Size size ) throws Exception
+  {
+    byte[] b = convertor.writeBytes( batch );
+    size.encodedbytes = b.length;
+    return b;
+  }
+  
+  @Benchmark
+  public ExportBatch read( Size size ) throws Exception
+  {
+    size.encodedbytes = encoded.length;
+    return convertor.read( encoded );
+  }
+  
+  /**
+   * Reports the encoded size of the batch with each iteration's result.
+   * JMH clears it before each iteration, so the benchmarks set it, rather
+   * than add to it, and it is the same for every iteration.
+   */
+  @State( Scope.Thread )
+  @AuxCounters( AuxCounters.Type.EVENTS )
+  public static class Size
+  {
+    public long encodedbytes;
+  }
+  
+  /**
+   * A page of grade records.
+   */
+  public static class ExportBatch
+  {
+    public String courseid;
+    public long exported;
+    public List<ExportRecord> records = new ArrayList<>();
+    
+    static ExportBatch make( int n, Random random )
+    {
+      ExportBatch b = new ExportBatch();
+      b.courseid = "_" + random.nextInt( 100000 ) + "_1";
+      b.exported = 1700000000000L + random.nextInt( 1000000 );
+      for ( int i=0; i<n; i++ )
+      {
+        ExportRecord r = new ExportRecord();
+        r.userid = "_" + random.nextInt( 1000000 ) + "_1";
+        r.username = "user" + random.nextInt( 100000 );
+        r.itemname = "Assessment " + ( i % 12 + 1 );
+        r.score = Math.round( random.nextDouble() * 1000.0 ) / 10.0;
+        r.possible = 100.0;
+        r.attempts = 1 + random.nextInt( 3 );
+        r.submitted = b.exported - random.nextInt( 100000000 );
+        r.late = random.nextInt( 10 ) == 0;
+        r.feedback = random.nextInt( 4 ) == 0 ? null : "Good work on section " + random.nextInt( 10 ) + ".";
+        b.records.add( r );
+      }
+      return b;
+    }
+  }
+  
+  /**
+   * One user's grade for one item.
+   */
+  public static class ExportRecord
+  {
+    public String userid;
+    public String username;
+    public String itemname;
+    public double score;
+    public double possible;
+    public int attempts;
+    public long submitted;
+    public boolean late;
+    public String feedback;
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How long it takes for a new cluster of coordinators to all know about
+ * each other and how long it takes for the survivors to notice that a 
+ * peer has died. Each measurement is a single shot against a fresh broker
+ * and cluster. Discovery time includes the coordinator's start up delay.
+ *
+ * @author jon
+ */
+@BenchmarkMode( Mode.SingleShotTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 2 )
+@Measurement( iterations = 10 )
+@Fork( 1 )
+public class CoordinatorMembershipBenchmark
+{
+  static final long TIMEOUT = 120000L;
+  
+  @State( Scope.Thread )
+  public static class Discovery
+  {
+    @Param( { "2", "4", "8" } )
+    public int peers;
+    EmbeddedCluster cluster;
+    
+    @Setup( Level.Invocation )
+    public void setup() throws Exception
+    {
+      cluster = new EmbeddedCluster();
+      cluster.add( peers );
+    }
+    
+    @TearDown( Level.Invocation )
+    public void tearDown() throws Exception
+    {
+      cluster.close();
+    }
+  }
+  
+  @State( Scope.Thread )
+  public static class Expiry
+  {
+    @Param( { "2", "4", "8" } )
+    public int peers;
+    @Param( { "250", "1000" } )
+    public int heartbeatinterval;
+    EmbeddedCluster cluster;
+    BuildingBlockCoordinator victim;
+    
+    @Setup( Level.Invocation )
+    public void setup() throws Exception
+    {
+      cluster = new EmbeddedCluster();
+      cluster.add( peers );
+      for ( BuildingBlockCoordinator c : cluster.coordinators )
+        c.setHeartbeatInterval( heartbeatinterval );
+      cluster.startAll();
+      cluster.awaitPeerCount( peers, TIMEOUT );
+      // Let the failure detectors learn the heartbeat interval.
+      Thread.sleep( heartbeatinterval * 10L );
+      victim = cluster.coordinators.get( peers - 1 );
+    }
+    
+    @TearDown( Level.Invocation )
+    public void tearDown() throws Exception
+    {
+      cluster.close();
+    }
+  }
+  
+  @Benchmark
+  public void discoveryConvergence( Discovery s ) throws Exception
+  {
+    s.cluster.startAll();
+    s.cluster.awaitPeerCount( s.peers, TIMEOUT );
+  }
+  
+  @Benchmark
+  public void peerExpiry( Expiry s ) throws Exception
+  {
+    s.cluster.crash( s.victim );
+    s.cluster.awaitPeerCount( s.peers - 1, TIMEOUT );
+  }
+}
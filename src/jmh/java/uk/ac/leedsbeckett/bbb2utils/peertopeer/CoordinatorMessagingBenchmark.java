@@ -0,0 +1,125 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import javax.jms.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput and latency of user messages between coordinators sharing an
+ * embedded broker. Throughput is counted in messages delivered to a 
+ * listener, so a broadcast to four peers counts as four. Each invocation
+ * waits for everything it sent to be delivered.
+ *
+ * @author jon
+ */
+@State( Scope.Benchmark )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class CoordinatorMessagingBenchmark
+{
+  static final int BATCH = 100;
+  static final long TIMEOUT = 30000L;
+  
+  @Param( { "2", "4", "8" } )
+  public int peers;
+  
+  EmbeddedCluster cluster;
+  BuildingBlockCoordinator sender;
+  String target;
+  long expected;
+  
+  @Setup( Level.Trial )
+  public void setup() throws Exception
+  {
+    cluster = new EmbeddedCluster();
+    cluster.add( peers );
+    cluster.startAll();
+    cluster.awaitPeerCount( peers, TIMEOUT );
+    sender = cluster.coordinators.get( 0 );
+    target = cluster.coordinators.get( peers - 1 ).serverid;
+    cluster.coordinators.get( peers - 1 ).setRequestHandler( m -> "pong" );
+    expected = cluster.received.get();
+  }
+  
+  @TearDown( Level.Trial )
+  public void tearDown() throws Exception
+  {
+    cluster.close();
+  }
+  
+  @Benchmark
+  @BenchmarkMode( Mode.Throughput )
+  @OutputTimeUnit( TimeUnit.SECONDS )
+  @OperationsPerInvocation( BATCH )
+  public void broadcastThroughput() throws Exception
+  {
+    CompletableFuture<Void> last = null;
+    for ( int i=0; i<BATCH; i++ )
+      last = sender.sendTextMessageToAllAsync( "broadcast" );
+    last.get();
+    expected += (long)BATCH * peers;
+    cluster.awaitReceived( expected, TIMEOUT );
+  }
+  
+  @Benchmark
+  @BenchmarkMode( Mode.Throughput )
+  @OutputTimeUnit( TimeUnit.SECONDS )
+  @OperationsPerInvocation( BATCH )
+  public void pointToPointThroughput() throws Exception
+  {
+    CompletableFuture<Void> last = null;
+    for ( int i=0; i<BATCH; i++ )
+      last = sender.sendTextMessageAsync( "direct", target );
+    last.get();
+    expected += BATCH;
+    cluster.awaitReceived( expected, TIMEOUT );
+  }
+  
+  @Benchmark
+  @BenchmarkMode( Mode.SampleTime )
+  @OutputTimeUnit( TimeUnit.MICROSECONDS )
+  public void broadcastLatency() throws Exception
+  {
+    sender.sendTextMessageToAllAsync( "broadcast" ).get();
+    expected += peers;
+    cluster.awaitReceived( expected, TIMEOUT );
+  }
+  
+  @Benchmark
+  @BenchmarkMode( Mode.SampleTime )
+  @OutputTimeUnit( TimeUnit.MICROSECONDS )
+  public Message requestReplyLatency() throws Exception
+  {
+    return sender.sendRequest( "ping", target, TIMEOUT ).get();
+  }
+}
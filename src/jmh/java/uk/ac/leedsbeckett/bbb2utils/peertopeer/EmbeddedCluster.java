@@ -0,0 +1,205 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import javax.jms.JMSException;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.log4j.Logger;
+
+/**
+ * A number of coordinators running in one JVM and talking through an 
+ * embedded, non-persistent, in-VM ActiveMQ broker. Used by the benchmarks
+ * to measure the coordinator without a Blackboard server.
+ *
+ * @author jon
+ */
+class EmbeddedCluster implements AutoCloseable
+{
+  static final AtomicInteger brokercount = new AtomicInteger();
+  static final Logger logger = Logger.getLogger( EmbeddedCluster.class );
+  
+  final BrokerService broker;
+  final ConnectionSource connections;
+  final List<BuildingBlockCoordinator> coordinators = new ArrayList<>();
+  final AtomicLong received = new AtomicLong();
+  final BuildingBlockMembershipListener membershiplistener = new BuildingBlockMembershipListener()
+  {
+    @Override
+    public void peerJoined( String serverid, long starttime ) { wake(); }
+    @Override
+    public void peerLeft( String serverid ) { wake(); }
+    @Override
+    public void peerTimedOut( String serverid ) { wake(); }
+  };
+  volatile Thread waiter = null;
+
+  EmbeddedCluster() throws Exception
+  {
+    String name = "lbubench" + brokercount.incrementAndGet();
+    broker = new BrokerService();
+    broker.setBrokerName( name );
+    broker.setPersistent( false );
+    broker.setUseJmx( false );
+    broker.setUseShutdownHook( false );
+    broker.start();
+    broker.waitUntilStarted();
+    connections = new ActiveMQConnectionFactorySource( "vm://" + name + "?create=false" );
+  }
+  
+  /**
+   * Makes a coordinator, not yet started, whose listener counts the user
+   * messages it gets.
+   * 
+   * @param serverid The server ID of the new coordinator.
+   * @return The coordinator.
+   * @throws JMSException 
+   */
+  BuildingBlockCoordinator add( String serverid ) throws JMSException
+  {
+    BuildingBlockCoordinator c = new BuildingBlockCoordinator( 
+            "bench", "coordinator", serverid, m -> { received.incrementAndGet(); wake(); }, logger, connections );
+    c.addMembershipListener( membershiplistener );
+    coordinators.add( c );
+    return c;
+  }
+  
+  /**
+   * Makes a number of coordinators called server0, server1 and so on.
+   */
+  void add( int n ) throws JMSException
+  {
+    for ( int i=0; i<n; i++ )
+      add( "server" + coordinators.size() );
+  }
+  
+  void startAll()
+  {
+    for ( BuildingBlockCoordinator c : coordinators )
+      c.start();
+  }
+  
+  /**
+   * Waits until every running coordinator knows about exactly the given
+   * number of peers, itself included.
+   * 
+   * @param n The number of peers.
+   * @param timeout Milliseconds to wait.
+   * @throws TimeoutException If that didn't happen in time.
+   */
+  void awaitPeerCount( int n, long timeout ) throws TimeoutException
+  {
+    waiter = Thread.currentThread();
+    try
+    {
+      long deadline = System.nanoTime() + timeout * 1000000L;
+      while ( !hasPeerCount( n ) )
+        if ( !park( deadline ) )
+          throw new TimeoutException( "Peers did not reach " + n );
+    }
+    finally
+    {
+      waiter = null;
+    }
+  }
+  
+  boolean hasPeerCount( int n )
+  {
+    for ( BuildingBlockCoordinator c : coordinators )
+      if ( c.started && !c.failed && c.getPeerNames().size() != n )
+        return false;
+    return true;
+  }
+  
+  /**
+   * Waits until the listeners have counted at least the given number of 
+   * user messages in total.
+   * 
+   * @param n The total.
+   * @param timeout Milliseconds to wait.
+   * @throws TimeoutException If the messages didn't arrive in time.
+   */
+  void awaitReceived( long n, long timeout ) throws TimeoutException
+  {
+    waiter = Thread.currentThread();
+    try
+    {
+      long deadline = System.nanoTime() + timeout * 1000000L;
+      while ( received.get() < n )
+        if ( !park( deadline ) )
+          throw new TimeoutException( "Only " + received.get() + " of " + n + " messages received." );
+    }
+    finally
+    {
+      waiter = null;
+    }
+  }
+  
+  /**
+   * Parks the waiting thread until a listener wakes it or the deadline
+   * passes. Parking instead of spinning leaves the CPU to the coordinators
+   * and the broker, which matters when there are fewer cores than threads.
+   * 
+   * @return False if the deadline has passed.
+   */
+  static boolean park( long deadline )
+  {
+    long remaining = deadline - System.nanoTime();
+    if ( remaining <= 0L )
+      return false;
+    LockSupport.parkNanos( remaining );
+    return true;
+  }
+  
+  /**
+   * Called by the listeners whenever something the benchmark thread may be
+   * waiting for has happened. The waiter checks again when it wakes.
+   */
+  void wake()
+  {
+    Thread t = waiter;
+    if ( t != null )
+      LockSupport.unpark( t );
+  }
+  
+  /**
+   * Stops a coordinator as if its server had died, so it does not tell its
+   * peers that it is stopping and they must notice it has gone by itself.
+   * 
+   * @param c The coordinator.
+   * @throws JMSException 
+   */
+  void crash( BuildingBlockCoordinator c ) throws JMSException
+  {
+    c.failed = true;
+    c.destroy();
+  }
+
+  @Override
+  public void close() throws Exception
+  {
+    for ( BuildingBlockCoordinator c : coordinators )
+      c.destroy();
+    coordinators.clear();
+    broker.stop();
+    broker.waitUntilStopped();
+  }
+}
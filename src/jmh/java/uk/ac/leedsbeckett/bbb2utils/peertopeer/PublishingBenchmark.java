@@ -0,0 +1,112 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import javax.jms.JMSException;
+import javax.jms.TextMessage;
+import javax.jms.TopicPublisher;
+import org.apache.activemq.ActiveMQConnection;
+import org.apache.activemq.ActiveMQTopicSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of publishing one message the way the coordinator used to, 
+ * with a new session and publisher for every message on a pooled
+ * connection, against publishing through a PublishingChannel that keeps
+ * them open. Both publish to the same topic on an embedded broker with no
+ * subscribers, so only the sending side is measured. Over the in-VM
+ * transport creating a session is much cheaper than over TCP to a real
+ * broker, so the difference here is a lower bound.
+ *
+ * @author jon
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class PublishingBenchmark
+{
+  EmbeddedCluster cluster;
+  BuildingBlockCoordinator coordinator;
+  ActiveMQConnection connection;
+  PublishingChannel channel;
+  Properties properties;
+  
+  @Setup( Level.Trial )
+  public void setup() throws Exception
+  {
+    cluster = new EmbeddedCluster();
+    coordinator = cluster.add( "server0" );
+    connection = cluster.connections.getConnection();
+    channel = new PublishingChannel( cluster.connections, coordinator.metrics, coordinator.topic, 1 );
+    properties = coordinator.userMessageProperties( "*" );
+  }
+  
+  @TearDown( Level.Trial )
+  public void tearDown() throws Exception
+  {
+    channel.close();
+    cluster.connections.releaseConnection( connection );
+    cluster.close();
+  }
+  
+  /**
+   * What sendMessage did before sessions were reused.
+   */
+  @Benchmark
+  public void sessionPerMessage() throws JMSException
+  {
+    ActiveMQTopicSession session = null;
+    TopicPublisher publisher = null;
+    try
+    {
+      session = (ActiveMQTopicSession) connection.createTopicSession( false, 1 );
+      publisher = session.createPublisher( session.createTopic( coordinator.topic ) );
+      TextMessage message = session.createTextMessage( "message" );
+      for ( String key : properties.stringPropertyNames() )
+        message.setStringProperty( key, properties.getProperty( key ) );
+      publisher.publish( message );
+    }
+    finally
+    {
+      if ( publisher != null )
+        publisher.close();
+      if ( session != null )
+        session.close();
+    }
+  }
+  
+  @Benchmark
+  public void reusedChannel() throws Exception
+  {
+    channel.publish( "message", properties );
+  }
+}
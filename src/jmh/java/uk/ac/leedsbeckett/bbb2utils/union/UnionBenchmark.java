@@ -0,0 +1,192 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.union;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of setting and getting the value of a Union with different numbers
+ * of members. Each thread has its own union, as each message would, but 
+ * they all share the static map of member fields, which is what the 
+ * concurrent benchmarks load.
+ *
+ * @author jon
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class UnionBenchmark
+{
+  @Param( { "2", "8", "32" } )
+  public int members;
+  
+  Union<Member> union;
+  Member[] values;
+  int next = 0;
+  
+  @Setup( Level.Trial )
+  public void setup() throws Exception
+  {
+    switch ( members )
+    {
+      case 2:  union = new Union2();  break;
+      case 8:  union = new Union8();  break;
+      default: union = new Union32(); break;
+    }
+    values = new Member[ members ];
+    for ( int i=0; i<members; i++ )
+      values[i] = (Member)Class.forName( UnionBenchmark.class.getName() + "$M" + i ).getDeclaredConstructor().newInstance();
+    union.set( values[ members - 1 ] );
+  }
+  
+  @Benchmark
+  public Union<Member> set()
+  {
+    union.set( values[ next++ % members ] );
+    return union;
+  }
+  
+  @Benchmark
+  public Member get()
+  {
+    return union.get();
+  }
+  
+  @Benchmark
+  public Member getByClass()
+  {
+    return union.get( Member.class );
+  }
+  
+  @Benchmark
+  @Threads( 8 )
+  public Union<Member> concurrentSet()
+  {
+    union.set( values[ next++ % members ] );
+    return union;
+  }
+  
+  @Benchmark
+  @Threads( 8 )
+  public Member concurrentGet()
+  {
+    return union.get( Member.class );
+  }
+  
+  public static class Member {}
+  public static class M0 extends Member {}
+  public static class M1 extends Member {}
+  public static class M2 extends Member {}
+  public static class M3 extends Member {}
+  public static class M4 extends Member {}
+  public static class M5 extends Member {}
+  public static class M6 extends Member {}
+  public static class M7 extends Member {}
+  public static class M8 extends Member {}
+  public static class M9 extends Member {}
+  public static class M10 extends Member {}
+  public static class M11 extends Member {}
+  public static class M12 extends Member {}
+  public static class M13 extends Member {}
+  public static class M14 extends Member {}
+  public static class M15 extends Member {}
+  public static class M16 extends Member {}
+  public static class M17 extends Member {}
+  public static class M18 extends Member {}
+  public static class M19 extends Member {}
+  public static class M20 extends Member {}
+  public static class M21 extends Member {}
+  public static class M22 extends Member {}
+  public static class M23 extends Member {}
+  public static class M24 extends Member {}
+  public static class M25 extends Member {}
+  public static class M26 extends Member {}
+  public static class M27 extends Member {}
+  public static class M28 extends Member {}
+  public static class M29 extends Member {}
+  public static class M30 extends Member {}
+  public static class M31 extends Member {}
+  
+  public static class Union2 extends Union<Member>
+  {
+    @UnionMember public M0 m0;
+    @UnionMember public M1 m1;
+  }
+  
+  public static class Union8 extends Union<Member>
+  {
+    @UnionMember public M0 m0;
+    @UnionMember public M1 m1;
+    @UnionMember public M2 m2;
+    @UnionMember public M3 m3;
+    @UnionMember public M4 m4;
+    @UnionMember public M5 m5;
+    @UnionMember public M6 m6;
+    @UnionMember public M7 m7;
+  }
+  
+  public static class Union32 extends Union<Member>
+  {
+    @UnionMember public M0 m0;
+    @UnionMember public M1 m1;
+    @UnionMember public M2 m2;
+    @UnionMember public M3 m3;
+    @UnionMember public M4 m4;
+    @UnionMember public M5 m5;
+    @UnionMember public M6 m6;
+    @UnionMember public M7 m7;
+    @UnionMember public M8 m8;
+    @UnionMember public M9 m9;
+    @UnionMember public M10 m10;
+    @UnionMember public M11 m11;
+    @UnionMember public M12 m12;
+    @UnionMember public M13 m13;
+    @UnionMember public M14 m14;
+    @UnionMember public M15 m15;
+    @UnionMember public M16 m16;
+    @UnionMember public M17 m17;
+    @UnionMember public M18 m18;
+    @UnionMember public M19 m19;
+    @UnionMember public M20 m20;
+    @UnionMember public M21 m21;
+    @UnionMember public M22 m22;
+    @UnionMember public M23 m23;
+    @UnionMember public M24 m24;
+    @UnionMember public M25 m25;
+    @UnionMember public M26 m26;
+    @UnionMember public M27 m27;
+    @UnionMember public M28 m28;
+    @UnionMember public M29 m29;
+    @UnionMember public M30 m30;
+    @UnionMember public M31 m31;
+  }
+}
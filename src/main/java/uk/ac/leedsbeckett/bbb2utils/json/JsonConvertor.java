@@ -16,49 +16,518 @@
 package uk.ac.leedsbeckett.bbb2utils.json;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SequenceWriter;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedOutputStream;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
+ * Converts one class to and from JSON. Each convertor has a reader and
+ * writer built once from a shared mapper, so they are cheap to use from
+ * many threads. The byte, stream and buffer methods work straight on UTF-8
+ * and use Jackson's recycled buffers without making a String.
+ * 
+ * The same objects can be written in a binary format, Smile or CBOR, which
+ * is smaller and quicker to parse. Binary formats need the matching 
+ * jackson-dataformat library at run time and only work with the byte,
+ * stream and buffer methods, not with strings, readers or writers.
+ * 
+ * Small changes can be sent instead of whole objects. An existing object
+ * can be updated in place from partial JSON or from an RFC 7386 merge 
+ * patch, and diff makes the smallest merge patch between two objects.
  *
  * @author jon
  * @param <T>
  */
 public class JsonConvertor<T>
 {
-  private static final ObjectMapper objectmapper = new ObjectMapper();
-  static
+  /**
+   * How JSON is written. Reading accepts either.
+   */
+  public enum Profile
   {
-    objectmapper.enable( SerializationFeature.INDENT_OUTPUT );
-    objectmapper.disable( SerializationFeature.FAIL_ON_EMPTY_BEANS );
+    /** Indented, for people to read. */
+    PRETTY,
+    /** No extra white space, for sending between servers. */
+    COMPACT
+  }
+  
+  /**
+   * The encoding of the data.
+   */
+  public enum Format
+  {
+    /** Text JSON. */
+    JSON,
+    /** Jackson's binary JSON. */
+    SMILE,
+    /** Concise Binary Object Representation, RFC 8949. */
+    CBOR
+  }
+  
+  private static final ObjectMapper objectmapper = configure( new ObjectMapper() );
+  
+  // The binary mappers are only made when first used so that their 
+  // libraries are not needed by anyone only using JSON.
+  private static class SmileMapper
+  {
+    static final ObjectMapper objectmapper = configure( new ObjectMapper( new SmileFactory() ) );
+  }
+  
+  private static class CBORMapper
+  {
+    static final ObjectMapper objectmapper = configure( new ObjectMapper( new CBORFactory() ) );
+  }
+  
+  private static ObjectMapper configure( ObjectMapper mapper )
+  {
+    mapper.disable( SerializationFeature.FAIL_ON_EMPTY_BEANS );
+    return mapper;
   }
 
   private final Class<T> c;
+  private final Profile profile;
+  private final Format format;
+  private final ObjectMapper mapper;
+  private final ObjectReader reader;
+  private final ObjectWriter writer;
+  private final ObjectWriter treewriter;
+  
   public JsonConvertor( Class<T> c )
+  {
+    this( c, Profile.PRETTY );
+  }
+  
+  public JsonConvertor( Class<T> c, Profile profile )
+  {
+    this( c, profile, Format.JSON );
+  }
+  
+  public JsonConvertor( Class<T> c, Format format )
+  {
+    this( c, Profile.COMPACT, format );
+  }
+  
+  public JsonConvertor( Class<T> c, Profile profile, Format format )
   {
     this.c = c;
+    this.profile = profile;
+    this.format = format;
+    switch ( format )
+    {
+      case SMILE:
+        mapper = SmileMapper.objectmapper;
+        break;
+      case CBOR:
+        mapper = CBORMapper.objectmapper;
+        break;
+      default:
+        mapper = objectmapper;
+    }
+    this.reader = mapper.readerFor( c );
+    this.writer = withProfile( mapper.writerFor( c ) );
+    this.treewriter = withProfile( mapper.writerFor( JsonNode.class ) );
+  }
+  
+  private ObjectWriter withProfile( ObjectWriter w )
+  {
+    return profile == Profile.PRETTY 
+            ? w.with( SerializationFeature.INDENT_OUTPUT ) 
+            : w.without( SerializationFeature.INDENT_OUTPUT );
+  }
+  
+  public Profile getProfile()
+  {
+    return profile;
+  }
+  
+  public Format getFormat()
+  {
+    return format;
+  }
+  
+  private void textOnly()
+  {
+    if ( format != Format.JSON )
+      throw new UnsupportedOperationException( format + " is a binary format and can't be used as text." );
   }
   
   public T read( String json ) throws JsonProcessingException
   {
+    textOnly();
+    // The mapper's method is used for strings because older versions of
+    // the reader's equivalent are declared to throw any IOException.
     return objectmapper.readValue( json, c );
   }
   
   public T read( Reader reader ) throws JsonProcessingException, IOException
   {
-    return objectmapper.readValue( reader, c );
+    textOnly();
+    return this.reader.readValue( reader );
+  }
+  
+  public T read( byte[] json ) throws IOException
+  {
+    return reader.readValue( json );
+  }
+  
+  public T read( byte[] json, int offset, int length ) throws IOException
+  {
+    return reader.readValue( json, offset, length );
+  }
+  
+  public T read( InputStream in ) throws IOException
+  {
+    return reader.readValue( in );
+  }
+  
+  /**
+   * Reads the remaining bytes of a buffer. The buffer's position is not 
+   * changed.
+   * 
+   * @param json A buffer holding JSON.
+   * @return The object.
+   * @throws IOException If the JSON can't be read.
+   */
+  public T read( ByteBuffer json ) throws IOException
+  {
+    if ( json.hasArray() )
+      return reader.readValue( json.array(), json.arrayOffset() + json.position(), json.remaining() );
+    return reader.readValue( new ByteBufferBackedInputStream( json.duplicate() ) );
   }
   
   public String write( T o ) throws JsonProcessingException
   {
-    return objectmapper.writeValueAsString( o );
+    textOnly();
+    return writer.writeValueAsString( o );
   }
   
   public void write( Writer w, T o ) throws JsonProcessingException, IOException
   {
-    objectmapper.writeValue(w, o);
+    textOnly();
+    writer.writeValue( w, o );
+  }
+  
+  public byte[] writeBytes( T o ) throws JsonProcessingException
+  {
+    return writer.writeValueAsBytes( o );
+  }
+  
+  /**
+   * Writes UTF-8 JSON, or the binary format, to a stream and closes it, 
+   * as write( Writer, T ) does.
+   * 
+   * @param out Where to write.
+   * @param o The object.
+   * @throws IOException If the object can't be written.
+   */
+  public void write( OutputStream out, T o ) throws IOException
+  {
+    writer.writeValue( out, o );
+  }
+  
+  /**
+   * Writes UTF-8 JSON, or the binary format, into a buffer, starting at 
+   * its position and moving the position past what was written, so one 
+   * buffer can be reused.
+   * 
+   * @param target The buffer.
+   * @param o The object.
+   * @throws IOException If the object can't be written.
+   * @throws java.nio.BufferOverflowException If the buffer is too small.
+   */
+  public void write( ByteBuffer target, T o ) throws IOException
+  {
+    writer.writeValue( new ByteBufferBackedOutputStream( target ), o );
+  }
+  
+  /**
+   * Reads the elements of a JSON array one at a time, so only one element
+   * is in memory at once. Closing the iterator closes the reader.
+   * 
+   * @param reader Input holding a JSON array.
+   * @return An iterator over the elements.
+   * @throws IOException If the start of the input can't be read.
+   */
+  public MappingIterator<T> readValues( Reader reader ) throws IOException
+  {
+    textOnly();
+    return this.reader.readValues( reader );
+  }
+  
+  /**
+   * Reads the elements of an array one at a time from bytes in the binary
+   * format, or JSON in UTF-8 or another encoding Jackson can detect.
+   * 
+   * @param in Input holding a JSON array.
+   * @return An iterator over the elements.
+   * @throws IOException If the start of the input can't be read.
+   */
+  public MappingIterator<T> readValues( InputStream in ) throws IOException
+  {
+    return reader.readValues( in );
+  }
+  
+  /**
+   * Reads the elements of a JSON array lazily as a stream. Errors part way
+   * through are thrown as unchecked exceptions. Closing the stream closes
+   * the reader.
+   * 
+   * @param reader Input holding a JSON array.
+   * @return A sequential stream of the elements.
+   * @throws IOException If the start of the input can't be read.
+   */
+  public Stream<T> stream( Reader reader ) throws IOException
+  {
+    return stream( readValues( reader ) );
+  }
+  
+  /**
+   * Reads the elements of a JSON array lazily as a stream.
+   * 
+   * @param in Input holding a JSON array.
+   * @return A sequential stream of the elements.
+   * @throws IOException If the start of the input can't be read.
+   */
+  public Stream<T> stream( InputStream in ) throws IOException
+  {
+    return stream( readValues( in ) );
+  }
+  
+  private Stream<T> stream( MappingIterator<T> iterator )
+  {
+    return StreamSupport.stream( 
+            Spliterators.spliteratorUnknownSize( iterator, Spliterator.ORDERED | Spliterator.NONNULL ), false )
+            .onClose( () -> 
+            {
+              try
+              {
+                iterator.close();
+              }
+              catch ( IOException ex )
+              {
+                throw new UncheckedIOException( ex );
+              }
+            });
+  }
+  
+  /**
+   * Starts writing a JSON array whose elements are added one at a time.
+   * Closing the sequence writer ends the array and closes the writer.
+   * 
+   * @param w Where to write the array.
+   * @return A writer for the elements.
+   * @throws IOException If the start of the array can't be written.
+   */
+  public SequenceWriter writeValues( Writer w ) throws IOException
+  {
+    textOnly();
+    return writer.writeValuesAsArray( w );
+  }
+  
+  /**
+   * Starts writing an array in UTF-8 JSON, or the binary format, whose
+   * elements are added one at a time.
+   * 
+   * @param out Where to write the array.
+   * @return A writer for the elements.
+   * @throws IOException If the start of the array can't be written.
+   */
+  public SequenceWriter writeValues( OutputStream out ) throws IOException
+  {
+    return writer.writeValuesAsArray( out );
+  }
+  
+  /**
+   * Updates an existing object from JSON that may hold only some of its
+   * properties. Properties not in the JSON are left alone and nested
+   * objects in the JSON replace the existing ones.
+   * 
+   * @param existing The object to update.
+   * @param json Some or all of the object's properties.
+   * @return The updated object, which is the existing one.
+   * @throws IOException If the JSON can't be read.
+   */
+  public T readInto( T existing, String json ) throws IOException
+  {
+    textOnly();
+    return reader.withValueToUpdate( existing ).readValue( json );
+  }
+  
+  public T readInto( T existing, Reader reader ) throws IOException
+  {
+    textOnly();
+    return this.reader.withValueToUpdate( existing ).readValue( reader );
+  }
+  
+  public T readInto( T existing, byte[] json ) throws IOException
+  {
+    return reader.withValueToUpdate( existing ).readValue( json );
+  }
+  
+  public T readInto( T existing, InputStream in ) throws IOException
+  {
+    return reader.withValueToUpdate( existing ).readValue( in );
+  }
+  
+  /**
+   * Applies an RFC 7386 merge patch to an existing object. Members of the
+   * patch that are null are removed, or set to null on a bean, objects are
+   * merged member by member and anything else replaces what was there.
+   * The object is updated in place and only the properties named in the
+   * patch are touched, although a property holding a nested object is 
+   * replaced by an updated copy.
+   * 
+   * @param existing The object to patch.
+   * @param patch The merge patch.
+   * @return The patched object. This is the existing one unless the patch
+   * is not a JSON object, in which case it replaces the object entirely.
+   * @throws IOException If the patch can't be applied.
+   */
+  public T applyMergePatch( T existing, JsonNode patch ) throws IOException
+  {
+    if ( existing == null || !patch.isObject() )
+      return reader.readValue( patch );
+    
+    ObjectNode update = mapper.createObjectNode();
+    JsonNode current = null;
+    for ( Iterator<Map.Entry<String,JsonNode>> it = patch.fields(); it.hasNext(); )
+    {
+      Map.Entry<String,JsonNode> e = it.next();
+      JsonNode value = e.getValue();
+      if ( value.isNull() && existing instanceof Map )
+        ((Map)existing).remove( e.getKey() );
+      else if ( value.isObject() )
+      {
+        // Only turn the existing object into a tree if something nested
+        // has to be merged.
+        if ( current == null )
+          current = mapper.valueToTree( existing );
+        update.set( e.getKey(), mergePatch( current.get( e.getKey() ), value ) );
+        // Updating a map merges into the values it already has, which 
+        // would keep members the patch removed, so the merged copy has to
+        // go in fresh.
+        if ( existing instanceof Map )
+          ((Map)existing).remove( e.getKey() );
+      }
+      else
+        update.set( e.getKey(), value );
+    }
+    if ( update.size() == 0 )
+      return existing;
+    return reader.withValueToUpdate( existing ).readValue( update );
+  }
+  
+  public T applyMergePatch( T existing, String patch ) throws IOException
+  {
+    textOnly();
+    return applyMergePatch( existing, mapper.readTree( patch ) );
+  }
+  
+  public T applyMergePatch( T existing, byte[] patch ) throws IOException
+  {
+    return applyMergePatch( existing, mapper.readTree( patch ) );
+  }
+  
+  /**
+   * Applies a merge patch to a tree as RFC 7386 describes. The target may
+   * be changed and should not be used afterwards.
+   */
+  static JsonNode mergePatch( JsonNode target, JsonNode patch )
+  {
+    if ( !patch.isObject() )
+      return patch;
+    ObjectNode result = target != null && target.isObject() 
+            ? (ObjectNode)target 
+            : objectmapper.createObjectNode();
+    for ( Iterator<Map.Entry<String,JsonNode>> it = patch.fields(); it.hasNext(); )
+    {
+      Map.Entry<String,JsonNode> e = it.next();
+      if ( e.getValue().isNull() )
+        result.remove( e.getKey() );
+      else
+        result.set( e.getKey(), mergePatch( result.get( e.getKey() ), e.getValue() ) );
+    }
+    return result;
+  }
+  
+  /**
+   * Makes the smallest merge patch that turns one object into another. 
+   * Applying it to the original with applyMergePatch gives an object equal
+   * to the updated one. As RFC 7386 says, a merge patch can't set a member
+   * to null, so a property that becomes null is removed instead.
+   * 
+   * @param original The object as the receiver has it.
+   * @param updated The object as it should be.
+   * @return The patch, which is an empty object if nothing changed.
+   */
+  public JsonNode diff( T original, T updated )
+  {
+    return diff( (JsonNode)mapper.valueToTree( original ), (JsonNode)mapper.valueToTree( updated ) );
+  }
+  
+  /**
+   * Writes the smallest merge patch between two objects.
+   * 
+   * @param original The object as the receiver has it.
+   * @param updated The object as it should be.
+   * @return The patch as JSON text.
+   * @throws JsonProcessingException If the patch can't be written.
+   */
+  public String writeDiff( T original, T updated ) throws JsonProcessingException
+  {
+    textOnly();
+    return treewriter.writeValueAsString( diff( original, updated ) );
+  }
+  
+  public byte[] writeDiffBytes( T original, T updated ) throws JsonProcessingException
+  {
+    return treewriter.writeValueAsBytes( diff( original, updated ) );
+  }
+  
+  static JsonNode diff( JsonNode original, JsonNode updated )
+  {
+    if ( original == null || !original.isObject() || updated == null || !updated.isObject() )
+      return updated == null ? objectmapper.getNodeFactory().nullNode() : updated;
+    ObjectNode patch = objectmapper.createObjectNode();
+    for ( Iterator<String> it = original.fieldNames(); it.hasNext(); )
+    {
+      String name = it.next();
+      if ( !updated.has( name ) || updated.get( name ).isNull() && !original.get( name ).isNull() )
+        patch.putNull( name );
+    }
+    for ( Iterator<Map.Entry<String,JsonNode>> it = updated.fields(); it.hasNext(); )
+    {
+      Map.Entry<String,JsonNode> e = it.next();
+      JsonNode before = original.get( e.getKey() );
+      if ( e.getValue().isNull() || e.getValue().equals( before ) )
+        continue;
+      if ( before != null && before.isObject() && e.getValue().isObject() )
+        patch.set( e.getKey(), diff( before, e.getValue() ) );
+      else
+        patch.set( e.getKey(), e.getValue() );
+    }
+    return patch;
   }
 }
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import javax.jms.JMSException;
+import org.apache.activemq.ActiveMQConnection;
+import org.apache.activemq.ActiveMQConnectionFactory;
+
+/**
+ * A connection source that makes new connections from an ActiveMQ 
+ * connection factory and closes them when they are released. This lets a
+ * coordinator run outside Blackboard, for example against an embedded 
+ * broker with a "vm://" URL in tests and benchmarks. The coordinator only
+ * holds a couple of long lived connections so there is no pooling.
+ *
+ * @author jon
+ */
+public class ActiveMQConnectionFactorySource implements ConnectionSource
+{
+  final ActiveMQConnectionFactory factory;
+
+  /**
+   * @param factory The factory to make connections with.
+   */
+  public ActiveMQConnectionFactorySource( ActiveMQConnectionFactory factory )
+  {
+    this.factory = factory;
+  }
+
+  /**
+   * @param brokerurl The URL of the broker to connect to.
+   */
+  public ActiveMQConnectionFactorySource( String brokerurl )
+  {
+    this( new ActiveMQConnectionFactory( brokerurl ) );
+  }
+
+  @Override
+  public ActiveMQConnection getConnection() throws Exception
+  {
+    return (ActiveMQConnection) factory.createConnection();
+  }
+
+  @Override
+  public void releaseConnection( ActiveMQConnection connection )
+  {
+    try
+    {
+      connection.close();
+    }
+    catch ( JMSException ex )
+    {
+      // Nothing useful can be done.
+    }
+  }
+}
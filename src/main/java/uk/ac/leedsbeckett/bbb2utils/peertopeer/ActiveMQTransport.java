@@ -0,0 +1,152 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import blackboard.platform.messagequeue.MessageQueueException;
+import blackboard.platform.messagequeue.impl.activemq.ActiveMQTopicSubscriber;
+import java.util.List;
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * The default transport, which publishes to a topic on an ActiveMQ broker
+ * through a long lived publishing channel and receives through a
+ * subscription with a selector, so the broker only delivers messages
+ * addressed to this server.
+ * 
+ * If the filtered subscription can't be made and the connections come from
+ * Blackboard, Blackboard's own unfiltered topic subscriber is used instead
+ * and the coordinator ignores messages that aren't for it.
+ *
+ * @author jon
+ */
+public class ActiveMQTransport implements CoordinatorTransport
+{
+  final ConnectionSource connections;
+  final int stripes;
+  
+  BuildingBlockCoordinator coordinator = null;
+  volatile PublishingChannel channel = null;
+  FilteredSubscription subscription = null;
+  FallbackSubscriber fallback = null;
+
+  /**
+   * @param connections Where to get connections to the broker.
+   */
+  public ActiveMQTransport( ConnectionSource connections )
+  {
+    this( connections, PublishingChannel.DEFAULT_STRIPES );
+  }
+
+  /**
+   * @param connections Where to get connections to the broker.
+   * @param stripes How many sessions to publish through so that threads
+   * sending at the same time don't wait for each other.
+   */
+  public ActiveMQTransport( ConnectionSource connections, int stripes )
+  {
+    this.connections = connections;
+    this.stripes = stripes;
+  }
+  
+  @Override
+  public synchronized void subscribe( BuildingBlockCoordinator coordinator ) throws MessageQueueException
+  {
+    if ( this.coordinator == null )
+    {
+      this.coordinator = coordinator;
+      channel = new PublishingChannel( connections, coordinator.metrics, coordinator.topic, stripes );
+      subscription = new FilteredSubscription( connections, coordinator.topic, coordinator.serverid, coordinator );
+    }
+    try
+    {
+      subscription.open();
+    }
+    catch ( MessageQueueException ex )
+    {
+      if ( !(connections instanceof BlackboardConnectionSource) )
+        throw ex;
+      coordinator.logger.error( "Unable to make filtered subscription. Using unfiltered subscription.", ex );
+      try
+      {
+        fallback = new FallbackSubscriber( coordinator );
+      }
+      catch ( JMSException jex )
+      {
+        throw new MessageQueueException( "Unable to subscribe to " + coordinator.topic, jex );
+      }
+      fallback.register();
+    }
+  }
+
+  @Override
+  public synchronized void unsubscribe()
+  {
+    if ( fallback != null )
+      fallback.unregister();
+    else if ( subscription != null )
+      subscription.close();
+    fallback = null;
+  }
+
+  @Override
+  public void publish( OutboundMessage m ) throws MessageQueueException
+  {
+    channel().publish( m );
+  }
+
+  @Override
+  public void publishBatch( List<OutboundMessage> batch ) throws MessageQueueException
+  {
+    channel().publishBatch( batch );
+  }
+  
+  PublishingChannel channel() throws MessageQueueException
+  {
+    PublishingChannel c = channel;
+    if ( c == null )
+      throw new MessageQueueException( "Transport has not been subscribed." );
+    return c;
+  }
+
+  @Override
+  public synchronized void close()
+  {
+    unsubscribe();
+    if ( channel != null )
+      channel.close();
+  }
+  
+  /**
+   * Blackboard's topic subscriber, which gets every message on the topic.
+   */
+  static class FallbackSubscriber extends ActiveMQTopicSubscriber
+  {
+    final BuildingBlockCoordinator coordinator;
+
+    FallbackSubscriber( BuildingBlockCoordinator coordinator ) throws JMSException
+    {
+      super( coordinator.topic );
+      this.coordinator = coordinator;
+    }
+
+    @Override
+    public void onMessage( Message message )
+    {
+      coordinator.onMessage( message );
+    }
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import blackboard.platform.BbServiceManager;
+import blackboard.platform.messagequeue.MessageQueueException;
+import blackboard.platform.messagequeue.MessageQueueService;
+import blackboard.platform.messagequeue.MessageQueueUtil;
+import blackboard.platform.messagequeue.impl.activemq.ActiveMQConnectionPool;
+import blackboard.platform.messagequeue.impl.activemq.ActiveMQMessageQueueService;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.activemq.ActiveMQConnection;
+
+/**
+ * The default connection source, which borrows connections from the pool
+ * that belongs to Blackboard's message queue service. The pool each 
+ * connection came from is remembered so it goes back to the right place 
+ * even if the service is restarted in between.
+ *
+ * @author jon
+ */
+class BlackboardConnectionSource implements ConnectionSource
+{
+  final ConcurrentHashMap<ActiveMQConnection,ActiveMQConnectionPool> borrowed = new ConcurrentHashMap<>();
+  
+  @Override
+  public ActiveMQConnection getConnection() throws Exception
+  {
+    ActiveMQConnectionPool pool = getConnectionPool();
+    if ( pool == null )
+      throw new MessageQueueException( "Message queue service is not available." );
+    ActiveMQConnection connection = (ActiveMQConnection) pool.get();
+    borrowed.put( connection, pool );
+    return connection;
+  }
+
+  @Override
+  public void releaseConnection( ActiveMQConnection connection )
+  {
+    ActiveMQConnectionPool pool = borrowed.remove( connection );
+    if ( pool != null )
+      MessageQueueUtil.releaseConnection( pool, connection );
+  }
+    
+  ActiveMQConnectionPool getConnectionPool() {
+    if (BbServiceManager.isServiceInitialized(MessageQueueService.class.getName())) {
+      ActiveMQMessageQueueService activeMQMessageQueueService
+              = (ActiveMQMessageQueueService) BbServiceManager.safeLookupService(MessageQueueService.class);
+      return activeMQMessageQueueService.getConnectionPool();
+    }
+    return null;
+  }
+}
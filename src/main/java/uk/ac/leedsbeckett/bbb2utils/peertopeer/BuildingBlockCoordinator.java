@@ -15,25 +15,29 @@
  */
 package uk.ac.leedsbeckett.bbb2utils.peertopeer;
 
-import blackboard.platform.BbServiceManager;
 import blackboard.platform.messagequeue.MessageQueueException;
-import blackboard.platform.messagequeue.MessageQueueService;
-import blackboard.platform.messagequeue.MessageQueueUtil;
-import blackboard.platform.messagequeue.impl.activemq.ActiveMQConnectionPool;
-import blackboard.platform.messagequeue.impl.activemq.ActiveMQMessageQueueService;
-import blackboard.platform.messagequeue.impl.activemq.ActiveMQTopicSubscriber;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Properties;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.jms.BytesMessage;
 import javax.jms.JMSException;
 import javax.jms.Message;
+import javax.jms.MessageListener;
 import javax.jms.TextMessage;
-import javax.jms.TopicPublisher;
-import org.apache.activemq.ActiveMQConnection;
-import org.apache.activemq.ActiveMQTopicSession;
 import org.apache.log4j.Logger;
 
 /**
@@ -43,25 +47,50 @@ import org.apache.log4j.Logger;
  * &lt;permission type="socket" name="*" actions="connect,resolve"/&gt;
  * @author jon
  */
-public class BuildingBlockCoordinator extends ActiveMQTopicSubscriber
+public class BuildingBlockCoordinator implements MessageListener
 {
   public static final int PEER_TIMEOUT = 15 * 60 * 1000;
+  public static final int DEFAULT_HEARTBEAT_INTERVAL = 10 * 1000;
+  public static final double DEFAULT_SUSPICION_THRESHOLD = 8.0;
+  public static final int STARTUP_DELAY = 1000;
+  public static final int DEFAULT_COMPRESSION_THRESHOLD = 16 * 1024;
+  public static final int DEFAULT_MAX_PAYLOAD_SIZE = 64 * 1024 * 1024;
+  public static final int PEER_LOG_INTERVAL = 60 * 1000;
   
   boolean started = false;
   boolean failed = false;
   
   final Logger logger;
   final String serverid, pluginid, topic;
+  final CoordinatorTransport transport;
   
   
-  HashMap<String,PeerRecord> knownpeers = new HashMap<>();
-  ArrayList<PeerRecord> peersbyage = new ArrayList<>();
+  final PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector( DEFAULT_HEARTBEAT_INTERVAL, DEFAULT_SUSPICION_THRESHOLD, PEER_TIMEOUT );
+  final PeerRegistry peers = new PeerRegistry( detector );
+  final CopyOnWriteArrayList<BuildingBlockMembershipListener> membershiplisteners = new CopyOnWriteArrayList<>();
+  volatile boolean peerschanged = false;
+  volatile long lastpeerlog = 0L;
   long starttime;
   BuildingBlockPeerMessageListener listener;
+  final boolean bytelistener;
   int pingrate=0;
 
-  Object pingerlock = new Object(); 
-  PingerThread pingerthread = null;
+  final Object schedulelock = new Object(); 
+  final Random random = new Random( System.currentTimeMillis() );
+  ScheduledFuture<?> pingtask = null;
+  ScheduledFuture<?> heartbeattask = null;
+  
+  volatile OutboundQueue outboundqueue = null;
+  volatile OutboundSpool spool = null;
+  volatile MessageDispatcher dispatcher = null;
+  volatile int compressionthreshold = DEFAULT_COMPRESSION_THRESHOLD;
+  volatile int maxpayloadsize = DEFAULT_MAX_PAYLOAD_SIZE;
+  
+  final ScheduledThreadPoolExecutor scheduler;
+  final ExecutorService loopbackexecutor;
+  final ConcurrentHashMap<String,CoordinatorMessageHandler> handlers = new ConcurrentHashMap<>();
+  final RequestReplyManager requests;
+  final CoordinatorMetrics metrics;
 
 /**
  * Intantiates, but doesn't start, a tool to allow messaging between
@@ -77,25 +106,99 @@ public class BuildingBlockCoordinator extends ActiveMQTopicSubscriber
  */  
   public BuildingBlockCoordinator( String buildingblockvid, String buildingblockhandle, String serverid, BuildingBlockPeerMessageListener listener, Logger logger ) throws JMSException
   {
-    super( "lbucoordination_" + buildingblockvid + "_" + buildingblockhandle );
+    this( buildingblockvid, buildingblockhandle, serverid, listener, logger, new BlackboardConnectionSource() );
+  }
+
+/**
+ * Intantiates, but doesn't start, a tool to allow messaging between
+ * instances of a building block which gets its connections to the broker
+ * from the given source instead of from Blackboard.
+ * 
+ * @param buildingblockvid Identifies the destination.
+ * @param buildingblockhandle Identifies the destination.
+ * @param serverid Identifies this instance, distinguishing it from others.
+ * @param listener Object that will be told about incoming messages.
+ * @param logger A custom logger for errors.
+ * @param connections Where to get connections to the broker.
+ * @throws JMSException 
+ */  
+  public BuildingBlockCoordinator( String buildingblockvid, String buildingblockhandle, String serverid, BuildingBlockPeerMessageListener listener, Logger logger, ConnectionSource connections ) throws JMSException
+  {
+    this( buildingblockvid, buildingblockhandle, serverid, listener, logger, new ActiveMQTransport( connections ) );
+  }
+
+/**
+ * Intantiates, but doesn't start, a tool to allow messaging between
+ * instances of a building block which sends its messages with the given
+ * transport.
+ * 
+ * @param buildingblockvid Identifies the destination.
+ * @param buildingblockhandle Identifies the destination.
+ * @param serverid Identifies this instance, distinguishing it from others.
+ * @param listener Object that will be told about incoming messages.
+ * @param logger A custom logger for errors.
+ * @param transport How messages get to the peers.
+ * @throws JMSException 
+ */  
+  public BuildingBlockCoordinator( String buildingblockvid, String buildingblockhandle, String serverid, BuildingBlockPeerMessageListener listener, Logger logger, CoordinatorTransport transport ) throws JMSException
+  {
+    this.transport = transport;
     this.pluginid = buildingblockvid + "_" + buildingblockhandle;
     this.topic = "lbucoordination_" + pluginid;
     this.logger = logger;
     this.serverid = serverid;
     this.listener = listener;
+    this.bytelistener = overridesConsumeBytes( listener );
+    this.scheduler = new ScheduledThreadPoolExecutor( 1, r ->
+    {
+      Thread t = new Thread( r, "BuildingBlockCoordinator.Scheduler" );
+      t.setDaemon( true );
+      return t;
+    });
+    this.scheduler.setRemoveOnCancelPolicy( true );
+    this.loopbackexecutor = Executors.newSingleThreadExecutor( r ->
+    {
+      Thread t = new Thread( r, "BuildingBlockCoordinator.Loopback" );
+      t.setDaemon( true );
+      return t;
+    });
+    this.requests = new RequestReplyManager( this );
+    this.metrics = new CoordinatorMetrics( this );
+    handlers.put( RequestReplyManager.REQUEST_TYPE, requests::consumeRequest );
+    handlers.put( RequestReplyManager.REPLY_TYPE,   requests::consumeReply   );
   }
   
   /**
-   * Starts the messaging asynchronously. It creates a thread that will
-   * start messaging after a short delay but returns immediately.
+   * Starts the messaging asynchronously. Messaging starts after a short
+   * delay on the coordinator's scheduler but this returns immediately.
    */
   public void start()
   {
     started = true;
     starttime = System.currentTimeMillis();
-    register();
-    StarterThread st = new StarterThread();
-    st.start();
+    metrics.register();
+    subscribe();
+    scheduler.schedule( this::announce, STARTUP_DELAY, TimeUnit.MILLISECONDS );
+  }
+  
+  /**
+   * Tells peers that this server has started and asks them to say who they
+   * are, then starts sending heartbeats.
+   */
+  void announce()
+  {
+    try
+    {        
+      sendStartingMessage();
+      sendDiscoverMessage();
+    }
+    catch (JMSException ex)
+    {
+      logger.error( "Exception trying to start messaging system.", ex );
+      failed = true;
+      return;
+    }
+    scheduleHeartbeats();
   }
   
   /**
@@ -105,9 +208,50 @@ public class BuildingBlockCoordinator extends ActiveMQTopicSubscriber
   public void destroy() throws JMSException
   {
     setPingRate( 0 );
-    unregister();
+    synchronized ( schedulelock )
+    {
+      if ( heartbeattask != null )
+        heartbeattask.cancel( false );
+      heartbeattask = null;
+    }
+    unsubscribe();
     if ( started && !failed )
       sendStoppingMessage();
+    OutboundQueue queue = outboundqueue;
+    if ( queue != null )
+      queue.close();
+    OutboundSpool s = spool;
+    if ( s != null )
+      s.close();
+    transport.close();
+    MessageDispatcher d = dispatcher;
+    if ( d != null )
+      d.close();
+    requests.close();
+    scheduler.shutdownNow();
+    loopbackexecutor.shutdownNow();
+    metrics.unregister();
+  }
+  
+  /**
+   * Starts receiving messages for this server through the transport.
+   */
+  void subscribe()
+  {
+    try
+    {
+      transport.subscribe( this );
+    }
+    catch ( MessageQueueException ex )
+    {
+      logger.error( "Unable to subscribe.", ex );
+      failed = true;
+    }
+  }
+  
+  void unsubscribe()
+  {
+    transport.unsubscribe();
   }
   
   /**
@@ -118,31 +262,107 @@ public class BuildingBlockCoordinator extends ActiveMQTopicSubscriber
    */
   public void setPingRate( int newpingrate )
   {
-    synchronized ( pingerlock )
+    synchronized ( schedulelock )
     {
-      if ( newpingrate <= 0 )
-      {
-        if ( pingerthread != null )
-        {
-          pingerthread.running = false;
-          pingerthread.interrupt();
-          pingerthread = null;
-        }
-        pingrate = 0;
+      if ( pingtask != null )
+        pingtask.cancel( false );
+      pingtask = null;
+      pingrate = Math.max( 0, newpingrate );
+      schedulePing();
+    }
+  }
+  
+  private void schedulePing()
+  {
+    synchronized ( schedulelock )
+    {
+      if ( pingrate <= 0 || scheduler.isShutdown() )
         return;
-      }
-
-      pingrate = newpingrate;
-      if ( pingerthread == null )
+      long delay = (pingrate/2 + random.nextInt( pingrate )) * 1000L;
+      pingtask = scheduler.schedule( () ->
       {
-        pingerthread = new PingerThread();
-        pingerthread.start();
-      }
-      else
-      {
-        pingerthread.interrupt();
-      }
+        if ( started && !failed )
+          try { sendPingMessage(); } catch ( JMSException ex ) {}
+        schedulePing();
+      }, delay, TimeUnit.MILLISECONDS );
+    }
+  }
+  
+  /**
+   * Sets how often this server sends a heartbeat to its peers. Peers use
+   * the intervals they observe to decide when this server has died, so all
+   * the servers should use the same setting. Default is 10 seconds.
+   * 
+   * @param millis The interval in milliseconds. Zero switches heartbeats
+   * off and peers then only time out after PEER_TIMEOUT.
+   */
+  public void setHeartbeatInterval( int millis )
+  {
+    synchronized ( schedulelock )
+    {
+      detector.heartbeatinterval = Math.max( 0, millis );
+      if ( started )
+        scheduleHeartbeats();
+    }
+  }
+  
+  /**
+   * Sets how suspicious the failure detector must be before a silent peer
+   * is removed. The value is phi, the negative base ten logarithm of the
+   * chance that the peer is still alive. Default is 8. Lower values detect
+   * failures sooner but are more likely to remove a peer that is just slow.
+   * 
+   * @param phi The threshold.
+   */
+  public void setSuspicionThreshold( double phi )
+  {
+    detector.threshold = phi;
+  }
+  
+  /**
+   * Gets how suspicious the failure detector currently is of a peer.
+   * 
+   * @param name The server ID of the peer.
+   * @return Phi for the peer, or positive infinity if it is not known.
+   */
+  public double getSuspicionLevel( String name )
+  {
+    PeerRecord r = peers.get( name );
+    return r == null ? Double.POSITIVE_INFINITY : detector.phi( r, System.currentTimeMillis() );
+  }
+  
+  void scheduleHeartbeats()
+  {
+    synchronized ( schedulelock )
+    {
+      if ( heartbeattask != null )
+        heartbeattask.cancel( false );
+      heartbeattask = null;
+      long interval = detector.heartbeatinterval;
+      if ( interval <= 0L || scheduler.isShutdown() )
+        return;
+      heartbeattask = scheduler.scheduleAtFixedRate( this::heartbeat, interval, interval, TimeUnit.MILLISECONDS );
+    }
+  }
+  
+  /**
+   * Sends a heartbeat and removes peers that the failure detector has
+   * given up on. 
+   */
+  void heartbeat()
+  {
+    if ( !started || failed )
+      return;
+    try
+    {
+      sendHeartbeatMessage();
     }
+    catch ( JMSException ex )
+    {
+      logger.error( "Unable to send heartbeat.", ex );
+    }
+    thinPeers();
+    logPeersIfChanged();
   }
   
   void consumeCoordinationMessage( Message message ) throws JMSException
@@ -153,7 +373,8 @@ public class BuildingBlockCoordinator extends ActiveMQTopicSubscriber
       TextMessage tm = (TextMessage)message;
       String subtype = message.getStringProperty( "LBUSubType" );
       String from = message.getStringProperty( "LBUFromServerID" );
-      logger.debug( "<----- " + serverid + " received " + subtype + " from " + from );
+      if ( logger.isDebugEnabled() )
+        logger.debug( "<----- " + serverid + " received " + subtype + " from " + from );
       switch ( subtype )
       {
         case "STOPPING":
@@ -173,14 +394,35 @@ public class BuildingBlockCoordinator extends ActiveMQTopicSubscriber
             long fromstarttime = Long.parseLong( message.getStringProperty( "LBUFromServerStartTime" ) );
             this.addPeer( from, fromstarttime );
           }
-          touchPeer( from );
+          if ( message.propertyExists( "LBUHeartbeat" ) )
+          {
+            peers.heartbeat( from );
+            String senttime = message.getStringProperty( "LBUSentTime" );
+            if ( senttime != null && !serverid.equals( from ) )
+            {
+              try { metrics.recordHeartbeatDelay( System.currentTimeMillis() - Long.parseLong( senttime ) ); }
+              catch ( NumberFormatException ex ) {}
+            }
+          }
+          else
+            touchPeer( from );
           updating=true;
           break;
           
         case "PING":
           if ( !serverid.equals( from ) )
-            sendPongMessage( from );
+            sendPongMessage( from, message.getStringProperty( "LBUPingTime" ) );
+          touchPeer( from );
+          updating=true;
+          break;
+          
         case "PONG":
+          String pingtime = message.getStringProperty( "LBUPingTime" );
+          if ( pingtime != null )
+          {
+            try { metrics.recordPingRoundTrip( System.nanoTime() - Long.parseLong( pingtime ) ); }
+            catch ( NumberFormatException ex ) {}
+          }
           touchPeer( from );
           updating=true;
           break;
@@ -191,7 +433,7 @@ public class BuildingBlockCoordinator extends ActiveMQTopicSubscriber
       if ( updating )
       {
         thinPeers();
-        logPeers();
+        logPeersIfChanged();
       }
     }
   }
@@ -208,6 +450,68 @@ public class BuildingBlockCoordinator extends ActiveMQTopicSubscriber
     sendTextMessage( str, "*" );
   }
  
+  /**
+   * Send an arbitrary message that peers will understand. Send it to all 
+   * the connected peers, optionally leaving out this server.
+   * 
+   * @param str The message.
+   * @param includelocal False if this server's own listener should not
+   * get the message.
+   * @throws JMSException 
+   */
+  public void sendTextMessageToAll( String str, boolean includelocal ) throws JMSException
+  {
+    if ( !started || failed )
+    {
+      logger.error( "Unable to send text message. Not started or starting failed." );
+      return;
+    }
+    sendTextMessageToAllAsync( str, includelocal ).whenComplete( this::logSendFailure );
+  }
+ 
+  /**
+   * Works out which peer owns a key, for dividing work between the
+   * servers. Ownership is decided by rendezvous hashing over the live peers
+   * so every server agrees on the owner as long as they agree on who the
+   * peers are, and when a peer joins or leaves only the keys that must move
+   * do move.
+   * 
+   * @param key Identifies a piece of work or data.
+   * @return The server ID of the owner or null if no peers are known.
+   */
+  public String ownerOf( String key )
+  {
+    thinPeers();
+    PeerRecord r = peers.ownerOf( key );
+    return r == null ? null : r.name;
+  }
+  
+  /**
+   * Checks whether this server owns a key.
+   * 
+   * @param key Identifies a piece of work or data.
+   * @return True if this server is the owner.
+   */
+  public boolean isLocallyOwned( String key )
+  {
+    return serverid.equals( ownerOf( key ) );
+  }
+  
+  /**
+   * Send an arbitrary message that peers will understand. Send it to the
+   * peer that owns the key.
+   * 
+   * @param key Identifies a piece of work or data.
+   * @param str The message.
+   * @throws JMSException 
+   */
+  public void sendTextMessageToOwner( String key, String str ) throws JMSException
+  {
+    String name = ownerOf( key );
+    if ( name != null )
+      sendTextMessage( str, name );
+  }
+ 
   /**
    * Send an arbitrary message that peers will understand. Send it to the
    * oldest connected peer.
@@ -238,278 +542,1005 @@ public class BuildingBlockCoordinator extends ActiveMQTopicSubscriber
  
   
   
+  /**
+   * Publish a message to the coordination topic using the transport.
+   * 
+   * @param text The body of the message.
+   * @param properties String properties to put on the message.
+   * @throws MessageQueueException 
+   */
   public void sendMessage( String text, Properties properties ) throws MessageQueueException
   {
-    ActiveMQConnection con = null;
-    ActiveMQTopicSession session = null;
-    TopicPublisher publisher = null;
-    final ActiveMQConnectionPool activeMQConnectionPool = this.getConnectionPool();
+    OutboundMessage m = new OutboundMessage( text, properties );
+    if ( loopback( m ) || spoolInstead( m ) )
+      return;
     try
     {
-      con = (ActiveMQConnection) activeMQConnectionPool.get();
-      session = (ActiveMQTopicSession) con.createTopicSession(false, 1);
-      publisher = session.createPublisher( session.createTopic( topic ) );
-      TextMessage message = session.createTextMessage( text );
-      for ( Object key : properties.keySet() )
-        message.setStringProperty( key.toString(), properties.getProperty( key.toString() ) );
-      publisher.publish( message );
+      transport.publish( m );
     }
-    catch ( Exception ex )
+    catch ( MessageQueueException ex )
     {
-      throw new MessageQueueException( "Could not send AMQ message.", ex);
-    }
-    finally
-    {
-      MessageQueueUtil.closeMessageQueueObjects( session, null, null, publisher, null);
-      MessageQueueUtil.releaseConnection(activeMQConnectionPool, con);
+      if ( !spoolAfterFailure( m ) )
+        throw ex;
     }
   }
   
   
   
-  /** 
-   * Send an arbitrary message that peers will understand.
-   * @param str The message
-   * @param toserverid The server that should receive the message.
-   * @throws JMSException 
+  /**
+   * Send a message through the outbound queue if asynchronous sending is
+   * enabled or on the calling thread if not.
+   * 
+   * @param text The body of the message.
+   * @param properties String properties to put on the message.
+   * @return A future that completes when the message has been sent.
    */
-  public synchronized void sendTextMessage( String str, String toserverid ) throws JMSException
+  CompletableFuture<Void> send( String text, Properties properties )
   {
-    if ( !started || failed )
-    {
-      logger.error( "Unable to send text message. Not started or starting failed." );
-      return;
-    }
-    Properties p = new Properties();
-    p.setProperty( "LBUToServerID",    toserverid     );
-    p.setProperty( "LBUFromServerID",  serverid       );
-    p.setProperty( "LBUPluginID",      pluginid       );
-    p.setProperty( "LBUType",          "" );
-    p.setProperty( "LBUSubType",       ""        );
-
-    logger.debug( "-----> " + serverid + " sending user message to " + toserverid );
-    try { sendMessage( str, p ); } catch (MessageQueueException ex) { logger.error( "Unable to send message via BB connection pool. ", ex );
-    }
+    return send( new OutboundMessage( text, properties ) );
   }
- 
-  void sendCoordinationMessage( String command ) throws JMSException
+  
+  CompletableFuture<Void> send( String text, Properties properties, boolean includelocal )
   {
-    sendCoordinationMessage( command, "*" );
+    OutboundMessage m = new OutboundMessage( text, properties );
+    m.includelocal = includelocal;
+    return send( m );
   }
   
-  synchronized void sendCoordinationMessage( String command, String to ) throws JMSException
+  CompletableFuture<Void> send( OutboundMessage m )
   {
-    if ( !started || failed )
+    long t = System.nanoTime();
+    m.future.whenComplete( ( v, ex ) -> metrics.recordSent( 
+            m.properties.getProperty( "LBUType" ), 
+            m.properties.getProperty( "LBUSubType" ), 
+            System.nanoTime() - t, 
+            ex == null ) );
+    
+    if ( loopback( m ) )
     {
-      logger.error( "Unable to send text message. Not started or starting failed." );
-      return;
+      m.future.complete( null );
+      return m.future;
+    }
+    
+    // Coordination messages skip the queue so heartbeats are never stuck
+    // behind a backlog of user messages. Queued messages go to the spool,
+    // if they need to, when the sender takes them so that they keep their
+    // place behind messages queued earlier.
+    OutboundQueue queue = outboundqueue;
+    if ( queue != null && !m.isCoordination() )
+      return queue.enqueue( m );
+    
+    try
+    {
+      if ( spoolInstead( m ) )
+      {
+        m.future.complete( null );
+        return m.future;
+      }
+    }
+    catch ( MessageQueueException ex )
+    {
+      m.future.completeExceptionally( ex );
+      return m.future;
     }
-    Properties p = new Properties();
-    p.setProperty( "LBUToServerID",          to                         );
-    p.setProperty( "LBUFromServerID",        serverid                   );
-    p.setProperty( "LBUFromServerStartTime", Long.toString( starttime ) );
-    p.setProperty( "LBUPluginID",            pluginid                   );
-    p.setProperty( "LBUType",                "coordination"             );
-    p.setProperty( "LBUSubType",             command                    );
     
-    logger.debug( "-----> " + serverid + " sending coordination " + command + " to " + to );
-    try { sendMessage( "", p ); } catch (MessageQueueException ex) { logger.error( "Unable to send message via BB connection pool. ", ex ); }
+    try
+    {
+      transport.publish( m );
+      m.future.complete( null );
+    }
+    catch ( MessageQueueException ex )
+    {
+      if ( spoolAfterFailure( m ) )
+        m.future.complete( null );
+      else
+        m.future.completeExceptionally( ex );
+    }
+    return m.future;
   }
   
-  void sendStartingMessage() throws JMSException
-  {
-    sendCoordinationMessage( "STARTING" );
-  }
-
-  void sendDiscoverMessage() throws JMSException
-  {
-    sendCoordinationMessage( "DISCOVER" );
-  }
-
-  void sendRunningMessage() throws JMSException
+  /**
+   * Puts a message straight in the spool if earlier messages are still
+   * waiting there, so that it doesn't overtake them.
+   * 
+   * @return True if the message was spooled.
+   * @throws MessageQueueException If it should have been spooled but the
+   * spool is full.
+   */
+  boolean spoolInstead( OutboundMessage m ) throws MessageQueueException
   {
-    sendCoordinationMessage( "RUNNING" );
+    OutboundSpool s = spool;
+    if ( s == null || !s.spoolable( m ) || s.isEmpty() )
+      return false;
+    if ( !s.append( m ) )
+      throw new MessageQueueException( "Outbound spool is full." );
+    return true;
   }
-
-  void sendStoppingMessage() throws JMSException
+  
+  /**
+   * Puts a message that failed to send in the spool if there is one.
+   * 
+   * @return True if the message was spooled.
+   */
+  boolean spoolAfterFailure( OutboundMessage m )
   {
-    sendCoordinationMessage( "STOPPING" );
+    OutboundSpool s = spool;
+    if ( s == null || !s.spoolable( m ) || !s.append( m ) )
+      return false;
+    if ( logger.isDebugEnabled() )
+      logger.debug( "Message spooled after failing to send." );
+    return true;
   }
-
-  void sendPingMessage() throws JMSException
+  
+  /**
+   * Switches on the outbound spool. After this, messages that fail to send 
+   * are kept in a file and sent again in order once sending works. Their
+   * futures complete normally when they are spooled. Messages that would
+   * be meaningless if they arrived late, like heartbeats, requests and 
+   * replies, are not spooled. Messages left in the file by a previous run
+   * are replayed too.
+   * 
+   * @param file The file to keep messages in. It must not be shared with
+   * another coordinator.
+   * @param maxbytes The size of the file.
+   * @param fsyncpolicy When changes are forced to disk.
+   * @param replaypersecond The most spooled messages sent per second.
+   * @throws IOException If the file could not be opened.
+   */
+  public synchronized void enableSpool( File file, int maxbytes, OutboundSpool.FsyncPolicy fsyncpolicy, double replaypersecond ) throws IOException
   {
-    sendCoordinationMessage( "PING" );
+    if ( spool != null )
+      return;
+    spool = new OutboundSpool( this, file, maxbytes, fsyncpolicy, replaypersecond );
+    OutboundQueue queue = outboundqueue;
+    if ( queue != null )
+      queue.spool = spool;
   }
   
-  void sendPongMessage( String to ) throws JMSException
+  /**
+   * Gets the spool so its depth and counts can be monitored.
+   * 
+   * @return The spool or null if it is not enabled.
+   */
+  public OutboundSpool getSpool()
   {
-    sendCoordinationMessage( "PONG", to );
+    return spool;
   }
-
-  @Override
-  public void onMessage( Message message )
+  
+  /**
+   * Delivers a message to this server without going through the broker if
+   * it is addressed to this server or to everyone. The broker never
+   * delivers this server's own messages back to it so this is the only
+   * way they arrive. Local messages are consumed in the order they were
+   * sent, or handed on to the dispatcher, so the sender never runs the 
+   * listener itself. Coordination messages are consumed on the scheduler
+   * thread and user messages on a separate loopback thread so a slow
+   * listener cannot hold up heartbeats.
+   * 
+   * @param m The message.
+   * @return True if the message was only for this server and does not need
+   * to be published.
+   */
+  boolean loopback( OutboundMessage m )
   {
-    try
+    String to = m.properties.getProperty( "LBUToServerID" );
+    boolean localonly = serverid.equals( to );
+    if ( localonly || ( m.includelocal && "*".equals( to ) ) )
+    {
+      try
+      {
+        Message local = m.toLocalMessage();
+        metrics.recordLoopback();
+        if ( m.isCoordination() )
+          scheduler.execute( () -> consume( local ) );
+        else
+          loopbackexecutor.execute( () -> consume( local ) );
+      }
+      catch ( JMSException ex )
+      {
+        logger.error( "Unable to make local copy of message.", ex );
+      }
+      catch ( RejectedExecutionException ex )
+      {
+        logger.debug( "Local message dropped because coordinator has stopped." );
+      }
+    }
+    return localonly;
+  }
+  
+  /**
+   * Switches on asynchronous sending. After this all messages are put on
+   * a bounded queue and published in batches by a dedicated thread and
+   * the send methods return without waiting for the broker.
+   * 
+   * @param capacity The maximum number of messages that can wait to be sent.
+   * @param batchsize The maximum number of messages sent in one transaction.
+   * @param backpressure What to do when the queue is full.
+   */
+  public synchronized void enableAsyncSend( int capacity, int batchsize, OutboundQueue.Backpressure backpressure )
+  {
+    if ( outboundqueue != null )
+      return;
+    OutboundQueue queue = new OutboundQueue( transport, logger, capacity, batchsize, backpressure );
+    queue.spool = spool;
+    queue.start();
+    outboundqueue = queue;
+  }
+  
+  /**
+   * Switches on dispatching of incoming user messages to an executor so
+   * that a slow listener doesn't hold up the message delivery thread and
+   * coordination traffic. Messages from any one sender are still consumed
+   * in order. Coordination messages are always handled on the delivery 
+   * thread.
+   * 
+   * @param executor The executor to run the listener on, or null to use a
+   * fixed pool with a thread per stripe. An executor passed in is not shut
+   * down by the coordinator.
+   * @param stripes The number of lanes messages are divided between.
+   * @param capacity The maximum number of messages waiting to be consumed
+   * before the delivery thread is made to wait.
+   */
+  public synchronized void enableDispatch( Executor executor, int stripes, int capacity )
+  {
+    if ( dispatcher != null )
+      return;
+    dispatcher = new MessageDispatcher( executor, stripes, capacity, logger );
+  }
+  
+  /**
+   * Gets the dispatcher so its depth and queue wait times can be monitored.
+   * 
+   * @return The dispatcher or null if dispatch is not enabled.
+   */
+  public MessageDispatcher getMessageDispatcher()
+  {
+    return dispatcher;
+  }
+  
+  /**
+   * @return The ID of this server.
+   */
+  public String getServerId()
+  {
+    return serverid;
+  }
+  
+  /**
+   * @return The name of the topic that messages are sent on, which is
+   * unique to the building block.
+   */
+  public String getTopic()
+  {
+    return topic;
+  }
+  
+  /**
+   * Gets the metrics for this coordinator. They are also registered with
+   * JMX when the coordinator starts.
+   * 
+   * @return The metrics.
+   */
+  public CoordinatorMetrics getMetrics()
+  {
+    return metrics;
+  }
+  
+  /**
+   * Gets the outbound queue so its depth and counts can be monitored.
+   * 
+   * @return The queue or null if asynchronous sending is not enabled.
+   */
+  public OutboundQueue getOutboundQueue()
+  {
+    return outboundqueue;
+  }
+  
+  /** 
+   * Send an arbitrary message that peers will understand.
+   * @param str The message
+   * @param toserverid The server that should receive the message.
+   * @throws JMSException 
+   */
+  public void sendTextMessage( String str, String toserverid ) throws JMSException
+  {
+    if ( !started || failed )
+    {
+      logger.error( "Unable to send text message. Not started or starting failed." );
+      return;
+    }
+    sendTextMessageAsync( str, toserverid ).whenComplete( this::logSendFailure );
+  }
+ 
+  /**
+   * Send an arbitrary message that peers will understand to all the
+   * connected peers without waiting for it to be sent.
+   * 
+   * @param str The message.
+   * @return A future that completes when the message has been sent.
+   */
+  public CompletableFuture<Void> sendTextMessageToAllAsync( String str )
+  {
+    return sendTextMessageAsync( str, "*" );
+  }
+  
+  /**
+   * Send an arbitrary message that peers will understand to all the
+   * connected peers without waiting for it to be sent, optionally leaving
+   * out this server.
+   * 
+   * @param str The message.
+   * @param includelocal False if this server's own listener should not
+   * get the message.
+   * @return A future that completes when the message has been sent.
+   */
+  public CompletableFuture<Void> sendTextMessageToAllAsync( String str, boolean includelocal )
+  {
+    if ( !started || failed )
+    {
+      CompletableFuture<Void> future = new CompletableFuture<>();
+      future.completeExceptionally( new IllegalStateException( "Not started or starting failed." ) );
+      return future;
+    }
+    if ( logger.isDebugEnabled() )
+      logger.debug( "-----> " + serverid + " sending user message to *" );
+    return send( str, userMessageProperties( "*" ), includelocal );
+  }
+  
+  /** 
+   * Send an arbitrary message that peers will understand without waiting
+   * for it to be sent.
+   * 
+   * @param str The message
+   * @param toserverid The server that should receive the message.
+   * @return A future that completes when the message has been sent.
+   */
+  public CompletableFuture<Void> sendTextMessageAsync( String str, String toserverid )
+  {
+    if ( !started || failed )
+    {
+      CompletableFuture<Void> future = new CompletableFuture<>();
+      future.completeExceptionally( new IllegalStateException( "Not started or starting failed." ) );
+      return future;
+    }
+    if ( logger.isDebugEnabled() )
+      logger.debug( "-----> " + serverid + " sending user message to " + toserverid );
+    return send( str, userMessageProperties( toserverid ) );
+  }
+  
+  /**
+   * Sets the object that answers requests from peers.
+   * 
+   * @param handler The handler or null to ignore requests.
+   */
+  public void setRequestHandler( BuildingBlockPeerRequestHandler handler )
+  {
+    requests.handler = handler;
+  }
+  
+  /**
+   * Send a request to one server and get its reply. The reply future is
+   * completed on the message delivery thread so any work done with the
+   * reply should be attached with the async CompletableFuture methods.
+   * 
+   * @param str The text of the request.
+   * @param toserverid The server to ask.
+   * @param timeout Milliseconds to wait for the reply.
+   * @return A future that completes with the reply message or with a
+   * TimeoutException.
+   */
+  public CompletableFuture<Message> sendRequest( String str, String toserverid, long timeout )
+  {
+    if ( !started || failed )
+    {
+      CompletableFuture<Message> future = new CompletableFuture<>();
+      future.completeExceptionally( new IllegalStateException( "Not started or starting failed." ) );
+      return future;
+    }
+    if ( logger.isDebugEnabled() )
+      logger.debug( "-----> " + serverid + " sending request to " + toserverid );
+    return requests.request( str, toserverid, timeout );
+  }
+  
+  /**
+   * Send a request to the oldest connected peer and get its reply.
+   * 
+   * @param str The text of the request.
+   * @param timeout Milliseconds to wait for the reply.
+   * @return See sendRequest.
+   */
+  public CompletableFuture<Message> sendRequestToOldest( String str, long timeout )
+  {
+    String name = getOldestPeerName();
+    if ( name == null )
+    {
+      CompletableFuture<Message> future = new CompletableFuture<>();
+      future.completeExceptionally( new IllegalStateException( "No peers known." ) );
+      return future;
+    }
+    return sendRequest( str, name, timeout );
+  }
+  
+  /**
+   * Send a request to all connected peers and gather their replies.
+   * 
+   * @param str The text of the request.
+   * @param replies How many replies are needed, for example a quorum or
+   * the first one to answer. Zero or less means one from every peer known
+   * when the request is sent.
+   * @param timeout Milliseconds to wait for the replies.
+   * @return A future that completes with the replies, in the order they
+   * arrived, once enough have arrived or with a TimeoutException.
+   */
+  public CompletableFuture<List<Message>> sendRequestToAll( String str, int replies, long timeout )
+  {
+    if ( !started || failed )
+    {
+      CompletableFuture<List<Message>> future = new CompletableFuture<>();
+      future.completeExceptionally( new IllegalStateException( "Not started or starting failed." ) );
+      return future;
+    }
+    if ( logger.isDebugEnabled() )
+      logger.debug( "-----> " + serverid + " sending request to all" );
+    return requests.requestAll( str, replies, timeout );
+  }
+  
+  Properties userMessageProperties( String toserverid )
+  {
+    Properties p = new Properties();
+    p.setProperty( "LBUToServerID",    toserverid     );
+    p.setProperty( "LBUFromServerID",  serverid       );
+    p.setProperty( "LBUPluginID",      pluginid       );
+    p.setProperty( "LBUType",          "" );
+    p.setProperty( "LBUSubType",       ""        );
+    return p;
+  }
+ 
+  /**
+   * Sets the size above which binary payloads are compressed before they
+   * are sent.
+   * 
+   * @param bytes Size in bytes. Integer.MAX_VALUE switches compression off.
+   */
+  public void setCompressionThreshold( int bytes )
+  {
+    compressionthreshold = bytes;
+  }
+  
+  /**
+   * Sets the largest binary payload that will be accepted from a peer,
+   * measured after decompression. Larger payloads are logged and dropped
+   * without being inflated, so a bad length in a message can't make this
+   * server allocate a huge array. Use ClusterStreams for larger data.
+   * 
+   * @param bytes Size in bytes.
+   */
+  public void setMaxPayloadSize( int bytes )
+  {
+    maxpayloadsize = bytes;
+  }
+  
+  /**
+   * Send binary data to all the connected peers. The array is not copied
+   * and must not be changed until the message has been sent.
+   * 
+   * @param data The payload.
+   */
+  public void sendBytesToAll( byte[] data )
+  {
+    sendBytesTo( ByteBuffer.wrap( data ), "*" );
+  }
+  
+  /**
+   * Send binary data to all the connected peers. The remaining bytes of
+   * the buffer are sent and its position is not changed. A buffer backed by
+   * an array is not copied and must not be changed until the message has
+   * been sent.
+   * 
+   * @param data The payload.
+   */
+  public void sendBytesToAll( ByteBuffer data )
+  {
+    sendBytesTo( data, "*" );
+  }
+  
+  /**
+   * Send binary data to all the connected peers, optionally leaving out
+   * this server. See sendBytesToAll( ByteBuffer ).
+   * 
+   * @param data The payload.
+   * @param includelocal False if this server's own listener should not
+   * get the message.
+   */
+  public void sendBytesToAll( ByteBuffer data, boolean includelocal )
+  {
+    if ( !started || failed )
+    {
+      logger.error( "Unable to send bytes message. Not started or starting failed." );
+      return;
+    }
+    sendBytesAsync( data, "*", includelocal ).whenComplete( this::logSendFailure );
+  }
+  
+  /**
+   * Send binary data to one server. The array is not copied and must not
+   * be changed until the message has been sent.
+   * 
+   * @param data The payload.
+   * @param toserverid The server that should receive the message.
+   */
+  public void sendBytesTo( byte[] data, String toserverid )
+  {
+    sendBytesTo( ByteBuffer.wrap( data ), toserverid );
+  }
+  
+  /**
+   * Send binary data to one server. The remaining bytes of the buffer are
+   * sent and its position is not changed. A buffer backed by an array is
+   * not copied and must not be changed until the message has been sent.
+   * 
+   * @param data The payload.
+   * @param toserverid The server that should receive the message.
+   */
+  public void sendBytesTo( ByteBuffer data, String toserverid )
+  {
+    if ( !started || failed )
+    {
+      logger.error( "Unable to send bytes message. Not started or starting failed." );
+      return;
+    }
+    sendBytesAsync( data, toserverid ).whenComplete( this::logSendFailure );
+  }
+  
+  /**
+   * Send binary data to one server without waiting for it to be sent.
+   * Payloads larger than the compression threshold are compressed.
+   * 
+   * @param data The payload. See sendBytesTo.
+   * @param toserverid The server that should receive the message or "*".
+   * @return A future that completes when the message has been sent.
+   */
+  public CompletableFuture<Void> sendBytesAsync( ByteBuffer data, String toserverid )
+  {
+    return sendBytesAsync( data, toserverid, true );
+  }
+  
+  CompletableFuture<Void> sendBytesAsync( ByteBuffer data, String toserverid, boolean includelocal )
+  {
+    if ( !started || failed )
+    {
+      CompletableFuture<Void> future = new CompletableFuture<>();
+      future.completeExceptionally( new IllegalStateException( "Not started or starting failed." ) );
+      return future;
+    }
+    
+    byte[] array;
+    int offset, length = data.remaining();
+    if ( data.hasArray() )
+    {
+      array = data.array();
+      offset = data.arrayOffset() + data.position();
+    }
+    else
+    {
+      array = new byte[ length ];
+      data.duplicate().get( array );
+      offset = 0;
+    }
+    
+    Properties p = userMessageProperties( toserverid );
+    // Not worth compressing something that won't leave this server.
+    if ( length > compressionthreshold && !serverid.equals( toserverid ) )
+    {
+      byte[] compressed = PayloadCodec.compress( array, offset, length );
+      if ( compressed != null )
+      {
+        p.setProperty( PayloadCodec.COMPRESSION_PROPERTY, PayloadCodec.DEFLATE );
+        p.setProperty( PayloadCodec.UNCOMPRESSED_LENGTH_PROPERTY, Integer.toString( length ) );
+        array = compressed;
+        offset = 0;
+        length = compressed.length;
+      }
+    }
+    
+    if ( logger.isDebugEnabled() )
+      logger.debug( "-----> " + serverid + " sending bytes message to " + toserverid );
+    OutboundMessage m = new OutboundMessage( array, offset, length, p );
+    m.includelocal = includelocal;
+    return send( m );
+  }
+ 
+  void logSendFailure( Void v, Throwable ex )
+  {
+    if ( ex != null )
+      logger.error( "Unable to send message via BB connection pool. ", ex );
+  }
+  
+  void sendCoordinationMessage( String command ) throws JMSException
+  {
+    sendCoordinationMessage( command, "*" );
+  }
+  
+  void sendCoordinationMessage( String command, String to ) throws JMSException
+  {
+    sendCoordinationMessage( command, to, null );
+  }
+  
+  CompletableFuture<Void> sendCoordinationMessage( String command, String to, Properties extra ) throws JMSException
+  {
+    if ( !started || failed )
+    {
+      logger.error( "Unable to send text message. Not started or starting failed." );
+      CompletableFuture<Void> future = new CompletableFuture<>();
+      future.completeExceptionally( new IllegalStateException( "Not started or starting failed." ) );
+      return future;
+    }
+    Properties p = new Properties();
+    p.setProperty( "LBUToServerID",          to                         );
+    p.setProperty( "LBUFromServerID",        serverid                   );
+    p.setProperty( "LBUFromServerStartTime", Long.toString( starttime ) );
+    p.setProperty( "LBUPluginID",            pluginid                   );
+    p.setProperty( "LBUType",                "coordination"             );
+    p.setProperty( "LBUSubType",             command                    );
+    if ( extra != null )
+      p.putAll( extra );
+    
+    if ( logger.isDebugEnabled() )
+      logger.debug( "-----> " + serverid + " sending coordination " + command + " to " + to );
+    CompletableFuture<Void> future = send( "", p );
+    future.whenComplete( this::logSendFailure );
+    return future;
+  }
+  
+  void sendStartingMessage() throws JMSException
+  {
+    sendCoordinationMessage( "STARTING" );
+  }
+
+  void sendDiscoverMessage() throws JMSException
+  {
+    sendCoordinationMessage( "DISCOVER" );
+  }
+
+  void sendRunningMessage() throws JMSException
+  {
+    sendCoordinationMessage( "RUNNING" );
+  }
+
+  /**
+   * A heartbeat is a RUNNING message with an extra property so that older
+   * servers still treat it as a sign of life.
+   */
+  void sendHeartbeatMessage() throws JMSException
+  {
+    // The sent time lets peers see how late heartbeats arrive, as long as
+    // the servers' clocks roughly agree.
+    long t = System.nanoTime();
+    Properties p = new Properties();
+    p.setProperty( "LBUHeartbeat", "true" );
+    p.setProperty( "LBUSentTime", Long.toString( System.currentTimeMillis() ) );
+    sendCoordinationMessage( "RUNNING", "*", p ).thenRun( () -> metrics.recordHeartbeatSend( System.nanoTime() - t ) );
+  }
+
+  void sendStoppingMessage() throws JMSException
+  {
+    sendCoordinationMessage( "STOPPING" );
+  }
+
+  void sendPingMessage() throws JMSException
+  {
+    // The time is only meaningful to this JVM. It comes back in the pong
+    // so the round trip time can be measured.
+    Properties p = new Properties();
+    p.setProperty( "LBUPingTime", Long.toString( System.nanoTime() ) );
+    sendCoordinationMessage( "PING", "*", p );
+  }
+  
+  void sendPongMessage( String to, String pingtime ) throws JMSException
+  {
+    Properties p = null;
+    if ( pingtime != null )
+    {
+      p = new Properties();
+      p.setProperty( "LBUPingTime", pingtime );
+    }
+    sendCoordinationMessage( "PONG", to, p );
+  }
+
+  @Override
+  public void onMessage( Message message )
+  {
+    try
+    {
+      // The transport should already have done this but the unfiltered 
+      // fallback subscription gets everything. Our own messages have
+      // already been delivered locally.
+      String to = message.getStringProperty( "LBUToServerID" );
+      if ( to == null || ( !"*".equals(to) && !serverid.equals(to) ) )
+        return;
+      if ( serverid.equals( message.getStringProperty( "LBUFromServerID" ) ) )
+        return;
+    }
+    catch (JMSException ex)
+    {
+      logger.error( "Exception while processing incoming message.", ex );
+      return;
+    }
+    consume( message );
+  }
+  
+  /**
+   * Handle a message addressed to this server, whether it came from the
+   * broker or was sent by this server.
+   * 
+   * @param message The message.
+   */
+  void consume( Message message )
+  {
+    try
     {
-      String to = message.getStringProperty( "LBUToServerID" );
-      if ( to == null || ( !"*".equals(to) && !serverid.equals(to) ) )
-        return;
       String type = message.getStringProperty( "LBUType" );
+      metrics.recordReceived( type, message.getStringProperty( "LBUSubType" ) );
+      CoordinatorMessageHandler handler;
       if ( "coordination".equals( type ) )
         consumeCoordinationMessage( message );
+      else if ( type != null && (handler = handlers.get( type )) != null )
+        handler.consume( message );
+      else if ( type != null && !type.isEmpty() )
+      {
+        // Belongs to a lease, cache, counter or stream that isn't running
+        // on this server. Not for the user's listener.
+        if ( logger.isDebugEnabled() )
+          logger.debug( serverid + " dropped message of unhandled type " + type );
+      }
       else if ( listener != null )
       {
-        logger.debug( "<----- " + serverid + " received user message from " + message.getStringProperty( "LBUFromServerID" ) );
-        listener.consumeMessage( message );
+        String from = message.getStringProperty( "LBUFromServerID" );
+        if ( logger.isDebugEnabled() )
+          logger.debug( "<----- " + serverid + " received user message from " + from );
+        dispatchUserWork( from, () -> deliver( message ) );
       }
     }
     catch (JMSException ex)
     {
       logger.error( "Exception while processing incoming message.", ex );
     }
+    catch (InterruptedException ex)
+    {
+      Thread.currentThread().interrupt();
+      logger.error( "Interrupted while waiting to dispatch incoming message.", ex );
+    }
   }
 
-    
-  ActiveMQConnectionPool getConnectionPool() {
-    if (BbServiceManager.isServiceInitialized(MessageQueueService.class.getName())) {
-      ActiveMQMessageQueueService activeMQMessageQueueService
-              = (ActiveMQMessageQueueService) BbServiceManager.safeLookupService(MessageQueueService.class);
-      return activeMQMessageQueueService.getConnectionPool();
+  /**
+   * Run some work for an incoming message on the dispatcher if there is
+   * one or on the calling thread if not.
+   * 
+   * @param from The server the message came from.
+   * @param work The work.
+   * @throws InterruptedException If interrupted while waiting for space
+   * in the dispatcher.
+   */
+  void dispatchUserWork( String from, Runnable work ) throws InterruptedException
+  {
+    MessageDispatcher d = dispatcher;
+    if ( d == null )
+      work.run();
+    else
+      d.dispatch( from, work );
+  }
+  
+  /**
+   * Pass a user message to the listener.
+   */
+  void deliver( Message message )
+  {
+    long t = System.nanoTime();
+    try
+    {
+      deliverToListener( message );
+    }
+    finally
+    {
+      metrics.recordDispatch( System.nanoTime() - t );
     }
-    return null;
   }
-
   
-  class StarterThread extends Thread
+  private void deliverToListener( Message message )
   {
-    @Override
-    public void run()
+    if ( bytelistener && message instanceof BytesMessage )
     {
-      try { Thread.sleep( 1000 ); }
-      catch (InterruptedException ex) {}
       try
-      {        
-        sendStartingMessage();
-        sendDiscoverMessage();
+      {
+        listener.consumeBytes( message, PayloadCodec.readPayload( (BytesMessage)message, maxpayloadsize ) );
       }
-      catch (JMSException ex)
+      catch ( JMSException ex )
       {
-        logger.error( "Exception trying to start messaging system.", ex );
-        failed = true;
+        logger.error( "Unable to read incoming bytes message.", ex );
       }
     }
+    else
+      listener.consumeMessage( message );
   }
-
-  class PingerThread extends Thread
+  
+  /**
+   * Listeners that only implement consumeMessage are given bytes messages
+   * untouched, as they were before sendBytes existed, rather than after
+   * the body has been read.
+   */
+  static boolean overridesConsumeBytes( BuildingBlockPeerMessageListener listener )
   {
-    boolean running = false;
-    Random random = new Random( System.currentTimeMillis() );
-
-    public PingerThread()
+    if ( listener == null )
+      return false;
+    try
     {
-      super( "BuildingBlockCoordinator.PingerThread" );
+      return listener.getClass().getMethod( "consumeBytes", Message.class, ByteBuffer.class ).getDeclaringClass() 
+              != BuildingBlockPeerMessageListener.class;
     }
-    
-    @Override
-    public synchronized void start()
+    catch ( NoSuchMethodException ex )
     {
-      running = true;
-      super.start();
+      return false;
     }
-
-    @Override
-    public void run()
-    {
-      while ( running )
-      {
-        try
-        { 
-          Thread.sleep( (pingrate/2 + random.nextInt(pingrate) )*1000L );
-          if ( started && !failed )
-            try { sendPingMessage(); } catch ( JMSException ex ) {}
-        }
-        catch (InterruptedException ex) {  }
-      }
-    }    
   }
 
-  synchronized List<PeerRecord> getPeerRecordList()
+
+  
+  List<PeerRecord> getPeerRecordList()
   {
-    LinkedList<PeerRecord> list = new LinkedList<>();
-    for ( PeerRecord r : this.peersbyage )
-      list.add( r );
-    return list;
+    return peers.list();
   }
   
-  synchronized String getOldestPeerName()
+  String getOldestPeerName()
   {
     thinPeers();
-    if ( this.peersbyage.isEmpty() ) return null;
-    return this.peersbyage.get( 0 ).name;
+    PeerRecord r = peers.oldest();
+    return r == null ? null : r.name;
   }
   
-  synchronized String getNewestPeerName()
+  String getNewestPeerName()
   {
     thinPeers();
-    if ( this.peersbyage.isEmpty() ) return null;
-    return this.peersbyage.get( this.peersbyage.size() - 1 ).name;
+    PeerRecord r = peers.newest();
+    return r == null ? null : r.name;
   }
   
-  synchronized PeerRecord getPeer( String name )
+  PeerRecord getPeer( String name )
   {
-    return this.knownpeers.get( name );
+    return peers.get( name );
   }
   
-  synchronized boolean hasPeer( String name )
+  boolean hasPeer( String name )
   {
-    return this.knownpeers.containsKey( name );
+    return peers.contains( name );
   }
   
-  synchronized void removePeer( String name )
+  void removePeer( String name )
   {
-    PeerRecord record = this.knownpeers.get( name );
-    this.knownpeers.remove( name );
-    this.peersbyage.remove( record );
+    if ( peers.remove( name ) != null )
+    {
+      metrics.recordPeerLeave();
+      peerschanged = true;
+      for ( BuildingBlockMembershipListener l : membershiplisteners )
+      {
+        try
+        {
+          l.peerLeft( name );
+        }
+        catch ( RuntimeException ex )
+        {
+          logger.error( "Exception in membership listener.", ex );
+        }
+      }
+    }
   }
   
-  synchronized void addPeer( String name, long starttime )
+  void addPeer( String name, long starttime )
   {
-    PeerRecord record = new PeerRecord( name, starttime );
-    this.knownpeers.put( name, record );
-    this.peersbyage.add( record );
-    this.peersbyage.sort(( PeerRecord o1, PeerRecord o2 ) ->
+    if ( peers.add( name, starttime ) != null )
     {
-      if ( o1.starttime < o2.starttime ) return -1;
-      if ( o1.starttime > o2.starttime ) return  1;
-      return 0;
-    });
+      metrics.recordPeerJoin();
+      peerschanged = true;
+      for ( BuildingBlockMembershipListener l : membershiplisteners )
+      {
+        try
+        {
+          l.peerJoined( name, starttime );
+        }
+        catch ( RuntimeException ex )
+        {
+          logger.error( "Exception in membership listener.", ex );
+        }
+      }
+    }
   }
   
-  synchronized void touchPeer( String name )
+  void touchPeer( String name )
   {
-    if ( !hasPeer( name ) )
-      return;
-    knownpeers.get( name ).lastcontacttime = System.currentTimeMillis();
+    peers.touch( name );
   }
   
-  synchronized void thinPeers()
+  void thinPeers()
   {
-    long now = System.currentTimeMillis();
-    boolean updated = false;
-    for ( PeerRecord record : getPeerRecordList() )
+    List<PeerRecord> expired = peers.expire();
+    if ( expired.isEmpty() )
+      return;
+    metrics.recordPeerLeaves( expired.size() );
+    peerschanged = true;
+    // This runs on the heartbeat task, which a listener's exception would
+    // cancel, so each listener's exceptions are logged and go no further.
+    for ( PeerRecord r : expired )
     {
-      long age = now - record.lastcontacttime;
-      if ( age > PEER_TIMEOUT )
+      for ( BuildingBlockMembershipListener l : membershiplisteners )
       {
-        removePeer( record.name );
-        updated = true;
+        try
+        {
+          l.peerTimedOut( r.name );
+        }
+        catch ( RuntimeException ex )
+        {
+          logger.error( "Exception in membership listener.", ex );
+        }
       }
     }
-    if ( updated )
-      logPeers();
+    logPeersIfChanged();
   }
   
-  void logPeers()
+  /**
+   * Logs the peer list if it has changed since it was last logged, but no
+   * more often than PEER_LOG_INTERVAL. A change that is held back is logged
+   * on a later call once the interval has passed.
+   */
+  void logPeersIfChanged()
+  {
+    if ( !peerschanged )
+      return;
+    long now = System.currentTimeMillis();
+    if ( now - lastpeerlog < PEER_LOG_INTERVAL )
+      return;
+    lastpeerlog = now;
+    peerschanged = false;
+    logPeers();
+  }
+  
+  /**
+   * Add an object to be told when peers join or leave.
+   * 
+   * @param l The listener.
+   */
+  public void addMembershipListener( BuildingBlockMembershipListener l )
+  {
+    membershiplisteners.add( l );
+  }
+  
+  /**
+   * Stop telling an object about peers joining or leaving.
+   * 
+   * @param l The listener.
+   */
+  public void removeMembershipListener( BuildingBlockMembershipListener l )
+  {
+    membershiplisteners.remove( l );
+  }
+  
+  /**
+   * Gets the server IDs of the known peers, including this server.
+   * 
+   * @return The IDs, oldest first.
+   */
+  public List<String> getPeerNames()
+  {
+    thinPeers();
+    List<PeerRecord> list = peers.list();
+    ArrayList<String> names = new ArrayList<>( list.size() );
+    for ( PeerRecord r : list )
+      names.add( r.name );
+    return names;
+  }
+  
+  /**
+   * Writes the current list of peers to the log at INFO level.
+   */
+  public void logPeers()
   {
     logger.info( "-----------------------" );
     logger.info( "Peer list." );
@@ -518,18 +1549,4 @@ public class BuildingBlockCoordinator extends ActiveMQTopicSubscriber
       logger.info( r.name + " Started " + ((now - r.starttime)/1000L) + "s ago. Last heard from " + (now - r.lastcontacttime) + "ms ago." );
     logger.info( "-----------------------" );    
   }
-  
-  class PeerRecord
-  {
-    String name;
-    long starttime;
-    long lastcontacttime;
-
-    public PeerRecord( String name, long starttime )
-    {
-      this.name = name;
-      lastcontacttime = this.starttime = starttime;
-    }
-    
-  }
 }
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+/**
+ * Told when the set of peers known to a coordinator changes. Only real
+ * changes are reported, not every message that confirms a peer is still
+ * there. Methods are called on the thread that noticed the change, often
+ * the message delivery thread, so they should return quickly.
+ *
+ * @author jon
+ */
+public interface BuildingBlockMembershipListener
+{
+  /**
+   * A peer that wasn't known before has been heard from.
+   * 
+   * @param serverid The peer's server ID.
+   * @param starttime When the peer started.
+   */
+  public default void peerJoined( String serverid, long starttime )
+  {
+  }
+  
+  /**
+   * A peer has said that it is stopping.
+   * 
+   * @param serverid The peer's server ID.
+   */
+  public default void peerLeft( String serverid )
+  {
+  }
+  
+  /**
+   * A peer hasn't been heard from for too long and has been removed.
+   * 
+   * @param serverid The peer's server ID.
+   */
+  public default void peerTimedOut( String serverid )
+  {
+  }
+}
@@ -15,6 +15,9 @@
  */
 package uk.ac.leedsbeckett.bbb2utils.peertopeer;
 
+import java.nio.ByteBuffer;
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
 import javax.jms.Message;
 
 /**
@@ -29,4 +32,34 @@ public interface BuildingBlockPeerMessageListener
    * @param message
    */
   public void consumeMessage( Message message );  
+
+  /**
+   * Called for messages that were sent with one of the coordinator's
+   * sendBytes methods. The payload has already been read from the message
+   * and decompressed if necessary. The coordinator only calls this on
+   * listeners that override it. Other listeners get the message in
+   * consumeMessage with its body unread, and still compressed if its
+   * LBUCompression property is set.
+   * 
+   * By default the message is reset, so that its body can be read again,
+   * and passed to consumeMessage.
+   * 
+   * @param message The message, for its properties.
+   * @param data The payload.
+   */
+  public default void consumeBytes( Message message, ByteBuffer data )
+  {
+    if ( message instanceof BytesMessage )
+    {
+      try
+      {
+        ((BytesMessage)message).reset();
+      }
+      catch ( JMSException ex )
+      {
+        // Then the body can't be read again but the properties can.
+      }
+    }
+    consumeMessage( message );
+  }
 }
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import javax.jms.Message;
+
+/**
+ * Answers requests sent by peers with one of the coordinator's sendRequest
+ * methods.
+ *
+ * @author jon
+ */
+public interface BuildingBlockPeerRequestHandler
+{
+  /**
+   * Work out the reply to a request.
+   * 
+   * @param request The incoming request.
+   * @return The text of the reply or null to send no reply.
+   */
+  public String handleRequest( Message request );
+}
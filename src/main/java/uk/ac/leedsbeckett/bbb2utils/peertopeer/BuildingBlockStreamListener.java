@@ -0,0 +1,36 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+/**
+ * Told about streams that have arrived from peers through ClusterStreams.
+ * This is called on the message delivery thread, or by the dispatcher if
+ * one is enabled, after every chunk has arrived and been checked.
+ *
+ * @author jon
+ */
+public interface BuildingBlockStreamListener
+{
+  /**
+   * A whole stream has arrived. The listener owns the stream and must
+   * close it, which deletes its temporary file or frees its memory, 
+   * unless it throws an exception in which case the stream is closed 
+   * for it.
+   * 
+   * @param stream The stream.
+   */
+  public void streamReceived( ReceivedStream stream );
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+
+/**
+ * A group of counters and rate limiters that are shared by all the servers
+ * by gossip. Counting and taking permits only touch local state. Every
+ * gossip interval this server sends the counts that have changed here in
+ * as few messages as possible, and every so often, and whenever a peer
+ * joins, it sends everything it knows so that servers that missed gossip,
+ * for example across a network partition or after restarting, catch up.
+ * 
+ * Each server counts in a slot named after its server ID and start time,
+ * so a restarted server does not start again from zero in a slot that the
+ * others remember as larger.
+ *
+ * @author jon
+ */
+public class ClusterCounters
+{
+  public static final long DEFAULT_GOSSIP_INTERVAL = 1000;
+  public static final int FULL_STATE_ROUNDS = 10;
+  public static final int MAX_ENTRIES_PER_MESSAGE = 500;
+  static final String TYPE_PREFIX = "counters:";
+  
+  final BuildingBlockCoordinator coordinator;
+  final String name;
+  final String messagetype;
+  final ConcurrentHashMap<String,GCounter> counters = new ConcurrentHashMap<>();
+  final ConcurrentHashMap<String,PNCounter> pncounters = new ConcurrentHashMap<>();
+  final ConcurrentHashMap<String,ClusterRateLimiter> limiters = new ConcurrentHashMap<>();
+  final BuildingBlockMembershipListener membershiplistener;
+  final ScheduledFuture<?> gossiptask;
+  volatile boolean fullstatewanted = true;
+  int round = 0;
+
+  /**
+   * Creates a group that gossips every second.
+   * 
+   * @param coordinator The coordinator to gossip through.
+   * @param name Identifies the group. Groups with the same name on
+   * different servers share their counters.
+   */
+  public ClusterCounters( BuildingBlockCoordinator coordinator, String name )
+  {
+    this( coordinator, name, DEFAULT_GOSSIP_INTERVAL );
+  }
+  
+  /**
+   * Creates a group.
+   * 
+   * @param coordinator The coordinator to gossip through.
+   * @param name Identifies the group.
+   * @param gossipinterval Milliseconds between rounds of gossip.
+   */
+  public ClusterCounters( BuildingBlockCoordinator coordinator, String name, long gossipinterval )
+  {
+    this.coordinator = coordinator;
+    this.name = name;
+    this.messagetype = TYPE_PREFIX + name;
+    coordinator.handlers.put( messagetype, this::consume );
+    membershiplistener = new BuildingBlockMembershipListener()
+    {
+      @Override
+      public void peerJoined( String id, long starttime )
+      {
+        fullstatewanted = true;
+      }
+    };
+    coordinator.addMembershipListener( membershiplistener );
+    gossiptask = coordinator.scheduler.scheduleWithFixedDelay( 
+            this::gossip, gossipinterval, gossipinterval, TimeUnit.MILLISECONDS );
+  }
+  
+  /**
+   * Gets a grow only counter, making it if necessary.
+   * 
+   * @param countername The name of the counter.
+   * @return The counter.
+   */
+  public GCounter getGCounter( String countername )
+  {
+    return counter( "G:" + countername );
+  }
+  
+  /**
+   * Gets a counter that can go up and down, making it if necessary.
+   * 
+   * @param countername The name of the counter.
+   * @return The counter.
+   */
+  public PNCounter getPNCounter( String countername )
+  {
+    return pncounters.computeIfAbsent( countername, 
+            k -> new PNCounter( k, counter( "P:" + k ), counter( "N:" + k ) ) );
+  }
+  
+  /**
+   * Gets a rate limiter, making it if necessary. Every server must give
+   * the same rate and burst for the same name.
+   * 
+   * @param limitername The name of the limiter.
+   * @param permitspersecond The rate for the whole cluster.
+   * @param burst The most permits the whole cluster can save up.
+   * @return The limiter.
+   */
+  public ClusterRateLimiter getRateLimiter( String limitername, double permitspersecond, double burst )
+  {
+    return limiters.computeIfAbsent( limitername, 
+            k -> new ClusterRateLimiter( this, k, permitspersecond, burst, counter( "L:" + k ) ) );
+  }
+  
+  /**
+   * Stops gossiping and sends a last round.
+   */
+  public void close()
+  {
+    gossiptask.cancel( false );
+    coordinator.removeMembershipListener( membershiplistener );
+    coordinator.handlers.remove( messagetype );
+    coordinator.scheduler.execute( this::gossip );
+  }
+  
+  GCounter counter( String internalname )
+  {
+    GCounter c = counters.get( internalname );
+    return c != null ? c : counters.computeIfAbsent( internalname, GCounter::new );
+  }
+  
+  String ownSlot()
+  {
+    return coordinator.serverid + "@" + coordinator.starttime;
+  }
+  
+  int peerCount()
+  {
+    return Math.max( 1, coordinator.peers.size() );
+  }
+  
+  /**
+   * Sends this server's changed counts, or everything it knows every few
+   * rounds, then works out the rate limiter shares again. Runs on the 
+   * coordinator's scheduler thread.
+   */
+  void gossip()
+  {
+    try
+    {
+      gossipRound();
+    }
+    catch ( RuntimeException ex )
+    {
+      coordinator.logger.error( "Exception while gossiping counters.", ex );
+    }
+  }
+  
+  void gossipRound()
+  {
+    String slot = ownSlot();
+    boolean full = fullstatewanted || ++round % FULL_STATE_ROUNDS == 0;
+    fullstatewanted = false;
+    
+    List<String> items = new ArrayList<>();
+    for ( GCounter c : counters.values() )
+    {
+      long local = c.localValue();
+      if ( full )
+      {
+        for ( Map.Entry<String,Long> e : c.state( slot ).entrySet() )
+          add( items, c.name, e.getKey(), e.getValue() );
+      }
+      else if ( local != c.lastgossiped )
+        add( items, c.name, slot, local );
+      c.lastgossiped = local;
+      if ( items.size() >= MAX_ENTRIES_PER_MESSAGE * 3 )
+        send( items );
+    }
+    send( items );
+    
+    for ( ClusterRateLimiter l : limiters.values() )
+      l.rebalance( slot );
+  }
+  
+  static void add( List<String> items, String counter, String slot, long value )
+  {
+    items.add( counter );
+    items.add( slot );
+    items.add( Long.toString( value ) );
+  }
+  
+  void send( List<String> items )
+  {
+    if ( items.isEmpty() || !coordinator.started || coordinator.failed )
+    {
+      items.clear();
+      return;
+    }
+    Properties p = coordinator.userMessageProperties( "*" );
+    p.setProperty( "LBUType", messagetype );
+    coordinator.send( ClusterNearCache.encode( items ), p, false ).whenComplete( coordinator::logSendFailure );
+    items.clear();
+  }
+  
+  /**
+   * Merges counts gossiped by a peer. Entries for this server's own slot
+   * are ignored because the local count is always the latest.
+   */
+  void consume( Message message ) throws JMSException
+  {
+    if ( coordinator.serverid.equals( message.getStringProperty( "LBUFromServerID" ) ) )
+      return;
+    if ( !(message instanceof TextMessage) )
+      return;
+    String slot = ownSlot();
+    List<String> items = ClusterNearCache.decode( ((TextMessage)message).getText() );
+    for ( int i=0; i+2<items.size(); i+=3 )
+    {
+      if ( slot.equals( items.get( i+1 ) ) )
+        continue;
+      try
+      {
+        counter( items.get( i ) ).merge( items.get( i+1 ), Long.parseLong( items.get( i+2 ) ) );
+      }
+      catch ( NumberFormatException ex )
+      {
+        coordinator.logger.warn( "Bad count in gossip from " + message.getStringProperty( "LBUFromServerID" ) );
+      }
+    }
+  }
+}
@@ -0,0 +1,485 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+
+/**
+ * A local cache of values loaded from somewhere slow, for example the
+ * Blackboard database, which is kept consistent with the same cache on the
+ * other servers. When a value changes on one server it invalidates the key
+ * and every other server drops its copy.
+ * 
+ * Invalidations are not sent one by one. Keys are collected for a short
+ * window and then sent to all peers in batches. A server's own 
+ * invalidations are applied straight away and ignored when they come back.
+ * 
+ * The cache is divided into segments, each with its own lock, and has a
+ * maximum size, an optional time to live and either least recently used
+ * or least frequently used eviction. Keys are strings because they have to
+ * travel between servers.
+ *
+ * @author jon
+ * @param <V> The type of value cached.
+ */
+public class ClusterNearCache<V>
+{
+  /**
+   * How to choose entries to evict when the cache is full.
+   */
+  public enum Eviction
+  {
+    /** Evict the entry used longest ago. */
+    LRU,
+    /** Evict a rarely used entry, chosen from a sample of the oldest. */
+    LFU
+  }
+  
+  public static final long DEFAULT_COALESCE_WINDOW = 50;
+  public static final int MAX_KEYS_PER_MESSAGE = 500;
+  static final int SEGMENTS = 16;
+  static final int LFU_SAMPLE = 16;
+  static final String TYPE_PREFIX = "cache:";
+  
+  final BuildingBlockCoordinator coordinator;
+  final String name;
+  final String messagetype;
+  final long ttl;
+  final Eviction eviction;
+  final List<Segment> segments;
+  
+  final Set<String> pending = ConcurrentHashMap.newKeySet();
+  final AtomicBoolean flushscheduled = new AtomicBoolean( false );
+  volatile boolean pendingall = false;
+  volatile long coalescewindow = DEFAULT_COALESCE_WINDOW;
+  
+  final LongAdder hits = new LongAdder();
+  final LongAdder misses = new LongAdder();
+  final LongAdder evictions = new LongAdder();
+  final LongAdder expirations = new LongAdder();
+  final LongAdder invalidationssent = new LongAdder();
+  final LongAdder invalidationsreceived = new LongAdder();
+  final LongAdder messagessent = new LongAdder();
+
+  /**
+   * Creates a cache and starts listening for invalidations from peers.
+   * 
+   * @param coordinator The coordinator to send invalidations through.
+   * @param name Identifies the cache. Caches with the same name on
+   * different servers invalidate each other.
+   * @param maxsize The most entries the cache will hold.
+   * @param ttl Milliseconds an entry lives for, or zero for no limit.
+   * @param eviction How to choose entries to evict.
+   */
+  public ClusterNearCache( BuildingBlockCoordinator coordinator, String name, int maxsize, long ttl, Eviction eviction )
+  {
+    this.coordinator = coordinator;
+    this.name = name;
+    this.messagetype = TYPE_PREFIX + name;
+    this.ttl = ttl;
+    this.eviction = eviction == null ? Eviction.LRU : eviction;
+    int n = Math.max( 1, Math.min( SEGMENTS, maxsize / 64 ) );
+    segments = new ArrayList<>( n );
+    int segmentsize = Math.max( 1, (maxsize + n - 1) / n );
+    for ( int i=0; i<n; i++ )
+      segments.add( new Segment( segmentsize ) );
+    coordinator.handlers.put( messagetype, this::consume );
+  }
+  
+  /**
+   * Sets how long invalidations are collected before they are sent.
+   * 
+   * @param millis The window in milliseconds. Default is 50.
+   */
+  public void setCoalesceWindow( long millis )
+  {
+    coalescewindow = Math.max( 0L, millis );
+  }
+  
+  Segment segmentFor( String key )
+  {
+    int h = key.hashCode();
+    return segments.get( ((h ^ (h >>> 16)) & 0x7fffffff) % segments.size() );
+  }
+  
+  /**
+   * Gets a cached value.
+   * 
+   * @param key The key.
+   * @return The value or null if it isn't cached or has expired.
+   */
+  public V get( String key )
+  {
+    V v = segmentFor( key ).get( key );
+    if ( v == null )
+      misses.increment();
+    else
+      hits.increment();
+    return v;
+  }
+  
+  /**
+   * Gets a cached value, loading and caching it if necessary. The loader
+   * runs without any lock held. If the key is invalidated while it runs
+   * the loaded value is returned but not cached.
+   * 
+   * @param key The key.
+   * @param loader Loads the value. May return null, which isn't cached.
+   * @return The value.
+   */
+  public V get( String key, Function<String,V> loader )
+  {
+    Segment segment = segmentFor( key );
+    V v = segment.get( key );
+    if ( v != null )
+    {
+      hits.increment();
+      return v;
+    }
+    misses.increment();
+    long version = segment.version();
+    v = loader.apply( key );
+    if ( v != null )
+      segment.putIfUnchanged( key, v, version );
+    return v;
+  }
+  
+  /**
+   * Puts a value in the local cache only. Use invalidate as well if other
+   * servers may hold an older value.
+   * 
+   * @param key The key.
+   * @param value The value.
+   */
+  public void put( String key, V value )
+  {
+    segmentFor( key ).put( key, value );
+  }
+  
+  /**
+   * Removes a key here and, after the coalescing window, on all the other
+   * servers.
+   * 
+   * @param key The key.
+   */
+  public void invalidate( String key )
+  {
+    segmentFor( key ).remove( key );
+    pending.add( key );
+    scheduleFlush();
+  }
+  
+  /**
+   * Empties the cache here and on all the other servers.
+   */
+  public void invalidateAll()
+  {
+    clearLocal();
+    pendingall = true;
+    scheduleFlush();
+  }
+  
+  /**
+   * Stops listening for invalidations and sends any that are waiting.
+   */
+  public void close()
+  {
+    coordinator.handlers.remove( messagetype );
+    flush();
+  }
+  
+  /** @return The number of entries cached. */
+  public int size()
+  {
+    int n = 0;
+    for ( Segment s : segments )
+      n += s.size();
+    return n;
+  }
+  
+  /** @return Lookups that found a value. */
+  public long getHitCount() { return hits.sum(); }
+  /** @return Lookups that found nothing. */
+  public long getMissCount() { return misses.sum(); }
+  /** @return Entries removed to make room. */
+  public long getEvictionCount() { return evictions.sum(); }
+  /** @return Entries found to have outlived the time to live. */
+  public long getExpirationCount() { return expirations.sum(); }
+  /** @return Keys sent to peers for invalidation. */
+  public long getInvalidationsSent() { return invalidationssent.sum(); }
+  /** @return Keys invalidated at the request of peers. */
+  public long getInvalidationsReceived() { return invalidationsreceived.sum(); }
+  /** @return Invalidation messages sent. */
+  public long getInvalidationMessagesSent() { return messagessent.sum(); }
+  
+  void clearLocal()
+  {
+    for ( Segment s : segments )
+      s.clear();
+  }
+  
+  void scheduleFlush()
+  {
+    if ( !flushscheduled.compareAndSet( false, true ) )
+      return;
+    try
+    {
+      coordinator.scheduler.schedule( this::flush, coalescewindow, TimeUnit.MILLISECONDS );
+    }
+    catch ( RejectedExecutionException ex )
+    {
+      flushscheduled.set( false );
+    }
+  }
+  
+  /**
+   * Sends all the waiting invalidations in as few messages as possible.
+   */
+  void flush()
+  {
+    flushscheduled.set( false );
+    if ( pendingall )
+    {
+      pendingall = false;
+      pending.clear();
+      Properties p = properties();
+      p.setProperty( "LBUCacheInvalidateAll", "true" );
+      messagessent.increment();
+      coordinator.send( "", p, false ).whenComplete( coordinator::logSendFailure );
+      return;
+    }
+    
+    List<String> batch = new ArrayList<>();
+    Iterator<String> it = pending.iterator();
+    while ( it.hasNext() )
+    {
+      batch.add( it.next() );
+      it.remove();
+      if ( batch.size() == MAX_KEYS_PER_MESSAGE || !it.hasNext() )
+      {
+        invalidationssent.add( batch.size() );
+        messagessent.increment();
+        coordinator.send( encode( batch ), properties(), false ).whenComplete( coordinator::logSendFailure );
+        batch.clear();
+      }
+    }
+  }
+  
+  Properties properties()
+  {
+    Properties p = coordinator.userMessageProperties( "*" );
+    p.setProperty( "LBUType", messagetype );
+    return p;
+  }
+  
+  /**
+   * Applies invalidations sent by peers.
+   */
+  void consume( Message message ) throws JMSException
+  {
+    if ( coordinator.serverid.equals( message.getStringProperty( "LBUFromServerID" ) ) )
+      return;
+    if ( message.propertyExists( "LBUCacheInvalidateAll" ) )
+    {
+      clearLocal();
+      return;
+    }
+    if ( !(message instanceof TextMessage) )
+      return;
+    List<String> keys = decode( ((TextMessage)message).getText() );
+    invalidationsreceived.add( keys.size() );
+    for ( String key : keys )
+      segmentFor( key ).remove( key );
+  }
+  
+  /**
+   * Ends each key with a new line, escaping back slashes and new lines in
+   * the keys themselves. Ending rather than separating the keys means an
+   * empty key is still a key, and a list holding only an empty key is not
+   * mistaken for an empty list.
+   */
+  static String encode( List<String> keys )
+  {
+    StringBuilder sb = new StringBuilder();
+    for ( String key : keys )
+    {
+      for ( int i=0; i<key.length(); i++ )
+      {
+        char c = key.charAt( i );
+        if ( c == '\\' )
+          sb.append( "\\\\" );
+        else if ( c == '\n' )
+          sb.append( "\\n" );
+        else
+          sb.append( c );
+      }
+      sb.append( '\n' );
+    }
+    return sb.toString();
+  }
+  
+  /**
+   * Splits what encode made back into keys. A last key with no new line
+   * after it, as older versions sent, is kept too.
+   */
+  static List<String> decode( String text )
+  {
+    List<String> keys = new ArrayList<>();
+    if ( text == null || text.isEmpty() )
+      return keys;
+    StringBuilder sb = new StringBuilder();
+    for ( int i=0; i<text.length(); i++ )
+    {
+      char c = text.charAt( i );
+      if ( c == '\n' )
+      {
+        keys.add( sb.toString() );
+        sb.setLength( 0 );
+      }
+      else if ( c == '\\' && i+1 < text.length() )
+      {
+        char e = text.charAt( ++i );
+        sb.append( e == 'n' ? '\n' : e );
+      }
+      else
+        sb.append( c );
+    }
+    if ( sb.length() > 0 )
+      keys.add( sb.toString() );
+    return keys;
+  }
+  
+  class Entry
+  {
+    final V value;
+    final long expiresat;
+    int uses = 1;
+
+    Entry( V value )
+    {
+      this.value = value;
+      this.expiresat = ttl > 0L ? System.currentTimeMillis() + ttl : Long.MAX_VALUE;
+    }
+  }
+  
+  class Segment
+  {
+    final int maxsize;
+    final LinkedHashMap<String,Entry> map;
+    long version = 0L;
+
+    Segment( int maxsize )
+    {
+      this.maxsize = maxsize;
+      // Access order gives LRU. LFU uses insertion order so the sample is 
+      // taken from the oldest entries.
+      this.map = new LinkedHashMap<>( 16, 0.75f, eviction == Eviction.LRU );
+    }
+    
+    synchronized V get( String key )
+    {
+      Entry e = map.get( key );
+      if ( e == null )
+        return null;
+      if ( System.currentTimeMillis() >= e.expiresat )
+      {
+        map.remove( key );
+        expirations.increment();
+        return null;
+      }
+      e.uses++;
+      return e.value;
+    }
+    
+    synchronized long version()
+    {
+      return version;
+    }
+    
+    synchronized void put( String key, V value )
+    {
+      map.put( key, new Entry( value ) );
+      evict();
+    }
+    
+    synchronized void putIfUnchanged( String key, V value, long expectedversion )
+    {
+      if ( version == expectedversion )
+        put( key, value );
+    }
+    
+    synchronized void remove( String key )
+    {
+      map.remove( key );
+      version++;
+    }
+    
+    synchronized void clear()
+    {
+      map.clear();
+      version++;
+    }
+    
+    synchronized int size()
+    {
+      return map.size();
+    }
+    
+    private void evict()
+    {
+      while ( map.size() > maxsize )
+      {
+        Iterator<Map.Entry<String,Entry>> it = map.entrySet().iterator();
+        if ( eviction == Eviction.LRU )
+        {
+          it.next();
+          it.remove();
+        }
+        else
+        {
+          String victim = null;
+          int fewest = Integer.MAX_VALUE;
+          for ( int i=0; i<LFU_SAMPLE && it.hasNext(); i++ )
+          {
+            Map.Entry<String,Entry> me = it.next();
+            if ( me.getValue().uses < fewest )
+            {
+              fewest = me.getValue().uses;
+              victim = me.getKey();
+            }
+          }
+          map.remove( victim );
+        }
+        evictions.increment();
+      }
+    }
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A token bucket that limits something across the whole cluster, for
+ * example how many emails are sent per second by all the servers together.
+ * 
+ * Each server has its own bucket holding a share of the cluster's rate and
+ * burst, so asking for a permit never waits for the network. Every server 
+ * counts the permits asked for in a grow only counter and at each gossip
+ * round the shares are worked out again from how much each server asked 
+ * for since the last round. Every live server keeps a floor of a quarter
+ * of an equal share so that it can start asking without waiting a round.
+ * A new limiter has only that floor until the first round has run.
+ * The rest is divided max-min fairly: servers asking for less than an
+ * equal split get what they asked for and the busier servers divide what
+ * is left. Any rate nobody asked for is divided equally.
+ * 
+ * While every server agrees on the number of peers and on the counts the
+ * shares add up to one, so the cluster grants no more than the rate plus
+ * the burst. Shares are worked out from counts up to one gossip interval 
+ * old, so when demand moves between servers the total can briefly be a 
+ * little over or under. In a round where the shares the servers work out
+ * add up to more than one, the excess is granted on top of the rate for
+ * that round, and the burst grows by the same fraction until the shares
+ * agree again. A server cut off from the others keeps its last share 
+ * until it notices they have gone and then takes a larger share.
+ *
+ * @author jon
+ */
+public class ClusterRateLimiter
+{
+  final ClusterCounters counters;
+  final String name;
+  final double rate;
+  final double burst;
+  final GCounter demand;
+  
+  double share;
+  double tokens;
+  long lastrefill;
+  Map<String,Long> previousdemand = new HashMap<>();
+  long lastrebalance;
+  
+  final LongAdder granted = new LongAdder();
+  final LongAdder denied = new LongAdder();
+
+  ClusterRateLimiter( ClusterCounters counters, String name, double rate, double burst, GCounter demand )
+  {
+    this( counters, name, rate, burst, demand, System.nanoTime() );
+  }
+  
+  ClusterRateLimiter( ClusterCounters counters, String name, double rate, double burst, GCounter demand, long now )
+  {
+    this.counters = counters;
+    this.name = name;
+    this.rate = rate;
+    this.burst = burst;
+    this.demand = demand;
+    // Only the floor until the first round. Servers that start together
+    // may not have found each other yet and would each take everything.
+    this.share = 1.0 / (4.0 * counters.peerCount());
+    this.tokens = burst * share;
+    this.lastrefill = now;
+    this.lastrebalance = now;
+  }
+  
+  /** @return The name of the limiter. */
+  public String getName()
+  {
+    return name;
+  }
+  
+  /**
+   * Takes one permit if there is one.
+   * 
+   * @return True if the permit was granted.
+   */
+  public boolean tryAcquire()
+  {
+    return tryAcquire( 1 );
+  }
+  
+  /**
+   * Takes a number of permits if there are enough. Either all are granted
+   * or none.
+   * 
+   * @param permits How many permits.
+   * @return True if the permits were granted.
+   */
+  public boolean tryAcquire( int permits )
+  {
+    return tryAcquire( permits, System.nanoTime() );
+  }
+  
+  boolean tryAcquire( int permits, long now )
+  {
+    demand.add( permits );
+    synchronized ( this )
+    {
+      refill( now );
+      if ( tokens >= permits )
+      {
+        tokens -= permits;
+        granted.add( permits );
+        return true;
+      }
+    }
+    denied.add( permits );
+    return false;
+  }
+  
+  /** @return The fraction of the cluster's rate this server has now. */
+  public synchronized double getShare() { return share; }
+  /** @return Permits granted on this server. */
+  public long getGrantedCount() { return granted.sum(); }
+  /** @return Permits refused on this server. */
+  public long getDeniedCount() { return denied.sum(); }
+  
+  void refill( long now )
+  {
+    tokens = Math.min( burst * share, tokens + rate * share * (now - lastrefill) / 1.0e9 );
+    lastrefill = now;
+  }
+  
+  /**
+   * Works out this server's share from the demand on every server since
+   * the last time. Every server does the same sums with the same counts
+   * so they come to the same shares.
+   */
+  void rebalance( String ownslot )
+  {
+    rebalance( ownslot, System.nanoTime() );
+  }
+  
+  synchronized void rebalance( String ownslot, long now )
+  {
+    double seconds = Math.max( 1.0e-3, (now - lastrebalance) / 1.0e9 );
+    lastrebalance = now;
+    
+    Map<String,Long> current = demand.state( ownslot );
+    List<Double> wanted = new ArrayList<>();
+    double ownwanted = 0.0;
+    for ( Map.Entry<String,Long> e : current.entrySet() )
+    {
+      Long before = previousdemand.get( e.getKey() );
+      long d = Math.max( 0L, e.getValue() - (before == null ? 0L : before) );
+      // The fraction of the cluster rate this slot asked for.
+      double w = d / (rate * seconds);
+      if ( w > 0.0 )
+        wanted.add( w );
+      if ( ownslot.equals( e.getKey() ) )
+        ownwanted = w;
+    }
+    previousdemand = current;
+    
+    int n = counters.peerCount();
+    double floor = 1.0 / (4.0 * n);
+    double remaining = 1.0 - n * floor;
+    
+    // Fill from the least demanding up. Level ends as the most that any
+    // one server gets on top of its floor.
+    Collections.sort( wanted );
+    double level = Double.POSITIVE_INFINITY;
+    int left = wanted.size();
+    for ( double w : wanted )
+    {
+      double extra = Math.max( 0.0, w - floor );
+      if ( extra * left <= remaining )
+      {
+        remaining -= extra;
+        left--;
+      }
+      else
+      {
+        level = remaining / left;
+        remaining = 0.0;
+        break;
+      }
+    }
+    double ownextra = Math.min( Math.max( 0.0, ownwanted - floor ), level );
+    
+    refill( now );
+    share = floor + ownextra + remaining / n;
+    tokens = Math.min( tokens, burst * share );
+  }
+}
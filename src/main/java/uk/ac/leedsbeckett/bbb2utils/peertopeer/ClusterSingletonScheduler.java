@@ -0,0 +1,474 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * Runs periodic jobs on exactly one server in the cluster. Each job is
+ * guarded by a lease that one server holds for a limited time and keeps
+ * renewing by broadcasting over the coordinator. A server only runs a job
+ * while it holds an unexpired lease for it.
+ * 
+ * When a lease is free the server that owns the job name by rendezvous
+ * hashing claims it. A claim is broadcast and the claimant waits a short
+ * window for objections before taking the lease. If two servers claim at
+ * once the one with the lower server ID wins. A server that is stopping
+ * releases its leases so another can take over straight away. A server
+ * that dies simply stops renewing and its leases expire.
+ * 
+ * Every server keeps its own record of when each lease expires measured on
+ * its own clock from when it heard of it. The holder counts from when it
+ * sent the renewal so its own view always runs out before anyone else's.
+ * 
+ * Every server should register the same jobs with the same lease duration.
+ * 
+ * Leases are maintained on their own thread so that a slow job can't
+ * delay renewals. Whether this server holds the lease is only checked
+ * when a run starts, so a run that takes longer than the time left on the
+ * lease can overlap with a run on the next holder. A run that finishes
+ * after its lease was lost is logged and counted. Jobs that run for long
+ * should call holdsLease between steps and stop if it returns false, or
+ * be safe to overlap.
+ *
+ * @author jon
+ */
+public class ClusterSingletonScheduler implements BuildingBlockMembershipListener
+{
+  public static final long DEFAULT_LEASE_DURATION = 30 * 1000;
+  static final String LEASE_TYPE = "lease";
+  
+  final BuildingBlockCoordinator coordinator;
+  final long leaseduration;
+  final long claimwindow;
+  final long safetymargin;
+  final ConcurrentHashMap<String,Lease> leases = new ConcurrentHashMap<>();
+  final ScheduledThreadPoolExecutor executor;
+  final ScheduledThreadPoolExecutor leaseexecutor;
+  final ScheduledFuture<?> maintenance;
+  
+  final LatencyHistogram acquisitionlatency = new LatencyHistogram();
+  final LongAdder acquisitions = new LongAdder();
+  final LongAdder losses = new LongAdder();
+  final LongAdder runs = new LongAdder();
+  final LongAdder overruns = new LongAdder();
+
+  /**
+   * Creates a scheduler with the default lease duration.
+   * 
+   * @param coordinator The coordinator to send lease messages through.
+   */
+  public ClusterSingletonScheduler( BuildingBlockCoordinator coordinator )
+  {
+    this( coordinator, DEFAULT_LEASE_DURATION );
+  }
+  
+  /**
+   * Creates a scheduler.
+   * 
+   * @param coordinator The coordinator to send lease messages through.
+   * @param leaseduration How long a lease lasts without renewal, in
+   * milliseconds. Leases are renewed three times per duration.
+   */
+  public ClusterSingletonScheduler( BuildingBlockCoordinator coordinator, long leaseduration )
+  {
+    this.coordinator = coordinator;
+    this.leaseduration = Math.max( 3000L, leaseduration );
+    this.claimwindow = Math.max( 1000L, this.leaseduration / 15 );
+    this.safetymargin = this.leaseduration / 10;
+    AtomicInteger n = new AtomicInteger();
+    this.executor = new ScheduledThreadPoolExecutor( 2, r ->
+    {
+      Thread t = new Thread( r, "ClusterSingletonScheduler-" + n.incrementAndGet() );
+      t.setDaemon( true );
+      return t;
+    });
+    this.executor.setRemoveOnCancelPolicy( true );
+    this.leaseexecutor = new ScheduledThreadPoolExecutor( 1, r ->
+    {
+      Thread t = new Thread( r, "ClusterSingletonScheduler-Leases" );
+      t.setDaemon( true );
+      return t;
+    });
+    this.leaseexecutor.setRemoveOnCancelPolicy( true );
+    coordinator.handlers.put( LEASE_TYPE, this::consume );
+    coordinator.addMembershipListener( this );
+    long tick = this.leaseduration / 3;
+    maintenance = leaseexecutor.scheduleWithFixedDelay( this::maintainAll, tick, tick, TimeUnit.MILLISECONDS );
+  }
+  
+  /**
+   * Register a job to run periodically on whichever server holds its
+   * lease. On other servers the scheduled runs are skipped.
+   * 
+   * @param name Identifies the job across the cluster.
+   * @param job The work.
+   * @param initialdelay Delay before the first run.
+   * @param period Time between runs.
+   * @param unit Unit of the delay and period.
+   */
+  public void schedule( String name, Runnable job, long initialdelay, long period, TimeUnit unit )
+  {
+    Lease lease = leases.computeIfAbsent( name, Lease::new );
+    executor.scheduleAtFixedRate( () -> 
+    {
+      if ( !holdsLease( name ) )
+        return;
+      runs.increment();
+      try
+      {
+        job.run();
+      }
+      catch ( RuntimeException ex )
+      {
+        coordinator.logger.error( "Exception in cluster singleton job " + name, ex );
+      }
+      if ( !holdsLease( name ) )
+      {
+        overruns.increment();
+        coordinator.logger.warn( "Cluster singleton job " + name + " finished after this server's lease ran out so it may have overlapped with a run on another server." );
+      }
+    }, initialdelay, period, unit );
+    submit( lease );
+  }
+  
+  /**
+   * Checks whether this server currently holds the lease for a job.
+   * 
+   * @param name The job.
+   * @return True if this server may run the job now.
+   */
+  public boolean holdsLease( String name )
+  {
+    Lease lease = leases.get( name );
+    if ( lease == null )
+      return false;
+    synchronized ( lease )
+    {
+      return coordinator.serverid.equals( lease.holder ) 
+              && System.currentTimeMillis() < lease.expiry - safetymargin;
+    }
+  }
+  
+  /**
+   * Gets the server this server believes holds the lease for a job.
+   * 
+   * @param name The job.
+   * @return The server ID or null if the lease is free or unknown.
+   */
+  public String getLeaseHolder( String name )
+  {
+    Lease lease = leases.get( name );
+    if ( lease == null )
+      return null;
+    synchronized ( lease )
+    {
+      return System.currentTimeMillis() < lease.expiry ? lease.holder : null;
+    }
+  }
+  
+  /** @return Time from starting a claim to holding the lease. */
+  public HistogramSnapshot getLeaseAcquisitionLatency() { return acquisitionlatency.snapshot(); }
+  /** @return The number of leases this server has taken. */
+  public long getAcquisitionCount() { return acquisitions.sum(); }
+  /** @return The number of leases this server has lost or given up. */
+  public long getLossCount() { return losses.sum(); }
+  /** @return The number of job runs on this server. */
+  public long getRunCount() { return runs.sum(); }
+  /** @return The number of runs that finished after the lease ran out. */
+  public long getOverrunCount() { return overruns.sum(); }
+  
+  /**
+   * Releases all leases held by this server and stops running jobs. This
+   * should be called before the coordinator is destroyed.
+   */
+  public void shutdown()
+  {
+    maintenance.cancel( false );
+    for ( Lease lease : leases.values() )
+    {
+      boolean held;
+      synchronized ( lease )
+      {
+        held = coordinator.serverid.equals( lease.holder );
+        lease.holder = null;
+        lease.expiry = 0L;
+      }
+      if ( held )
+      {
+        losses.increment();
+        send( "RELEASE", lease.name );
+      }
+    }
+    executor.shutdownNow();
+    leaseexecutor.shutdownNow();
+    coordinator.handlers.remove( LEASE_TYPE );
+    coordinator.removeMembershipListener( this );
+  }
+  
+  void submit( Lease lease )
+  {
+    try
+    {
+      leaseexecutor.execute( () -> maintain( lease ) );
+    }
+    catch ( RejectedExecutionException ex )
+    {
+      // shutting down
+    }
+  }
+  
+  void maintainAll()
+  {
+    for ( Lease lease : leases.values() )
+      maintain( lease );
+  }
+  
+  /**
+   * Renews a lease this server holds, completes a claim whose window has
+   * passed or starts a claim if the lease is free and this server should
+   * have it.
+   */
+  void maintain( Lease lease )
+  {
+    String serverid = coordinator.serverid;
+    long now = System.currentTimeMillis();
+    synchronized ( lease )
+    {
+      if ( serverid.equals( lease.holder ) )
+      {
+        if ( now >= lease.expiry - safetymargin )
+        {
+          // Renewals have not been getting through.
+          lease.holder = null;
+          lease.freesince = now;
+          losses.increment();
+        }
+        else
+        {
+          renew( lease, now );
+          return;
+        }
+      }
+      
+      if ( lease.claimstarted > 0L )
+      {
+        if ( lease.lostclaim )
+        {
+          lease.claimstarted = 0L;
+        }
+        else if ( now >= lease.claimstarted + claimwindow )
+        {
+          lease.holder = serverid;
+          lease.expiry = lease.claimstarted + leaseduration;
+          acquisitionlatency.record( TimeUnit.MILLISECONDS.toNanos( now - lease.claimstarted ) );
+          acquisitions.increment();
+          lease.claimstarted = 0L;
+          send( "GRANT", lease.name );
+          return;
+        }
+        else
+          return;
+      }
+      
+      if ( lease.holder != null && now < lease.expiry )
+        return;
+      if ( lease.holder != null )
+      {
+        lease.holder = null;
+        lease.freesince = now;
+      }
+      // The rendezvous owner claims first. Anyone claims if the lease has
+      // been free for a long time, for example because the owner hasn't
+      // been detected as dead yet.
+      if ( !serverid.equals( coordinator.ownerOf( "lease:" + lease.name ) ) 
+              && now - lease.freesince < 2 * leaseduration )
+        return;
+      lease.claimstarted = now;
+      lease.lostclaim = false;
+      send( "CLAIM", lease.name );
+    }
+    try
+    {
+      leaseexecutor.schedule( () -> maintain( lease ), claimwindow, TimeUnit.MILLISECONDS );
+    }
+    catch ( RejectedExecutionException ex )
+    {
+      // shutting down
+    }
+  }
+  
+  private void renew( Lease lease, long now )
+  {
+    send( "RENEW", lease.name ).whenComplete( ( v, ex ) ->
+    {
+      if ( ex != null )
+        return;
+      synchronized ( lease )
+      {
+        if ( coordinator.serverid.equals( lease.holder ) )
+          lease.expiry = Math.max( lease.expiry, now + leaseduration );
+      }
+    });
+  }
+  
+  CompletableFuture<Void> send( String subtype, String name )
+  {
+    Properties p = coordinator.userMessageProperties( "*" );
+    p.setProperty( "LBUType", LEASE_TYPE );
+    p.setProperty( "LBUSubType", subtype );
+    p.setProperty( "LBULeaseName", name );
+    CompletableFuture<Void> f = coordinator.send( "", p, false );
+    f.whenComplete( coordinator::logSendFailure );
+    return f;
+  }
+  
+  /**
+   * Handles lease messages from other servers.
+   */
+  void consume( Message message ) throws JMSException
+  {
+    String from = message.getStringProperty( "LBUFromServerID" );
+    String serverid = coordinator.serverid;
+    if ( from == null || serverid.equals( from ) )
+      return;
+    String name = message.getStringProperty( "LBULeaseName" );
+    Lease lease = name == null ? null : leases.get( name );
+    if ( lease == null )
+      return;   // not a job this server runs
+    
+    String subtype = message.getStringProperty( "LBUSubType" );
+    long now = System.currentTimeMillis();
+    boolean reassert = false, recheck = false;
+    synchronized ( lease )
+    {
+      boolean iamholder = serverid.equals( lease.holder ) && now < lease.expiry;
+      switch ( subtype )
+      {
+        case "CLAIM":
+          if ( iamholder )
+            reassert = true;
+          else if ( lease.claimstarted > 0L && from.compareTo( serverid ) < 0 )
+            lease.lostclaim = true;
+          break;
+          
+        case "GRANT":
+        case "RENEW":
+          if ( iamholder && from.compareTo( serverid ) > 0 )
+          {
+            // Both think they hold it. The lower server ID keeps it.
+            reassert = true;
+            break;
+          }
+          if ( iamholder )
+            losses.increment();
+          if ( lease.claimstarted > 0L )
+            lease.lostclaim = true;
+          lease.holder = from;
+          lease.expiry = now + leaseduration;
+          break;
+          
+        case "RELEASE":
+          if ( from.equals( lease.holder ) )
+          {
+            lease.holder = null;
+            lease.expiry = 0L;
+            lease.freesince = now;
+            recheck = true;
+          }
+          break;
+          
+        default:
+          break;
+      }
+    }
+    if ( reassert )
+      send( "RENEW", name );
+    if ( recheck )
+      submit( lease );
+  }
+
+  @Override
+  public void peerLeft( String serverid )
+  {
+    handover( serverid, true );
+  }
+
+  @Override
+  public void peerTimedOut( String serverid )
+  {
+    handover( serverid, false );
+  }
+  
+  /**
+   * A holder that has said it is stopping gives up its leases at once.
+   * One that has gone quiet keeps them until they expire, in case it is
+   * only slow, and then they are claimed in the usual way.
+   */
+  void handover( String holder, boolean stopped )
+  {
+    long now = System.currentTimeMillis();
+    for ( Lease lease : leases.values() )
+    {
+      long delay;
+      synchronized ( lease )
+      {
+        if ( !holder.equals( lease.holder ) )
+          continue;
+        if ( stopped )
+        {
+          lease.holder = null;
+          lease.expiry = 0L;
+          lease.freesince = now;
+        }
+        delay = Math.max( 0L, lease.expiry - now );
+      }
+      try
+      {
+        leaseexecutor.schedule( () -> maintain( lease ), delay, TimeUnit.MILLISECONDS );
+      }
+      catch ( RejectedExecutionException ex )
+      {
+        // shutting down
+      }
+    }
+  }
+  
+  static class Lease
+  {
+    final String name;
+    String holder = null;
+    long expiry = 0L;
+    long freesince = System.currentTimeMillis();
+    long claimstarted = 0L;
+    boolean lostclaim = false;
+
+    Lease( String name )
+    {
+      this.name = name;
+    }
+  }
+}
@@ -0,0 +1,1223 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+
+/**
+ * Sends streams of data that are too big to go in one message, such as 
+ * state exports, to one peer or to all of them. The data is read from an
+ * InputStream or ByteBuffer and sent in numbered chunks. Receivers put the
+ * chunks back together and pass the whole stream to a listener.
+ * 
+ * The sender only lets a window of chunks get ahead of the slowest
+ * receiver's acknowledgements, and keeps just those chunks in memory in 
+ * case they have to be sent again. A receiver that notices a gap, or hears
+ * nothing for a while, asks for the chunks it is missing and a sender that
+ * hears nothing from a receiver for a while sends again everything that
+ * receiver hasn't acknowledged. A receiver that makes no progress after
+ * several attempts is given up on.
+ * 
+ * Receivers keep chunks in memory until all the streams they hold would go
+ * over the memory ceiling. After that new streams, and the stream that 
+ * would have gone over, are written to a temporary file instead. Streams
+ * passed to the listener count against the ceiling until they are closed.
+ * 
+ * A stream sent to all servers goes to the peers known when sending 
+ * starts. Servers that join part way through are told to drop it.
+ *
+ * @author jon
+ */
+public class ClusterStreams
+{
+  public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+  public static final int MIN_CHUNK_SIZE = 1024;
+  public static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+  public static final int DEFAULT_WINDOW = 16;
+  public static final long DEFAULT_MEMORY_CEILING = 32L * 1024L * 1024L;
+  public static final long DEFAULT_MAX_STREAM_BYTES = 4L * 1024L * 1024L * 1024L;
+  public static final int DEFAULT_SENDERS = 2;
+  static final long RESEND_INTERVAL = 2000L;
+  static final int MAX_STALLS = 5;
+  static final long ABANDON_AFTER = 60000L;
+  static final int MAX_MISSING_PER_ACK = 1000;
+  static final String TYPE_PREFIX = "stream:";
+  
+  final BuildingBlockCoordinator coordinator;
+  final String name;
+  final String messagetype;
+  final BuildingBlockStreamListener listener;
+  final File tempdirectory;
+  final long memoryceiling;
+  final ExecutorService senders;
+  final BuildingBlockMembershipListener membershiplistener;
+  final ScheduledFuture<?> maintenancetask;
+  
+  final ConcurrentHashMap<String,OutgoingStream> outgoing = new ConcurrentHashMap<>();
+  final ConcurrentHashMap<String,IncomingStream> incoming = new ConcurrentHashMap<>();
+  final ConcurrentHashMap<String,Long> completed = new ConcurrentHashMap<>();
+  final ConcurrentHashMap<String,Long> abandoned = new ConcurrentHashMap<>();
+  final AtomicLong nextid = new AtomicLong();
+  final AtomicLong memoryinuse = new AtomicLong();
+  
+  volatile int chunksize = DEFAULT_CHUNK_SIZE;
+  volatile int window = DEFAULT_WINDOW;
+  volatile long maxstreambytes = DEFAULT_MAX_STREAM_BYTES;
+  
+  final LongAdder chunkssent = new LongAdder();
+  final LongAdder chunksresent = new LongAdder();
+  final LongAdder chunksreceived = new LongAdder();
+  final LongAdder streamssent = new LongAdder();
+  final LongAdder streamsnotdelivered = new LongAdder();
+  final LongAdder streamsreceived = new LongAdder();
+  final LongAdder streamsspilled = new LongAdder();
+  final LongAdder streamsabandoned = new LongAdder();
+
+  /**
+   * Creates a channel for streams with the default memory ceiling, using 
+   * the system's temporary directory.
+   * 
+   * @param coordinator The coordinator to send through.
+   * @param name Identifies the channel. Channels with the same name on
+   * different servers send streams to each other.
+   * @param listener Told about incoming streams, or null if this server 
+   * only sends.
+   */
+  public ClusterStreams( BuildingBlockCoordinator coordinator, String name, BuildingBlockStreamListener listener )
+  {
+    this( coordinator, name, listener, null, DEFAULT_MEMORY_CEILING );
+  }
+
+  /**
+   * Creates a channel for streams.
+   * 
+   * @param coordinator The coordinator to send through.
+   * @param name Identifies the channel.
+   * @param listener Told about incoming streams, or null.
+   * @param tempdirectory Where to put streams that don't fit in memory or
+   * null for the system's temporary directory.
+   * @param memoryceiling The most bytes of incoming streams to hold in 
+   * memory.
+   */
+  public ClusterStreams( BuildingBlockCoordinator coordinator, String name, BuildingBlockStreamListener listener, File tempdirectory, long memoryceiling )
+  {
+    this.coordinator = coordinator;
+    this.name = name;
+    this.messagetype = TYPE_PREFIX + name;
+    this.listener = listener;
+    this.tempdirectory = tempdirectory;
+    this.memoryceiling = memoryceiling;
+    this.senders = Executors.newFixedThreadPool( DEFAULT_SENDERS, r ->
+    {
+      Thread t = new Thread( r, "ClusterStreams.Sender-" + name );
+      t.setDaemon( true );
+      return t;
+    });
+    coordinator.handlers.put( messagetype, this::consume );
+    membershiplistener = new BuildingBlockMembershipListener()
+    {
+      @Override
+      public void peerLeft( String serverid )
+      {
+        forget( serverid );
+      }
+
+      @Override
+      public void peerTimedOut( String serverid )
+      {
+        forget( serverid );
+      }
+    };
+    coordinator.addMembershipListener( membershiplistener );
+    maintenancetask = coordinator.scheduler.scheduleWithFixedDelay( 
+            this::maintain, 1000L, 1000L, TimeUnit.MILLISECONDS );
+  }
+  
+  /**
+   * Sets the size of chunks for streams sent after this.
+   * 
+   * @param bytes Bytes per chunk, between MIN_CHUNK_SIZE and 
+   * MAX_CHUNK_SIZE.
+   */
+  public void setChunkSize( int bytes )
+  {
+    chunksize = Math.min( MAX_CHUNK_SIZE, Math.max( MIN_CHUNK_SIZE, bytes ) );
+  }
+
+  /**
+   * Sets how many chunks may be sent ahead of the slowest receiver, for 
+   * streams sent after this. The sender keeps up to this many chunks in
+   * memory for each stream.
+   * 
+   * @param chunks Chunks in flight.
+   */
+  public void setWindow( int chunks )
+  {
+    window = Math.max( 1, chunks );
+  }
+  
+  /**
+   * Sets the largest stream that will be accepted from a peer.
+   * 
+   * @param bytes The limit.
+   */
+  public void setMaxStreamBytes( long bytes )
+  {
+    maxstreambytes = bytes;
+  }
+  
+  /**
+   * Sends a stream to one server or to all the others. The input is read
+   * and then closed on a sender thread.
+   * 
+   * @param in The data.
+   * @param label Something to tell the receivers what the data is.
+   * @param toserverid The server that should receive the stream, or "*" 
+   * for every peer except this server.
+   * @return A future that completes when every receiver has the whole 
+   * stream, or fails if any of them could not be sent it.
+   */
+  public CompletableFuture<Void> sendStream( InputStream in, String label, String toserverid )
+  {
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    if ( !coordinator.started || coordinator.failed )
+    {
+      future.completeExceptionally( new IllegalStateException( "Not started or starting failed." ) );
+      return future;
+    }
+    if ( coordinator.serverid.equals( toserverid ) )
+    {
+      future.completeExceptionally( new IllegalArgumentException( "A stream can't be sent to this server." ) );
+      return future;
+    }
+    
+    List<String> receivers;
+    if ( "*".equals( toserverid ) )
+    {
+      receivers = new ArrayList<>( coordinator.getPeerNames() );
+      receivers.remove( coordinator.serverid );
+    }
+    else
+      receivers = Collections.singletonList( toserverid );
+    
+    String id = coordinator.starttime + "-" + nextid.incrementAndGet();
+    OutgoingStream s = new OutgoingStream( id, label == null ? "" : label, toserverid, chunksize, window, receivers, future );
+    outgoing.put( id, s );
+    try
+    {
+      senders.execute( () -> pump( s, in ) );
+    }
+    catch ( RejectedExecutionException ex )
+    {
+      outgoing.remove( id );
+      future.completeExceptionally( ex );
+    }
+    return future;
+  }
+  
+  /**
+   * Sends the remaining bytes of a buffer as a stream. The buffer's 
+   * position is not changed and it must not be changed until the future
+   * completes.
+   * 
+   * @param data The data.
+   * @param label Something to tell the receivers what the data is.
+   * @param toserverid The server that should receive the stream, or "*".
+   * @return A future as for sendStream.
+   */
+  public CompletableFuture<Void> sendBuffer( ByteBuffer data, String label, String toserverid )
+  {
+    return sendStream( new ByteBufferInputStream( data.duplicate() ), label, toserverid );
+  }
+  
+  /**
+   * Stops sending and receiving. Streams still being sent fail and 
+   * partly received streams are thrown away.
+   */
+  public void close()
+  {
+    maintenancetask.cancel( false );
+    coordinator.removeMembershipListener( membershiplistener );
+    coordinator.handlers.remove( messagetype );
+    senders.shutdownNow();
+    for ( IncomingStream s : incoming.values() )
+      synchronized ( s )
+      {
+        abandon( s );
+      }
+  }
+  
+  /** @return Chunks sent for the first time. A chunk sent to all counts once. */
+  public long getChunksSent() { return chunkssent.sum(); }
+  /** @return Chunks sent again because a receiver was missing them. */
+  public long getChunksResent() { return chunksresent.sum(); }
+  /** @return Chunks received from peers, not counting duplicates. */
+  public long getChunksReceived() { return chunksreceived.sum(); }
+  /** @return Streams that reached all their receivers. */
+  public long getStreamsSent() { return streamssent.sum(); }
+  /** @return Streams that failed to reach one or more receivers. */
+  public long getStreamsNotDelivered() { return streamsnotdelivered.sum(); }
+  /** @return Streams received whole and passed to the listener. */
+  public long getStreamsReceived() { return streamsreceived.sum(); }
+  /** @return Incoming streams that had to be written to a temporary file. */
+  public long getStreamsSpilled() { return streamsspilled.sum(); }
+  /** @return Incoming streams that were thrown away before they were complete. */
+  public long getStreamsAbandoned() { return streamsabandoned.sum(); }
+  /** @return Bytes of incoming streams held in memory. */
+  public long getMemoryInUse() { return memoryinuse.get(); }
+  
+  Properties properties( String to, String subtype, String id )
+  {
+    Properties p = coordinator.userMessageProperties( to );
+    p.setProperty( "LBUType", messagetype );
+    p.setProperty( "LBUSubType", subtype );
+    p.setProperty( "LBUStreamID", id );
+    return p;
+  }
+  
+  void sendText( String text, Properties p )
+  {
+    coordinator.send( text, p, false ).whenComplete( coordinator::logSendFailure );
+  }
+  
+  
+  //
+  // Sending
+  //
+  
+  /**
+   * Reads the input and sends it chunk by chunk, waiting whenever the
+   * window is full, then waits for every receiver to have the lot. Runs
+   * on a sender thread.
+   */
+  void pump( OutgoingStream s, InputStream in )
+  {
+    try
+    {
+      try ( InputStream input = in )
+      {
+        while ( await( s, false ) )
+        {
+          byte[] chunk = new byte[ s.chunksize ];
+          int n = input.readNBytes( chunk, 0, chunk.length );
+          if ( n == 0 )
+            break;
+          if ( n < chunk.length )
+            chunk = Arrays.copyOf( chunk, n );
+          sendChunk( s, s.add( chunk ), chunk, s.to );
+          chunkssent.increment();
+          if ( n < s.chunksize )
+            break;
+        }
+      }
+      boolean sendend;
+      synchronized ( s )
+      {
+        s.total = s.sent;
+        sendend = s.pending() > 0;
+      }
+      if ( sendend )
+        sendEnd( s, s.to );
+      while ( await( s, true ) );
+      finish( s );
+    }
+    catch ( IOException ex )
+    {
+      abort( s, ex );
+    }
+    catch ( InterruptedException ex )
+    {
+      Thread.currentThread().interrupt();
+      abort( s, ex );
+    }
+    catch ( RuntimeException ex )
+    {
+      coordinator.logger.error( "Exception while sending stream " + s.id, ex );
+      abort( s, ex );
+    }
+    finally
+    {
+      outgoing.remove( s.id );
+    }
+  }
+  
+  /**
+   * Waits until there is room in the window, or with forall set until
+   * there is no receiver left to wait for, sending anything that receivers
+   * are missing while waiting.
+   * 
+   * @return True if there is room in the window, false if there are no 
+   * receivers left waiting.
+   */
+  boolean await( OutgoingStream s, boolean forall ) throws InterruptedException
+  {
+    while ( true )
+    {
+      List<Resend> resends;
+      synchronized ( s )
+      {
+        if ( s.pending() == 0 )
+          return false;
+        if ( !forall && s.sent - s.lowestAcked() < s.window )
+          return true;
+        resends = s.takeResends( System.currentTimeMillis() );
+        if ( resends.isEmpty() )
+        {
+          s.wait( 250L );
+          continue;
+        }
+      }
+      for ( Resend r : resends )
+      {
+        for ( int i=0; i<r.seqs.size(); i++ )
+        {
+          sendChunk( s, r.seqs.get( i ), r.chunks.get( i ), r.to );
+          chunksresent.increment();
+        }
+        if ( r.end )
+          sendEnd( s, r.to );
+      }
+    }
+  }
+  
+  void sendChunk( OutgoingStream s, int seq, byte[] chunk, String to )
+  {
+    Properties p = properties( to, "chunk", s.id );
+    p.setProperty( "LBUStreamSeq", Integer.toString( seq ) );
+    s.describe( p );
+    byte[] body = chunk;
+    if ( chunk.length > coordinator.compressionthreshold )
+    {
+      byte[] compressed = PayloadCodec.compress( chunk, 0, chunk.length );
+      if ( compressed != null )
+      {
+        p.setProperty( PayloadCodec.COMPRESSION_PROPERTY, PayloadCodec.DEFLATE );
+        p.setProperty( PayloadCodec.UNCOMPRESSED_LENGTH_PROPERTY, Integer.toString( chunk.length ) );
+        body = compressed;
+      }
+    }
+    OutboundMessage m = new OutboundMessage( body, 0, body.length, p );
+    m.includelocal = false;
+    coordinator.send( m ).whenComplete( coordinator::logSendFailure );
+  }
+  
+  void sendEnd( OutgoingStream s, String to )
+  {
+    Properties p = properties( to, "end", s.id );
+    synchronized ( s )
+    {
+      p.setProperty( "LBUStreamChunks", Integer.toString( s.total ) );
+      p.setProperty( "LBUStreamLength", Long.toString( s.length ) );
+      p.setProperty( "LBUStreamCRC", Long.toString( s.crc.getValue() ) );
+    }
+    s.describe( p );
+    sendText( "", p );
+  }
+  
+  void finish( OutgoingStream s )
+  {
+    List<String> failed;
+    synchronized ( s )
+    {
+      failed = s.failedReceivers();
+      s.unacked.clear();
+    }
+    if ( failed.isEmpty() )
+    {
+      streamssent.increment();
+      s.future.complete( null );
+    }
+    else
+    {
+      streamsnotdelivered.increment();
+      s.future.completeExceptionally( new IOException( "Stream " + s.id + " was not delivered to " + failed ) );
+    }
+  }
+  
+  void abort( OutgoingStream s, Exception ex )
+  {
+    synchronized ( s )
+    {
+      s.unacked.clear();
+    }
+    Properties p = properties( s.to, "abort", s.id );
+    sendText( String.valueOf( ex.getMessage() ), p );
+    streamsnotdelivered.increment();
+    s.future.completeExceptionally( ex );
+  }
+  
+  /**
+   * A receiver has acknowledged chunks, asked for missing ones or said it
+   * has everything. Called on the message delivery thread.
+   */
+  void consumeAck( Message message, String from, String id ) throws JMSException
+  {
+    OutgoingStream s = outgoing.get( id );
+    if ( s == null )
+      return;
+    boolean stranger;
+    synchronized ( s )
+    {
+      Receiver r = s.receivers.get( from );
+      stranger = r == null;
+      if ( r != null && !r.failed && !r.complete )
+      {
+        int acked = parseInt( message.getStringProperty( "LBUStreamAcked" ), r.acked );
+        if ( acked > r.acked )
+        {
+          r.acked = Math.min( acked, s.sent );
+          r.lastprogress = System.currentTimeMillis();
+          r.stalls = 0;
+        }
+        if ( "true".equals( message.getStringProperty( "LBUStreamComplete" ) ) )
+          r.complete = true;
+        else if ( message instanceof TextMessage )
+        {
+          for ( String seq : ClusterNearCache.decode( ((TextMessage)message).getText() ) )
+          {
+            int n = parseInt( seq, -1 );
+            if ( n >= r.acked && n < s.sent )
+              r.missing.add( n );
+          }
+        }
+        s.release();
+        s.notifyAll();
+      }
+    }
+    // A server that joined after the stream started can't have it.
+    if ( stranger )
+      sendText( "Not a receiver of this stream.", properties( from, "abort", id ) );
+  }
+  
+  /**
+   * A receiver has given up on a stream.
+   */
+  void consumeReject( Message message, String from, String id ) throws JMSException
+  {
+    OutgoingStream s = outgoing.get( id );
+    if ( s == null )
+      return;
+    if ( message instanceof TextMessage )
+      coordinator.logger.warn( from + " rejected stream " + id + ": " + ((TextMessage)message).getText() );
+    synchronized ( s )
+    {
+      Receiver r = s.receivers.get( from );
+      if ( r != null && !r.complete )
+        r.failed = true;
+      s.release();
+      s.notifyAll();
+    }
+  }
+  
+  
+  //
+  // Receiving
+  //
+  
+  /**
+   * Handles every message for this channel. Acknowledgements are dealt
+   * with here and everything to do with incoming streams is passed to the
+   * dispatcher, if there is one, because it may write to disk.
+   */
+  void consume( Message message ) throws JMSException
+  {
+    String from = message.getStringProperty( "LBUFromServerID" );
+    String id = message.getStringProperty( "LBUStreamID" );
+    String subtype = message.getStringProperty( "LBUSubType" );
+    if ( from == null || id == null || subtype == null || coordinator.serverid.equals( from ) )
+      return;
+    if ( "ack".equals( subtype ) )
+      consumeAck( message, from, id );
+    else if ( "reject".equals( subtype ) )
+      consumeReject( message, from, id );
+    else
+    {
+      try
+      {
+        coordinator.dispatchUserWork( from, () -> consumeIncoming( message, from, id, subtype ) );
+      }
+      catch ( InterruptedException ex )
+      {
+        Thread.currentThread().interrupt();
+        coordinator.logger.error( "Interrupted while waiting to dispatch stream message.", ex );
+      }
+    }
+  }
+  
+  void consumeIncoming( Message message, String from, String id, String subtype )
+  {
+    String key = from + "/" + id;
+    ReceivedStream received = null;
+    try
+    {
+      if ( "abort".equals( subtype ) )
+      {
+        IncomingStream s = incoming.get( key );
+        if ( s != null )
+          synchronized ( s )
+          {
+            abandon( s );
+          }
+        abandoned.put( key, System.currentTimeMillis() );
+        return;
+      }
+      if ( abandoned.containsKey( key ) )
+        return;
+      if ( completed.containsKey( key ) )
+      {
+        // Our last acknowledgement must have been lost.
+        Properties p = properties( from, "ack", id );
+        p.setProperty( "LBUStreamComplete", "true" );
+        sendText( "", p );
+        return;
+      }
+      
+      IncomingStream s = incoming.computeIfAbsent( key, k -> new IncomingStream( k, from, id, message ) );
+      synchronized ( s )
+      {
+        if ( s.finished )
+          return;
+        s.lastactivity = System.currentTimeMillis();
+        if ( "chunk".equals( subtype ) && message instanceof BytesMessage )
+          received = receiveChunk( s, parseInt( message.getStringProperty( "LBUStreamSeq" ), -1 ), (BytesMessage)message );
+        else if ( "end".equals( subtype ) )
+        {
+          s.total = parseInt( message.getStringProperty( "LBUStreamChunks" ), -1 );
+          s.length = parseLong( message.getStringProperty( "LBUStreamLength" ), -1L );
+          s.crc = parseLong( message.getStringProperty( "LBUStreamCRC" ), -1L );
+          String bad = checkEnd( s );
+          if ( bad != null )
+          {
+            reject( s, bad );
+            return;
+          }
+          received = tryComplete( s );
+          if ( received == null && !s.finished )
+            sendAck( s );
+        }
+      }
+    }
+    catch ( JMSException ex )
+    {
+      coordinator.logger.error( "Unable to read stream message from " + from, ex );
+    }
+    if ( received != null )
+      deliver( received );
+  }
+  
+  /**
+   * Checks that a chunk fits the stream before anything is read or 
+   * allocated for it. The sequence number and chunk size come from the
+   * sender and a bad one could otherwise make a huge BitSet or a huge
+   * sparse file.
+   * 
+   * @return Why the stream should be rejected or null if the chunk is OK.
+   */
+  String checkChunk( IncomingStream s, int seq )
+  {
+    if ( s.chunksize < MIN_CHUNK_SIZE || s.chunksize > MAX_CHUNK_SIZE )
+      return "Chunk size " + s.chunksize + " is out of range.";
+    if ( seq < 0 || (long)seq * s.chunksize >= maxstreambytes )
+      return "Chunk " + seq + " is beyond the largest stream accepted.";
+    if ( s.total >= 0 && seq >= s.total )
+      return "Chunk " + seq + " is beyond the end of the stream.";
+    return null;
+  }
+  
+  /**
+   * Checks the end of a stream against its chunks.
+   * 
+   * @return Why the stream should be rejected or null if the end is OK.
+   */
+  String checkEnd( IncomingStream s )
+  {
+    if ( s.total < 0 || s.length < 0L || s.length > maxstreambytes )
+      return "Stream length is out of range.";
+    if ( s.highest >= s.total )
+      return "Chunks were sent beyond the end of the stream.";
+    return null;
+  }
+  
+  ReceivedStream receiveChunk( IncomingStream s, int seq, BytesMessage message ) throws JMSException
+  {
+    String bad = checkChunk( s, seq );
+    if ( bad != null )
+    {
+      reject( s, bad );
+      return null;
+    }
+    if ( s.received.get( seq ) )
+      return null;
+    return receiveChunk( s, seq, PayloadCodec.readPayload( message, Math.min( coordinator.maxpayloadsize, s.chunksize ) ) );
+  }
+  
+  ReceivedStream receiveChunk( IncomingStream s, int seq, ByteBuffer payload )
+  {
+    if ( seq < 0 || s.received.get( seq ) )
+      return null;
+    if ( payload.remaining() > s.chunksize )
+    {
+      reject( s, "Chunk " + seq + " is bigger than the chunk size." );
+      return null;
+    }
+    byte[] data;
+    if ( payload.hasArray() && payload.arrayOffset() == 0 && payload.remaining() == payload.array().length )
+      data = payload.array();
+    else
+    {
+      data = new byte[ payload.remaining() ];
+      payload.get( data );
+    }
+    
+    if ( s.bytes + data.length > maxstreambytes )
+    {
+      reject( s, "Stream is bigger than " + maxstreambytes + " bytes." );
+      return null;
+    }
+    try
+    {
+      store( s, seq, data );
+    }
+    catch ( IOException ex )
+    {
+      coordinator.logger.error( "Unable to store chunk of stream " + s.key, ex );
+      reject( s, "Unable to store chunk: " + ex.getMessage() );
+      return null;
+    }
+    s.received.set( seq );
+    s.bytes += data.length;
+    s.contiguous = s.received.nextClearBit( 0 );
+    s.highest = Math.max( s.highest, seq );
+    chunksreceived.increment();
+    
+    ReceivedStream r = tryComplete( s );
+    if ( r != null )
+      return r;
+    long now = System.currentTimeMillis();
+    if ( s.contiguous < s.highest && now - s.lastnack >= RESEND_INTERVAL )
+    {
+      s.lastnack = now;
+      sendAck( s );
+    }
+    else if ( s.contiguous >= s.lastackcount + s.ackevery )
+      sendAck( s );
+    return null;
+  }
+  
+  void store( IncomingStream s, int seq, byte[] data ) throws IOException
+  {
+    if ( s.file == null && memoryinuse.get() + data.length > memoryceiling )
+      spill( s );
+    if ( s.file == null )
+    {
+      s.chunks.put( seq, data );
+      s.memorybytes += data.length;
+      memoryinuse.addAndGet( data.length );
+    }
+    else
+    {
+      s.raf.seek( (long)seq * (long)s.chunksize );
+      s.raf.write( data );
+    }
+  }
+  
+  /**
+   * Moves the chunks of a stream from memory to a temporary file.
+   */
+  void spill( IncomingStream s ) throws IOException
+  {
+    s.file = File.createTempFile( "lbustream", ".tmp", tempdirectory );
+    s.raf = new RandomAccessFile( s.file, "rw" );
+    for ( Map.Entry<Integer,byte[]> e : s.chunks.entrySet() )
+    {
+      s.raf.seek( (long)e.getKey() * (long)s.chunksize );
+      s.raf.write( e.getValue() );
+    }
+    s.chunks.clear();
+    memoryinuse.addAndGet( -s.memorybytes );
+    s.memorybytes = 0L;
+    streamsspilled.increment();
+  }
+  
+  /**
+   * If every chunk and the end have arrived checks the data and makes the
+   * stream that will go to the listener.
+   */
+  ReceivedStream tryComplete( IncomingStream s )
+  {
+    if ( s.total < 0 || s.contiguous < s.total )
+      return null;
+    try
+    {
+      if ( s.raf != null )
+      {
+        s.raf.close();
+        s.raf = null;
+      }
+      if ( s.bytes != s.length || checksum( s ) != s.crc )
+      {
+        reject( s, "Stream was corrupted." );
+        return null;
+      }
+    }
+    catch ( IOException ex )
+    {
+      coordinator.logger.error( "Unable to check stream " + s.key, ex );
+      reject( s, "Unable to check stream: " + ex.getMessage() );
+      return null;
+    }
+    
+    s.finished = true;
+    incoming.remove( s.key );
+    completed.put( s.key, System.currentTimeMillis() );
+    Properties p = properties( s.from, "ack", s.id );
+    p.setProperty( "LBUStreamAcked", Integer.toString( s.total ) );
+    p.setProperty( "LBUStreamComplete", "true" );
+    sendText( "", p );
+    streamsreceived.increment();
+    return new ReceivedStream( s.from, s.id, s.label, s.length, s.file, 
+            s.file == null ? new ArrayList<>( s.chunks.values() ) : null, 
+            s.memorybytes, memoryinuse );
+  }
+  
+  long checksum( IncomingStream s ) throws IOException
+  {
+    CRC32 crc = new CRC32();
+    if ( s.file == null )
+    {
+      for ( byte[] chunk : s.chunks.values() )
+        crc.update( chunk );
+      return crc.getValue();
+    }
+    try ( RandomAccessFile raf = new RandomAccessFile( s.file, "r" ) )
+    {
+      byte[] buffer = new byte[ 64 * 1024 ];
+      int n;
+      while ( ( n = raf.read( buffer ) ) > 0 )
+        crc.update( buffer, 0, n );
+    }
+    return crc.getValue();
+  }
+  
+  void deliver( ReceivedStream received )
+  {
+    if ( listener == null )
+    {
+      received.close();
+      return;
+    }
+    try
+    {
+      listener.streamReceived( received );
+    }
+    catch ( RuntimeException ex )
+    {
+      coordinator.logger.error( "Exception in stream listener.", ex );
+      received.close();
+    }
+  }
+  
+  /**
+   * Tells the sender which chunks have arrived in order and which later
+   * ones are missing.
+   */
+  void sendAck( IncomingStream s )
+  {
+    Properties p = properties( s.from, "ack", s.id );
+    p.setProperty( "LBUStreamAcked", Integer.toString( s.contiguous ) );
+    List<String> missing = new ArrayList<>();
+    int limit = s.total >= 0 ? s.total : s.highest + 1;
+    for ( int i = s.received.nextClearBit( 0 ); i < limit && missing.size() < MAX_MISSING_PER_ACK; i = s.received.nextClearBit( i+1 ) )
+      missing.add( Integer.toString( i ) );
+    sendText( ClusterNearCache.encode( missing ), p );
+    s.lastackcount = s.contiguous;
+  }
+  
+  void reject( IncomingStream s, String reason )
+  {
+    abandon( s );
+    abandoned.put( s.key, System.currentTimeMillis() );
+    sendText( reason, properties( s.from, "reject", s.id ) );
+  }
+  
+  /**
+   * Throws away a partly received stream. Caller holds the stream's lock.
+   */
+  void abandon( IncomingStream s )
+  {
+    if ( s.finished )
+      return;
+    s.finished = true;
+    incoming.remove( s.key );
+    if ( s.raf != null )
+      try { s.raf.close(); } catch ( IOException ex ) {}
+    s.raf = null;
+    if ( s.file != null && !s.file.delete() )
+      s.file.deleteOnExit();
+    s.chunks.clear();
+    memoryinuse.addAndGet( -s.memorybytes );
+    s.memorybytes = 0L;
+    streamsabandoned.increment();
+  }
+  
+  /**
+   * Asks for missing chunks of streams that have gone quiet, gives up on
+   * streams that have been quiet too long and forgets old finished 
+   * streams. Runs on the coordinator's scheduler thread.
+   */
+  void maintain()
+  {
+    try
+    {
+      long now = System.currentTimeMillis();
+      for ( IncomingStream s : incoming.values() )
+        synchronized ( s )
+        {
+          if ( s.finished )
+            continue;
+          if ( now - s.lastactivity >= ABANDON_AFTER )
+          {
+            coordinator.logger.warn( "Giving up on stream " + s.key + " after hearing nothing for " + ABANDON_AFTER + "ms." );
+            abandon( s );
+            abandoned.put( s.key, now );
+          }
+          else if ( now - s.lastactivity >= RESEND_INTERVAL && now - s.lastnack >= RESEND_INTERVAL )
+          {
+            s.lastnack = now;
+            sendAck( s );
+          }
+        }
+      completed.values().removeIf( t -> now - t > ABANDON_AFTER );
+      abandoned.values().removeIf( t -> now - t > ABANDON_AFTER );
+    }
+    catch ( RuntimeException ex )
+    {
+      coordinator.logger.error( "Exception while maintaining streams.", ex );
+    }
+  }
+  
+  /**
+   * A peer has gone so stop sending to it and throw away what it was 
+   * sending.
+   */
+  void forget( String serverid )
+  {
+    for ( OutgoingStream s : outgoing.values() )
+      synchronized ( s )
+      {
+        Receiver r = s.receivers.get( serverid );
+        if ( r != null && !r.complete )
+          r.failed = true;
+        s.release();
+        s.notifyAll();
+      }
+    for ( IncomingStream s : incoming.values() )
+      if ( serverid.equals( s.from ) )
+        synchronized ( s )
+        {
+          abandon( s );
+        }
+  }
+  
+  static int parseInt( String s, int def )
+  {
+    try { return s == null ? def : Integer.parseInt( s ); }
+    catch ( NumberFormatException ex ) { return def; }
+  }
+  
+  static long parseLong( String s, long def )
+  {
+    try { return s == null ? def : Long.parseLong( s ); }
+    catch ( NumberFormatException ex ) { return def; }
+  }
+  
+  
+  /**
+   * A stream being sent and the state of each of its receivers. Guarded by
+   * its own lock.
+   */
+  static class OutgoingStream
+  {
+    final String id;
+    final String label;
+    final String to;
+    final int chunksize;
+    final int window;
+    final CompletableFuture<Void> future;
+    final LinkedHashMap<String,Receiver> receivers = new LinkedHashMap<>();
+    final TreeMap<Integer,byte[]> unacked = new TreeMap<>();
+    final CRC32 crc = new CRC32();
+    long length = 0L;
+    int sent = 0;
+    int total = -1;
+
+    OutgoingStream( String id, String label, String to, int chunksize, int window, List<String> names, CompletableFuture<Void> future )
+    {
+      this.id = id;
+      this.label = label;
+      this.to = to;
+      this.chunksize = chunksize;
+      this.window = window;
+      this.future = future;
+      long now = System.currentTimeMillis();
+      for ( String n : names )
+        receivers.put( n, new Receiver( now ) );
+    }
+    
+    /**
+     * Adds the properties a receiver needs to set up the stream, so that
+     * any message can be the first one it sees.
+     */
+    void describe( Properties p )
+    {
+      p.setProperty( "LBUStreamLabel", label );
+      p.setProperty( "LBUStreamChunkSize", Integer.toString( chunksize ) );
+      p.setProperty( "LBUStreamAckEvery", Integer.toString( Math.max( 1, window/4 ) ) );
+    }
+    
+    synchronized int add( byte[] chunk )
+    {
+      unacked.put( sent, chunk );
+      crc.update( chunk );
+      length += chunk.length;
+      return sent++;
+    }
+    
+    /** @return Receivers that haven't finished or failed. */
+    int pending()
+    {
+      int n = 0;
+      for ( Receiver r : receivers.values() )
+        if ( !r.failed && !r.complete )
+          n++;
+      return n;
+    }
+    
+    int lowestAcked()
+    {
+      int low = sent;
+      for ( Receiver r : receivers.values() )
+        if ( !r.failed && !r.complete )
+          low = Math.min( low, r.acked );
+      return low;
+    }
+    
+    /**
+     * Lets go of chunks that every receiver still in the running has.
+     */
+    void release()
+    {
+      unacked.headMap( lowestAcked() ).clear();
+    }
+    
+    List<String> failedReceivers()
+    {
+      List<String> list = new ArrayList<>();
+      for ( Map.Entry<String,Receiver> e : receivers.entrySet() )
+        if ( e.getValue().failed || !e.getValue().complete )
+          list.add( e.getKey() );
+      return list;
+    }
+    
+    /**
+     * Collects the chunks receivers have asked for and, for receivers 
+     * that have gone quiet, everything they haven't acknowledged. A 
+     * receiver that stays quiet too many times is given up on.
+     */
+    List<Resend> takeResends( long now )
+    {
+      List<Resend> list = new ArrayList<>();
+      boolean changed = false;
+      for ( Map.Entry<String,Receiver> e : receivers.entrySet() )
+      {
+        Receiver r = e.getValue();
+        if ( r.failed || r.complete )
+          continue;
+        boolean end = false;
+        if ( now - r.lastprogress >= RESEND_INTERVAL )
+        {
+          r.lastprogress = now;
+          if ( ++r.stalls > MAX_STALLS )
+          {
+            r.failed = true;
+            changed = true;
+            continue;
+          }
+          for ( int i=r.acked; i<sent; i++ )
+            r.missing.add( i );
+          end = total >= 0;
+        }
+        if ( r.missing.isEmpty() && !end )
+          continue;
+        Resend resend = new Resend( e.getKey(), end );
+        for ( Iterator<Integer> it = r.missing.iterator(); it.hasNext(); )
+        {
+          Integer seq = it.next();
+          byte[] chunk = unacked.get( seq );
+          if ( chunk != null )
+          {
+            resend.seqs.add( seq );
+            resend.chunks.add( chunk );
+          }
+          it.remove();
+        }
+        list.add( resend );
+      }
+      if ( changed )
+        release();
+      return list;
+    }
+  }
+  
+  static class Receiver
+  {
+    final TreeSet<Integer> missing = new TreeSet<>();
+    int acked = 0;
+    boolean complete = false;
+    boolean failed = false;
+    long lastprogress;
+    int stalls = 0;
+
+    Receiver( long now )
+    {
+      this.lastprogress = now;
+    }
+  }
+  
+  static class Resend
+  {
+    final String to;
+    final boolean end;
+    final List<Integer> seqs = new ArrayList<>();
+    final List<byte[]> chunks = new ArrayList<>();
+
+    Resend( String to, boolean end )
+    {
+      this.to = to;
+      this.end = end;
+    }
+  }
+  
+  /**
+   * A stream being received. Chunks are held in memory until the stream
+   * is spilled to a file. Guarded by its own lock.
+   */
+  static class IncomingStream
+  {
+    final String key;
+    final String from;
+    final String id;
+    final String label;
+    final int chunksize;
+    final int ackevery;
+    final BitSet received = new BitSet();
+    final TreeMap<Integer,byte[]> chunks = new TreeMap<>();
+    long memorybytes = 0L;
+    long bytes = 0L;
+    File file = null;
+    RandomAccessFile raf = null;
+    int contiguous = 0;
+    int highest = -1;
+    int total = -1;
+    long length = -1L;
+    long crc = -1L;
+    int lastackcount = 0;
+    long lastactivity = System.currentTimeMillis();
+    long lastnack = 0L;
+    boolean finished = false;
+
+    IncomingStream( String key, String from, String id, Message message )
+    {
+      this.key = key;
+      this.from = from;
+      this.id = id;
+      String l = null;
+      int size = DEFAULT_CHUNK_SIZE, every = 1;
+      try
+      {
+        l = message.getStringProperty( "LBUStreamLabel" );
+        size  = parseInt( message.getStringProperty( "LBUStreamChunkSize" ), size );
+        every = parseInt( message.getStringProperty( "LBUStreamAckEvery" ), every );
+      }
+      catch ( JMSException ex )
+      {
+      }
+      this.label = l == null ? "" : l;
+      this.chunksize = size;
+      this.ackevery = Math.max( 1, every );
+    }
+  }
+  
+  /**
+   * Reads a byte buffer without changing the original's position.
+   */
+  static class ByteBufferInputStream extends InputStream
+  {
+    final ByteBuffer buffer;
+
+    ByteBufferInputStream( ByteBuffer buffer )
+    {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read()
+    {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read( byte[] b, int off, int len )
+    {
+      if ( len == 0 )
+        return 0;
+      if ( !buffer.hasRemaining() )
+        return -1;
+      int n = Math.min( len, buffer.remaining() );
+      buffer.get( b, off, n );
+      return n;
+    }
+  }
+}
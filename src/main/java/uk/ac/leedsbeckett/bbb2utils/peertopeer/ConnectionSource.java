@@ -0,0 +1,45 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import org.apache.activemq.ActiveMQConnection;
+
+/**
+ * Where the coordinator gets its connections to the broker. By default
+ * connections are borrowed from Blackboard's message queue service but
+ * another source can be given to the coordinator, for example one that
+ * connects to an embedded broker so that coordinators can be tested and
+ * benchmarked outside Blackboard.
+ *
+ * @author jon
+ */
+public interface ConnectionSource
+{
+  /**
+   * Gets a connection. It does not need to have been started.
+   * 
+   * @return A connection.
+   * @throws Exception If no connection can be had.
+   */
+  public ActiveMQConnection getConnection() throws Exception;
+  
+  /**
+   * Gives back a connection that was got from this source. 
+   * 
+   * @param connection The connection.
+   */
+  public void releaseConnection( ActiveMQConnection connection );
+}
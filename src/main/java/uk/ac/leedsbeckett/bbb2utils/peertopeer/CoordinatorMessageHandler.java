@@ -0,0 +1,31 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * Something inside the coordinator that consumes all incoming messages of
+ * one LBUType. Handlers are called on the message delivery thread so they
+ * must not block.
+ *
+ * @author jon
+ */
+interface CoordinatorMessageHandler
+{
+  void consume( Message message ) throws JMSException;
+}
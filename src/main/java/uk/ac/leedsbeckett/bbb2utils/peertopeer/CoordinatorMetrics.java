@@ -0,0 +1,262 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts and timings for one coordinator. Everything is recorded with
+ * striped counters so that it is cheap enough to leave on all the time.
+ * The metrics can be polled with snapshot() or read over JMX once the
+ * coordinator has registered this as an MBean.
+ *
+ * @author jon
+ */
+public class CoordinatorMetrics implements CoordinatorMetricsMXBean
+{
+  final BuildingBlockCoordinator coordinator;
+  
+  final ConcurrentHashMap<String,LongAdder> sent = new ConcurrentHashMap<>();
+  final ConcurrentHashMap<String,LongAdder> received = new ConcurrentHashMap<>();
+  final LongAdder sendfailures = new LongAdder();
+  final LongAdder loopbacks = new LongAdder();
+  final LatencyHistogram sendlatency = new LatencyHistogram();
+  final LatencyHistogram dispatchtime = new LatencyHistogram();
+  // One sample each time the publishing connection is made or remade.
+  final LatencyHistogram connectionacquiretime = new LatencyHistogram();
+  final LatencyHistogram pingroundtriptime = new LatencyHistogram();
+  final LatencyHistogram heartbeatsendtime = new LatencyHistogram();
+  final LatencyHistogram heartbeatdelay = new LatencyHistogram();
+  final LongAdder peerjoins = new LongAdder();
+  final LongAdder peerleaves = new LongAdder();
+  
+  ObjectName objectname = null;
+
+  CoordinatorMetrics( BuildingBlockCoordinator coordinator )
+  {
+    this.coordinator = coordinator;
+  }
+  
+  /**
+   * Works out the key that a message is counted under. Coordination
+   * messages are counted by their sub type and others by their type.
+   */
+  static String keyOf( String type, String subtype )
+  {
+    if ( subtype != null && !subtype.isEmpty() )
+      return subtype;
+    if ( type != null && !type.isEmpty() )
+      return type;
+    return "user";
+  }
+  
+  static void increment( ConcurrentHashMap<String,LongAdder> map, String key )
+  {
+    LongAdder a = map.get( key );
+    if ( a == null )
+      a = map.computeIfAbsent( key, k -> new LongAdder() );
+    a.increment();
+  }
+  
+  static Map<String,Long> copy( ConcurrentHashMap<String,LongAdder> map )
+  {
+    TreeMap<String,Long> copy = new TreeMap<>();
+    map.forEach( ( k, v ) -> copy.put( k, v.sum() ) );
+    return copy;
+  }
+  
+  static long total( Map<String,Long> map )
+  {
+    long n = 0;
+    for ( Long v : map.values() )
+      n += v;
+    return n;
+  }
+  
+  void recordSent( String type, String subtype, long nanos, boolean success )
+  {
+    if ( success )
+    {
+      increment( sent, keyOf( type, subtype ) );
+      sendlatency.record( nanos );
+    }
+    else
+      sendfailures.increment();
+  }
+  
+  void recordReceived( String type, String subtype )
+  {
+    increment( received, keyOf( type, subtype ) );
+  }
+  
+  void recordLoopback()
+  {
+    loopbacks.increment();
+  }
+  
+  void recordDispatch( long nanos )
+  {
+    dispatchtime.record( nanos );
+  }
+  
+  void recordConnectionAcquire( long nanos )
+  {
+    connectionacquiretime.record( nanos );
+  }
+  
+  void recordPingRoundTrip( long nanos )
+  {
+    pingroundtriptime.record( nanos );
+  }
+  
+  void recordHeartbeatSend( long nanos )
+  {
+    heartbeatsendtime.record( nanos );
+  }
+  
+  /**
+   * Records how long a heartbeat took from being sent by a peer to arriving
+   * here. This relies on the two servers' clocks agreeing so negative values
+   * from clock skew are counted as zero.
+   * 
+   * @param millis The difference between the receive and send times.
+   */
+  void recordHeartbeatDelay( long millis )
+  {
+    heartbeatdelay.record( Math.max( 0L, millis ) * 1000000L );
+  }
+  
+  void recordPeerJoin()
+  {
+    peerjoins.increment();
+  }
+  
+  void recordPeerLeave()
+  {
+    peerleaves.increment();
+  }
+  
+  void recordPeerLeaves( int n )
+  {
+    peerleaves.add( n );
+  }
+  
+  /**
+   * Registers with the platform MBean server. Failure, for example because
+   * of security restrictions, is logged but otherwise ignored.
+   */
+  synchronized void register()
+  {
+    if ( objectname != null )
+      return;
+    try
+    {
+      ObjectName name = new ObjectName( 
+              "uk.ac.leedsbeckett.bbb2utils:type=BuildingBlockCoordinator,plugin=" 
+              + ObjectName.quote( coordinator.pluginid ) 
+              + ",server=" + ObjectName.quote( coordinator.serverid ) );
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if ( server.isRegistered( name ) )
+        server.unregisterMBean( name );
+      server.registerMBean( this, name );
+      objectname = name;
+    }
+    catch ( Exception ex )
+    {
+      coordinator.logger.warn( "Unable to register coordinator metrics with JMX.", ex );
+    }
+  }
+  
+  synchronized void unregister()
+  {
+    if ( objectname == null )
+      return;
+    try
+    {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean( objectname );
+    }
+    catch ( Exception ex )
+    {
+      coordinator.logger.warn( "Unable to unregister coordinator metrics from JMX.", ex );
+    }
+    objectname = null;
+  }
+  
+  @Override
+  public long getMessagesSent() { return total( getMessagesSentByType() ); }
+  @Override
+  public long getMessagesReceived() { return total( getMessagesReceivedByType() ); }
+  @Override
+  public Map<String,Long> getMessagesSentByType() { return copy( sent ); }
+  @Override
+  public Map<String,Long> getMessagesReceivedByType() { return copy( received ); }
+  @Override
+  public long getSendFailures() { return sendfailures.sum(); }
+  @Override
+  public long getLoopbackMessages() { return loopbacks.sum(); }
+  @Override
+  public HistogramSnapshot getSendLatency() { return sendlatency.snapshot(); }
+  @Override
+  public HistogramSnapshot getDispatchTime() { return dispatchtime.snapshot(); }
+  @Override
+  public HistogramSnapshot getConnectionAcquireTime() { return connectionacquiretime.snapshot(); }
+  @Override
+  public HistogramSnapshot getPingRoundTripTime() { return pingroundtriptime.snapshot(); }
+  @Override
+  public HistogramSnapshot getHeartbeatSendTime() { return heartbeatsendtime.snapshot(); }
+  @Override
+  public HistogramSnapshot getHeartbeatDelay() { return heartbeatdelay.snapshot(); }
+  @Override
+  public long getPeerJoins() { return peerjoins.sum(); }
+  @Override
+  public long getPeerLeaves() { return peerleaves.sum(); }
+  @Override
+  public int getPeerCount() { return coordinator.peers.size(); }
+  
+  @Override
+  public int getOutboundQueueDepth()
+  {
+    OutboundQueue q = coordinator.outboundqueue;
+    return q == null ? 0 : q.getDepth();
+  }
+  
+  @Override
+  public int getDispatchQueueDepth()
+  {
+    MessageDispatcher d = coordinator.dispatcher;
+    return d == null ? 0 : d.getDepth();
+  }
+  
+  @Override
+  public CoordinatorMetricsSnapshot getSnapshot()
+  {
+    return snapshot();
+  }
+  
+  /**
+   * @return A copy of all the metrics as they are now.
+   */
+  public CoordinatorMetricsSnapshot snapshot()
+  {
+    return new CoordinatorMetricsSnapshot( this );
+  }
+}
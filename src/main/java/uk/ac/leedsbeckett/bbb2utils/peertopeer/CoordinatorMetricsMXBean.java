@@ -0,0 +1,46 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.util.Map;
+
+/**
+ * The JMX view of a coordinator's metrics. Counts are totals since the
+ * coordinator was created.
+ *
+ * @author jon
+ */
+public interface CoordinatorMetricsMXBean
+{
+  public long getMessagesSent();
+  public long getMessagesReceived();
+  public Map<String,Long> getMessagesSentByType();
+  public Map<String,Long> getMessagesReceivedByType();
+  public long getSendFailures();
+  public long getLoopbackMessages();
+  public HistogramSnapshot getSendLatency();
+  public HistogramSnapshot getDispatchTime();
+  public HistogramSnapshot getConnectionAcquireTime();
+  public HistogramSnapshot getPingRoundTripTime();
+  public HistogramSnapshot getHeartbeatSendTime();
+  public HistogramSnapshot getHeartbeatDelay();
+  public long getPeerJoins();
+  public long getPeerLeaves();
+  public int getPeerCount();
+  public int getOutboundQueueDepth();
+  public int getDispatchQueueDepth();
+  public CoordinatorMetricsSnapshot getSnapshot();
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * An immutable copy of a coordinator's metrics taken at one moment.
+ *
+ * @author jon
+ */
+public class CoordinatorMetricsSnapshot
+{
+  private final long timestamp;
+  private final Map<String,Long> sentbytype;
+  private final Map<String,Long> receivedbytype;
+  private final long sendfailures;
+  private final long loopbacks;
+  private final HistogramSnapshot sendlatency;
+  private final HistogramSnapshot dispatchtime;
+  private final HistogramSnapshot connectionacquiretime;
+  private final HistogramSnapshot pingroundtriptime;
+  private final HistogramSnapshot heartbeatsendtime;
+  private final HistogramSnapshot heartbeatdelay;
+  private final long peerjoins;
+  private final long peerleaves;
+  private final int peercount;
+  private final int outboundqueuedepth;
+  private final int dispatchqueuedepth;
+
+  CoordinatorMetricsSnapshot( CoordinatorMetrics m )
+  {
+    timestamp             = System.currentTimeMillis();
+    sentbytype            = Collections.unmodifiableMap( m.getMessagesSentByType() );
+    receivedbytype        = Collections.unmodifiableMap( m.getMessagesReceivedByType() );
+    sendfailures          = m.getSendFailures();
+    loopbacks             = m.getLoopbackMessages();
+    sendlatency           = m.getSendLatency();
+    dispatchtime          = m.getDispatchTime();
+    connectionacquiretime = m.getConnectionAcquireTime();
+    pingroundtriptime     = m.getPingRoundTripTime();
+    heartbeatsendtime     = m.getHeartbeatSendTime();
+    heartbeatdelay        = m.getHeartbeatDelay();
+    peerjoins             = m.getPeerJoins();
+    peerleaves            = m.getPeerLeaves();
+    peercount             = m.getPeerCount();
+    outboundqueuedepth    = m.getOutboundQueueDepth();
+    dispatchqueuedepth    = m.getDispatchQueueDepth();
+  }
+
+  /** @return When the snapshot was taken. */
+  public long getTimestamp() { return timestamp; }
+  /** @return Messages sent, keyed by sub type, or by type for user messages. */
+  public Map<String,Long> getMessagesSentByType() { return sentbytype; }
+  /** @return Messages received, keyed by sub type, or by type for user messages. */
+  public Map<String,Long> getMessagesReceivedByType() { return receivedbytype; }
+  /** @return Messages that could not be sent. */
+  public long getSendFailures() { return sendfailures; }
+  /** @return Messages delivered to this server without using the broker. */
+  public long getLoopbackMessages() { return loopbacks; }
+  /** @return Time from asking to send a message to it being published. */
+  public HistogramSnapshot getSendLatency() { return sendlatency; }
+  /** @return Time spent in the listener for each user message. */
+  public HistogramSnapshot getDispatchTime() { return dispatchtime; }
+  /**
+   * @return Time taken to get a new publishing connection from the source.
+   * There is one sample when the connection is first made and one each
+   * time it is replaced after a failure, not one per message, so this
+   * shows how long reconnecting takes and the count shows how often.
+   */
+  public HistogramSnapshot getConnectionAcquireTime() { return connectionacquiretime; }
+  /** @return Time from sending a ping to getting a pong. */
+  public HistogramSnapshot getPingRoundTripTime() { return pingroundtriptime; }
+  /** @return Time from starting to send a heartbeat to it being published. */
+  public HistogramSnapshot getHeartbeatSendTime() { return heartbeatsendtime; }
+  /** @return Time from a peer sending a heartbeat to it arriving here, by wall clock. */
+  public HistogramSnapshot getHeartbeatDelay() { return heartbeatdelay; }
+  /** @return The number of times a peer has been added. */
+  public long getPeerJoins() { return peerjoins; }
+  /** @return The number of times a peer has stopped or timed out. */
+  public long getPeerLeaves() { return peerleaves; }
+  /** @return The number of peers known. */
+  public int getPeerCount() { return peercount; }
+  /** @return Messages waiting in the outbound queue. */
+  public int getOutboundQueueDepth() { return outboundqueuedepth; }
+  /** @return Messages waiting to be handed to the listener. */
+  public int getDispatchQueueDepth() { return dispatchqueuedepth; }
+  
+  /** @return Total of all messages sent. */
+  public long getMessagesSent()
+  {
+    return CoordinatorMetrics.total( sentbytype );
+  }
+  
+  /** @return Total of all messages received. */
+  public long getMessagesReceived()
+  {
+    return CoordinatorMetrics.total( receivedbytype );
+  }
+}
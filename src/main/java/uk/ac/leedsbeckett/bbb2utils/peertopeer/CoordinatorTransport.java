@@ -0,0 +1,77 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import blackboard.platform.messagequeue.MessageQueueException;
+import java.util.List;
+
+/**
+ * Carries messages between coordinators. The coordinator decides what to
+ * send and to whom; a transport only has to get each message to the
+ * servers it is addressed to. A message is addressed by its LBUToServerID
+ * property, which is either the server ID of one peer or "*" for every 
+ * peer. A transport never needs to deliver a message back to the server
+ * that sent it because the coordinator does that itself.
+ * 
+ * The default transport goes through the ActiveMQ broker that Blackboard
+ * runs. Others are provided for tests and single server deployments and 
+ * for talking directly to known peers over TCP.
+ *
+ * @author jon
+ */
+public interface CoordinatorTransport
+{
+  /**
+   * Starts receiving messages addressed to the coordinator's server or to
+   * every server on the coordinator's topic and passing them to the 
+   * coordinator's onMessage method.
+   * 
+   * @param coordinator The coordinator that is using this transport.
+   * @throws MessageQueueException If messages cannot be received.
+   */
+  public void subscribe( BuildingBlockCoordinator coordinator ) throws MessageQueueException;
+  
+  /**
+   * Stops receiving messages. Sending still works until close is called.
+   */
+  public void unsubscribe();
+  
+  /**
+   * Sends a message to the server or servers it is addressed to.
+   * 
+   * @param m The message.
+   * @throws MessageQueueException If the message could not be sent.
+   */
+  public void publish( OutboundMessage m ) throws MessageQueueException;
+  
+  /**
+   * Sends a number of messages. Transports that can send a batch more
+   * cheaply than its messages one at a time should override this.
+   * 
+   * @param batch The messages.
+   * @throws MessageQueueException If the messages could not be sent.
+   */
+  public default void publishBatch( List<OutboundMessage> batch ) throws MessageQueueException
+  {
+    for ( OutboundMessage m : batch )
+      publish( m );
+  }
+  
+  /**
+   * Releases everything the transport holds. It cannot be used after this.
+   */
+  public void close();
+}
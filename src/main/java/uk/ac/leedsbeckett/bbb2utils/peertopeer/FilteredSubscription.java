@@ -0,0 +1,128 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import blackboard.platform.messagequeue.MessageQueueException;
+import blackboard.platform.messagequeue.MessageQueueUtil;
+import javax.jms.JMSException;
+import javax.jms.MessageListener;
+import javax.jms.TopicSubscriber;
+import org.apache.activemq.ActiveMQConnection;
+import org.apache.activemq.ActiveMQTopicSession;
+
+/**
+ * A subscription to the coordination topic with a JMS message selector so
+ * that the broker only delivers messages addressed to this server or to
+ * everyone. Messages for other peers never reach this server and nor do
+ * this server's own messages, which the coordinator delivers to itself
+ * without going through the broker.
+ *
+ * There are two lanes, each with its own session and so its own dispatch
+ * thread. Coordination messages arrive in one and user messages in the
+ * other so that a backlog of user messages or a slow listener does not 
+ * hold up heartbeats.
+ *
+ * @author jon
+ */
+class FilteredSubscription
+{
+  final ConnectionSource connections;
+  final String topic;
+  final String selector;
+  final MessageListener messagelistener;
+  
+  ActiveMQConnection connection = null;
+  ActiveMQTopicSession coordinationsession = null;
+  ActiveMQTopicSession usersession = null;
+  TopicSubscriber coordinationsubscriber = null;
+  TopicSubscriber usersubscriber = null;
+
+  FilteredSubscription( ConnectionSource connections, String topic, String serverid, MessageListener messagelistener )
+  {
+    this.connections = connections;
+    this.topic = topic;
+    this.selector = selectorFor( serverid );
+    this.messagelistener = messagelistener;
+  }
+  
+  /**
+   * Builds a selector that matches messages addressed to the given server
+   * or to all servers, except those sent by the given server.
+   * 
+   * @param serverid The ID of this server.
+   * @return A JMS message selector.
+   */
+  static String selectorFor( String serverid )
+  {
+    String id = quote( serverid );
+    return "LBUToServerID IN ('*','" + id + "') AND LBUFromServerID <> '" + id + "'";
+  }
+  
+  static String quote( String literal )
+  {
+    return literal.replace( "'", "''" );
+  }
+  
+  /**
+   * Gets a connection from the source and starts listening.
+   * 
+   * @throws MessageQueueException If the subscription could not be made.
+   */
+  synchronized void open() throws MessageQueueException
+  {
+    if ( usersubscriber != null )
+      return;
+    try
+    {
+      connection = connections.getConnection();
+      coordinationsession = (ActiveMQTopicSession) connection.createTopicSession( false, 1 );
+      coordinationsubscriber = coordinationsession.createSubscriber( 
+              coordinationsession.createTopic( topic ), 
+              selector + " AND LBUType = 'coordination'", 
+              false );
+      coordinationsubscriber.setMessageListener( messagelistener );
+      usersession = (ActiveMQTopicSession) connection.createTopicSession( false, 1 );
+      usersubscriber = usersession.createSubscriber( 
+              usersession.createTopic( topic ), 
+              selector + " AND (LBUType IS NULL OR LBUType <> 'coordination')", 
+              false );
+      usersubscriber.setMessageListener( messagelistener );
+      connection.start();
+    }
+    catch ( Exception ex )
+    {
+      close();
+      throw new MessageQueueException( "Could not subscribe to " + topic, ex );
+    }
+  }
+  
+  synchronized void close()
+  {
+    if ( coordinationsubscriber != null )
+      try { coordinationsubscriber.close(); } catch ( JMSException ex ) {}
+    if ( usersubscriber != null )
+      try { usersubscriber.close(); } catch ( JMSException ex ) {}
+    MessageQueueUtil.closeMessageQueueObjects( coordinationsession, null, null, null, null );
+    MessageQueueUtil.closeMessageQueueObjects( usersession, null, null, null, null );
+    if ( connection != null )
+      connections.releaseConnection( connection );
+    coordinationsubscriber = null;
+    usersubscriber = null;
+    coordinationsession = null;
+    usersession = null;
+    connection = null;
+  }
+}
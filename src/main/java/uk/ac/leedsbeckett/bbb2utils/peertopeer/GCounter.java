@@ -0,0 +1,105 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A grow only counter shared by all the servers. Each server only ever
+ * adds to its own slot and the value is the total of all the slots. Slots 
+ * from other servers are merged by taking the larger value so it doesn't 
+ * matter if gossip arrives twice, late or out of order.
+ * 
+ * Counting is local and never waits for the network. The value seen on
+ * one server lags the others by about the gossip interval.
+ *
+ * @author jon
+ */
+public class GCounter
+{
+  final String name;
+  final LongAdder local = new LongAdder();
+  final ConcurrentHashMap<String,Long> slots = new ConcurrentHashMap<>();
+  long lastgossiped = 0L;
+
+  GCounter( String name )
+  {
+    this.name = name;
+  }
+  
+  /** @return The name of the counter. */
+  public String getName()
+  {
+    return name;
+  }
+  
+  /**
+   * Adds one.
+   */
+  public void increment()
+  {
+    local.increment();
+  }
+  
+  /**
+   * Adds to the counter.
+   * 
+   * @param n The amount, which must not be negative.
+   */
+  public void add( long n )
+  {
+    if ( n < 0L )
+      throw new IllegalArgumentException( "A GCounter can't go down." );
+    local.add( n );
+  }
+  
+  /**
+   * @return The total for the whole cluster as far as this server knows.
+   */
+  public long value()
+  {
+    long v = local.sum();
+    for ( Long s : slots.values() )
+      v += s;
+    return v;
+  }
+  
+  /**
+   * @return The amount added on this server.
+   */
+  public long localValue()
+  {
+    return local.sum();
+  }
+  
+  void merge( String slot, long value )
+  {
+    slots.merge( slot, value, Math::max );
+  }
+  
+  /**
+   * Copies every slot, including this server's under the given name.
+   */
+  Map<String,Long> state( String ownslot )
+  {
+    HashMap<String,Long> state = new HashMap<>( slots );
+    state.put( ownslot, local.sum() );
+    return state;
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point in time summary of a latency histogram. All durations are in
+ * microseconds. Percentiles are approximate.
+ *
+ * @author jon
+ */
+public class HistogramSnapshot
+{
+  private final long count;
+  private final long mean;
+  private final long p50;
+  private final long p90;
+  private final long p99;
+  private final long max;
+
+  HistogramSnapshot( long count, long meannanos, long p50nanos, long p90nanos, long p99nanos, long maxnanos )
+  {
+    this.count = count;
+    this.mean = TimeUnit.NANOSECONDS.toMicros( meannanos );
+    this.p50  = TimeUnit.NANOSECONDS.toMicros( p50nanos );
+    this.p90  = TimeUnit.NANOSECONDS.toMicros( p90nanos );
+    this.p99  = TimeUnit.NANOSECONDS.toMicros( p99nanos );
+    this.max  = TimeUnit.NANOSECONDS.toMicros( maxnanos );
+  }
+
+  /** @return The number of durations recorded. */
+  public long getCount() { return count; }
+  /** @return The mean duration. */
+  public long getMeanMicros() { return mean; }
+  /** @return The median duration. */
+  public long getP50Micros() { return p50; }
+  /** @return The 90th percentile duration. */
+  public long getP90Micros() { return p90; }
+  /** @return The 99th percentile duration. */
+  public long getP99Micros() { return p99; }
+  /** @return The longest duration. */
+  public long getMaxMicros() { return max; }
+
+  @Override
+  public String toString()
+  {
+    return "count=" + count + " mean=" + mean + "us p50=" + p50 + "us p90=" + p90 + "us p99=" + p99 + "us max=" + max + "us";
+  }
+}
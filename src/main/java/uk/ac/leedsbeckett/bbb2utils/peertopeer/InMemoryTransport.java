@@ -0,0 +1,166 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import blackboard.platform.messagequeue.MessageQueueException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * A transport that connects coordinators in the same JVM without a broker,
+ * for tests and for deployments with only one server. Coordinators whose
+ * transports share a network and a topic can message each other. A
+ * coordinator that is alone on its network still works normally since it
+ * delivers its own messages to itself.
+ * 
+ * As with JMS each coordinator has its own delivery thread, so messages
+ * arrive in the order they were sent and a sender never runs a receiver's
+ * listener. The delivery queue is not bounded. Coordination messages have
+ * a delivery thread of their own so they are not held up by user messages.
+ *
+ * @author jon
+ */
+public class InMemoryTransport implements CoordinatorTransport
+{
+  static final Network DEFAULT_NETWORK = new Network();
+  
+  /**
+   * A set of in-memory transports that can reach each other. 
+   */
+  public static class Network
+  {
+    final ConcurrentHashMap<String,CopyOnWriteArrayList<InMemoryTransport>> topics = new ConcurrentHashMap<>();
+    
+    void join( String topic, InMemoryTransport t )
+    {
+      topics.computeIfAbsent( topic, k -> new CopyOnWriteArrayList<>() ).addIfAbsent( t );
+    }
+    
+    void leave( String topic, InMemoryTransport t )
+    {
+      List<InMemoryTransport> list = topics.get( topic );
+      if ( list != null )
+        list.remove( t );
+    }
+    
+    List<InMemoryTransport> members( String topic )
+    {
+      List<InMemoryTransport> list = topics.get( topic );
+      return list == null ? Collections.emptyList() : list;
+    }
+  }
+  
+  final Network network;
+  volatile BuildingBlockCoordinator coordinator = null;
+  volatile ExecutorService delivery = null;
+  volatile ExecutorService coordinationdelivery = null;
+
+  /**
+   * A transport on the network shared by the whole JVM.
+   */
+  public InMemoryTransport()
+  {
+    this( DEFAULT_NETWORK );
+  }
+
+  /**
+   * @param network The network to join.
+   */
+  public InMemoryTransport( Network network )
+  {
+    this.network = network;
+  }
+  
+  @Override
+  public synchronized void subscribe( BuildingBlockCoordinator coordinator ) throws MessageQueueException
+  {
+    if ( delivery != null )
+      return;
+    this.coordinator = coordinator;
+    delivery = Executors.newSingleThreadExecutor( r ->
+    {
+      Thread t = new Thread( r, "InMemoryTransport.Delivery-" + coordinator.serverid );
+      t.setDaemon( true );
+      return t;
+    });
+    coordinationdelivery = Executors.newSingleThreadExecutor( r ->
+    {
+      Thread t = new Thread( r, "InMemoryTransport.CoordinationDelivery-" + coordinator.serverid );
+      t.setDaemon( true );
+      return t;
+    });
+    network.join( coordinator.topic, this );
+  }
+
+  @Override
+  public synchronized void unsubscribe()
+  {
+    if ( delivery == null )
+      return;
+    network.leave( coordinator.topic, this );
+    delivery.shutdown();
+    coordinationdelivery.shutdown();
+    delivery = null;
+    coordinationdelivery = null;
+  }
+
+  @Override
+  public void publish( OutboundMessage m ) throws MessageQueueException
+  {
+    BuildingBlockCoordinator c = coordinator;
+    if ( c == null )
+      throw new MessageQueueException( "Transport has not been subscribed." );
+    String to = m.getToServerId();
+    try
+    {
+      for ( InMemoryTransport t : network.members( c.topic ) )
+        if ( t != this && ( "*".equals( to ) || t.coordinator.serverid.equals( to ) ) )
+          t.deliver( m.toLocalMessage(), m.isCoordination() );
+    }
+    catch ( JMSException ex )
+    {
+      throw new MessageQueueException( "Could not copy message.", ex );
+    }
+  }
+  
+  void deliver( Message message, boolean coordination )
+  {
+    ExecutorService d = coordination ? coordinationdelivery : delivery;
+    if ( d == null )
+      return;
+    try
+    {
+      d.execute( () -> coordinator.onMessage( message ) );
+    }
+    catch ( RejectedExecutionException ex )
+    {
+      // Unsubscribed while sending.
+    }
+  }
+
+  @Override
+  public void close()
+  {
+    unsubscribe();
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cheap, thread safe histogram of durations. Durations in nanoseconds
+ * are counted in buckets by powers of two so recording is a couple of
+ * striped counter increments. Percentiles are only as precise as the
+ * bucket boundaries, which is plenty for spotting trouble.
+ *
+ * @author jon
+ */
+class LatencyHistogram
+{
+  static final int BUCKETS = 48;
+  
+  final LongAdder[] buckets = new LongAdder[ BUCKETS ];
+  final LongAdder total = new LongAdder();
+  final AtomicLong max = new AtomicLong();
+
+  LatencyHistogram()
+  {
+    for ( int i=0; i<BUCKETS; i++ )
+      buckets[i] = new LongAdder();
+  }
+  
+  void record( long nanos )
+  {
+    if ( nanos < 0 )
+      nanos = 0;
+    buckets[ Math.min( BUCKETS-1, 64 - Long.numberOfLeadingZeros( nanos ) ) ].increment();
+    total.add( nanos );
+    if ( nanos > max.get() )
+      max.accumulateAndGet( nanos, Math::max );
+  }
+  
+  HistogramSnapshot snapshot()
+  {
+    long[] counts = new long[ BUCKETS ];
+    long n = 0;
+    for ( int i=0; i<BUCKETS; i++ )
+      n += counts[i] = buckets[i].sum();
+    long sum = total.sum();
+    return new HistogramSnapshot( 
+            n, 
+            n == 0 ? 0 : sum / n, 
+            percentile( counts, n, 0.5 ), 
+            percentile( counts, n, 0.9 ), 
+            percentile( counts, n, 0.99 ), 
+            max.get() );
+  }
+  
+  /**
+   * Finds the upper bound of the bucket containing the given fraction of
+   * the counts.
+   */
+  static long percentile( long[] counts, long n, double fraction )
+  {
+    if ( n == 0 )
+      return 0;
+    long target = (long)Math.ceil( n * fraction );
+    long seen = 0;
+    for ( int i=0; i<counts.length; i++ )
+    {
+      seen += counts[i];
+      if ( seen >= target )
+        return i == 0 ? 0 : (1L << i) - 1;
+    }
+    return Long.MAX_VALUE;
+  }
+}
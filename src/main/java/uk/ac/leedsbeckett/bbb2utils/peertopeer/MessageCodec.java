@@ -0,0 +1,135 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Turns messages into bytes and back, for transports that don't use JMS
+ * and for storing messages on disk.
+ *
+ * @author jon
+ */
+class MessageCodec
+{
+  public static final int MAX_FRAME = 64 * 1024 * 1024;
+  
+  static final byte TEXT = 1;
+  static final byte BYTES = 2;
+  
+  /**
+   * Encodes a message as a frame. Every frame starts with its length, not
+   * counting the length itself, and a kind byte. Strings are written as a
+   * length and UTF-8 bytes with a length of -1 for null. A message frame 
+   * then has the correlation ID, the number of properties, the property
+   * names and values and then the body.
+   */
+  static ByteBuffer encode( OutboundMessage m )
+  {
+    byte[] correlationid = utf8( m.correlationid );
+    Properties p = m.properties;
+    List<byte[]> props = new ArrayList<>();
+    int size = 1 + 4 + len( correlationid ) + 4;
+    for ( String key : p.stringPropertyNames() )
+    {
+      byte[] k = utf8( key ), v = utf8( p.getProperty( key ) );
+      props.add( k );
+      props.add( v );
+      size += 4 + len( k ) + 4 + len( v );
+    }
+    byte[] text = m.isBinary() ? null : utf8( m.text );
+    size += 4 + ( m.isBinary() ? m.length : len( text ) );
+    if ( size > MAX_FRAME )
+      throw new IllegalArgumentException( "Message is too big to encode." );
+    
+    ByteBuffer b = ByteBuffer.allocate( 4 + size );
+    b.putInt( size );
+    b.put( m.isBinary() ? BYTES : TEXT );
+    put( b, correlationid );
+    b.putInt( props.size() / 2 );
+    for ( byte[] a : props )
+      put( b, a );
+    if ( m.isBinary() )
+    {
+      b.putInt( m.length );
+      b.put( m.bytes, m.offset, m.length );
+    }
+    else
+      put( b, text );
+    b.flip();
+    return b;
+  }
+  
+  /**
+   * Decodes a message frame positioned just after its kind byte. The body 
+   * is copied out of the frame.
+   */
+  static OutboundMessage decode( ByteBuffer b )
+  {
+    String correlationid = string( b );
+    int n = b.getInt();
+    Properties p = new Properties();
+    for ( int i=0; i<n; i++ )
+      p.setProperty( string( b ), string( b ) );
+    OutboundMessage m;
+    if ( b.get( 0 ) == BYTES )
+    {
+      byte[] body = new byte[ b.getInt() ];
+      b.get( body );
+      m = new OutboundMessage( body, 0, body.length, p );
+    }
+    else
+      m = new OutboundMessage( string( b ), p );
+    m.correlationid = correlationid;
+    return m;
+  }
+  
+  static byte[] utf8( String s )
+  {
+    return s == null ? null : s.getBytes( StandardCharsets.UTF_8 );
+  }
+  
+  static int len( byte[] a )
+  {
+    return a == null ? 0 : a.length;
+  }
+  
+  static void put( ByteBuffer b, byte[] a )
+  {
+    if ( a == null )
+      b.putInt( -1 );
+    else
+    {
+      b.putInt( a.length );
+      b.put( a );
+    }
+  }
+  
+  static String string( ByteBuffer b )
+  {
+    int n = b.getInt();
+    if ( n < 0 )
+      return null;
+    String s = new String( b.array(), b.arrayOffset() + b.position(), n, StandardCharsets.UTF_8 );
+    b.position( b.position() + n );
+    return s;
+  }
+  
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.log4j.Logger;
+
+/**
+ * Hands incoming messages to the listener on an executor instead of on the
+ * message delivery thread. Messages are split into lanes by the server
+ * that sent them and each lane runs one message at a time so messages from
+ * one sender are consumed in the order they arrived. Different lanes run
+ * at the same time on the executor.
+ * 
+ * The number of messages waiting across all lanes is bounded. When the
+ * bound is reached the delivery thread waits, which in turn makes the
+ * broker hold back further messages.
+ *
+ * @author jon
+ */
+public class MessageDispatcher
+{
+  public static final int DEFAULT_STRIPES = 8;
+  public static final int DEFAULT_CAPACITY = 10000;
+  static final int LANE_BURST = 64;
+  
+  final Executor executor;
+  final ExecutorService ownexecutor;
+  final Lane[] lanes;
+  final int capacity;
+  final Semaphore space;
+  final Logger logger;
+  
+  final AtomicInteger depth = new AtomicInteger();
+  final LongAdder dispatched = new LongAdder();
+  final LongAdder totalwaitnanos = new LongAdder();
+  final AtomicLong maxwaitnanos = new AtomicLong();
+  final LongAdder blocked = new LongAdder();
+  
+  /**
+   * @param executor The executor to run listeners on or null to create a
+   * fixed pool with one thread per lane.
+   * @param stripes The number of lanes.
+   * @param capacity The maximum number of messages waiting in all lanes.
+   * @param logger For reporting errors.
+   */
+  MessageDispatcher( Executor executor, int stripes, int capacity, Logger logger )
+  {
+    this.lanes = new Lane[ Math.max( 1, stripes ) ];
+    for ( int i=0; i<lanes.length; i++ )
+      lanes[i] = new Lane();
+    this.capacity = Math.max( 1, capacity );
+    this.space = new Semaphore( this.capacity );
+    this.logger = logger;
+    if ( executor == null )
+    {
+      AtomicInteger n = new AtomicInteger();
+      ownexecutor = Executors.newFixedThreadPool( lanes.length, r -> 
+      {
+        Thread t = new Thread( r, "BuildingBlockCoordinator.Dispatcher-" + n.incrementAndGet() );
+        t.setDaemon( true );
+        return t;
+      });
+      this.executor = ownexecutor;
+    }
+    else
+    {
+      ownexecutor = null;
+      this.executor = executor;
+    }
+  }
+  
+  /**
+   * Queue a task in the lane for the given sender. Waits if too many tasks
+   * are already queued.
+   * 
+   * @param from The server ID of the sender.
+   * @param task The work to do.
+   * @throws InterruptedException If interrupted while waiting for space.
+   */
+  void dispatch( String from, Runnable task ) throws InterruptedException
+  {
+    if ( !space.tryAcquire() )
+    {
+      blocked.increment();
+      space.acquire();
+    }
+    depth.incrementAndGet();
+    int h = from == null ? 0 : from.hashCode();
+    lanes[ ((h ^ (h >>> 16)) & 0x7fffffff) % lanes.length ].submit( new Task( task ) );
+  }
+  
+  /**
+   * Shuts down the executor if the dispatcher created it.
+   */
+  void close()
+  {
+    if ( ownexecutor != null )
+      ownexecutor.shutdown();
+  }
+  
+  /** @return The number of messages waiting to be consumed. */
+  public int getDepth() { return depth.get(); }
+  /** @return The maximum number of messages that can wait. */
+  public int getCapacity() { return capacity; }
+  /** @return The number of lanes. */
+  public int getStripes() { return lanes.length; }
+  /** @return The number of messages handed to the listener. */
+  public long getDispatchedCount() { return dispatched.sum(); }
+  /** @return The number of times the delivery thread had to wait for space. */
+  public long getBlockedCount() { return blocked.sum(); }
+  /** @return Total time messages have spent waiting in lanes, in nanoseconds. */
+  public long getTotalQueueWaitNanos() { return totalwaitnanos.sum(); }
+  /** @return The longest time a message has spent waiting in a lane, in nanoseconds. */
+  public long getMaxQueueWaitNanos() { return maxwaitnanos.get(); }
+  
+  /** @return The mean time messages have spent waiting in lanes, in nanoseconds. */
+  public long getMeanQueueWaitNanos()
+  {
+    long n = dispatched.sum();
+    return n == 0 ? 0 : totalwaitnanos.sum() / n;
+  }
+  
+  class Task
+  {
+    final Runnable runnable;
+    final long queuedat = System.nanoTime();
+
+    Task( Runnable runnable )
+    {
+      this.runnable = runnable;
+    }
+    
+    void run()
+    {
+      long wait = System.nanoTime() - queuedat;
+      totalwaitnanos.add( wait );
+      if ( wait > maxwaitnanos.get() )
+        maxwaitnanos.accumulateAndGet( wait, Math::max );
+      depth.decrementAndGet();
+      space.release();
+      dispatched.increment();
+      try
+      {
+        runnable.run();
+      }
+      catch ( RuntimeException ex )
+      {
+        logger.error( "Exception while consuming incoming message.", ex );
+      }
+    }
+  }
+  
+  class Lane implements Runnable
+  {
+    final ConcurrentLinkedQueue<Task> queue = new ConcurrentLinkedQueue<>();
+    final AtomicBoolean scheduled = new AtomicBoolean( false );
+    
+    void submit( Task task )
+    {
+      queue.offer( task );
+      if ( scheduled.compareAndSet( false, true ) )
+        schedule();
+    }
+    
+    void schedule()
+    {
+      try
+      {
+        executor.execute( this );
+      }
+      catch ( RejectedExecutionException ex )
+      {
+        logger.error( "Dispatch executor refused work. Discarding queued messages.", ex );
+        Task t;
+        while ( (t = queue.poll()) != null )
+        {
+          depth.decrementAndGet();
+          space.release();
+        }
+        scheduled.set( false );
+      }
+    }
+    
+    @Override
+    public void run()
+    {
+      // Run a limited number of tasks so that busy lanes don't starve
+      // quiet ones when the executor has fewer threads than lanes.
+      Task t;
+      int n = 0;
+      while ( n++ < LANE_BURST && (t = queue.poll()) != null )
+        t.run();
+      scheduled.set( false );
+      if ( !queue.isEmpty() && scheduled.compareAndSet( false, true ) )
+        schedule();
+    }
+  }
+}
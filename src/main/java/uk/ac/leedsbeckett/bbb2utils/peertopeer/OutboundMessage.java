@@ -0,0 +1,123 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import org.apache.activemq.command.ActiveMQBytesMessage;
+import org.apache.activemq.command.ActiveMQMessage;
+import org.apache.activemq.command.ActiveMQTextMessage;
+
+/**
+ * A message waiting to be sent, with either a text or a binary body, along
+ * with the future that will be completed when it has been sent. Transports
+ * read messages through the getters.
+ *
+ * @author jon
+ */
+public class OutboundMessage
+{
+  final String text;
+  final byte[] bytes;
+  final int offset;
+  final int length;
+  final Properties properties;
+  final CompletableFuture<Void> future = new CompletableFuture<>();
+  String correlationid = null;
+  boolean includelocal = true;
+
+  OutboundMessage( String text, Properties properties )
+  {
+    this.text = text;
+    this.bytes = null;
+    this.offset = 0;
+    this.length = 0;
+    this.properties = properties;
+  }
+
+  /**
+   * A binary message. The array is not copied so it must not be changed
+   * until the message has been sent.
+   */
+  OutboundMessage( byte[] bytes, int offset, int length, Properties properties )
+  {
+    this.text = null;
+    this.bytes = bytes;
+    this.offset = offset;
+    this.length = length;
+    this.properties = properties;
+  }
+  
+  /** @return True if the body is binary, false if it is text. */
+  public boolean isBinary()
+  {
+    return bytes != null;
+  }
+  
+  /** @return The text body or null for a binary message. */
+  public String getText() { return text; }
+  /** @return The array holding a binary body, which must not be changed. */
+  public byte[] getBytes() { return bytes; }
+  /** @return Where the binary body starts in the array. */
+  public int getOffset() { return offset; }
+  /** @return The length of the binary body. */
+  public int getLength() { return length; }
+  /** @return The message properties, which must not be changed. */
+  public Properties getProperties() { return properties; }
+  /** @return The JMS correlation ID or null. */
+  public String getCorrelationId() { return correlationid; }
+  /** @return The server the message is for, or "*" for every server. */
+  public String getToServerId() { return properties.getProperty( "LBUToServerID" ); }
+  /** @return True if this is a coordination message, which travels in the priority lane. */
+  public boolean isCoordination() { return "coordination".equals( properties.getProperty( "LBUType" ) ); }
+
+  /**
+   * Makes a read only JMS message with the same body and properties as 
+   * this one, for delivering to this server without going through the
+   * broker. The body is copied so the message is independent of the
+   * sender's array.
+   * 
+   * @return A message that can be given to a message listener.
+   * @throws JMSException If the message could not be made.
+   */
+  Message toLocalMessage() throws JMSException
+  {
+    // Properties go on first because a bytes message won't take them once
+    // its body has been made readable.
+    ActiveMQMessage message = isBinary() ? new ActiveMQBytesMessage() : new ActiveMQTextMessage();
+    message.setJMSTimestamp( System.currentTimeMillis() );
+    if ( correlationid != null )
+      message.setJMSCorrelationID( correlationid );
+    for ( String key : properties.stringPropertyNames() )
+      message.setStringProperty( key, properties.getProperty( key ) );
+    message.setReadOnlyProperties( true );
+    if ( isBinary() )
+    {
+      ActiveMQBytesMessage bm = (ActiveMQBytesMessage) message;
+      bm.writeBytes( bytes, offset, length );
+      bm.reset();
+    }
+    else
+    {
+      ActiveMQTextMessage tm = (ActiveMQTextMessage) message;
+      tm.setText( text );
+      tm.setReadOnlyBody( true );
+    }
+    return message;
+  }
+}
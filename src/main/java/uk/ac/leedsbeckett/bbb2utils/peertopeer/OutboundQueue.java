@@ -0,0 +1,342 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import blackboard.platform.messagequeue.MessageQueueException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.log4j.Logger;
+
+/**
+ * A bounded queue of messages waiting to be published by a dedicated sender
+ * thread. Callers get a future back immediately instead of waiting on the
+ * broker. The sender takes messages off the queue in batches and hands
+ * each batch to the transport in one go, which for the ActiveMQ transport
+ * means one transaction.
+ *
+ * What happens when the queue is full is decided by the backpressure
+ * setting.
+ * 
+ * While the coordinator's spool holds messages waiting to be replayed, 
+ * messages taken off the queue that could be spooled are added to the end
+ * of the spool instead of being published, so that they don't overtake
+ * messages that were sent before them.
+ *
+ * @author jon
+ */
+public class OutboundQueue
+{
+  /**
+   * What to do when a message is offered to a full queue.
+   */
+  public enum Backpressure
+  {
+    /** The calling thread waits for space. */
+    BLOCK,
+    /** The oldest waiting message is dropped to make room. */
+    DROP_OLDEST,
+    /** The new message is rejected. */
+    FAIL
+  }
+  
+  public static final int DEFAULT_CAPACITY = 10000;
+  public static final int DEFAULT_BATCH_SIZE = 100;
+  static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos( 50 );
+  static final long CLOSE_TIMEOUT = 5000;
+  
+  final CoordinatorTransport transport;
+  final Logger logger;
+  final int capacity;
+  final int batchsize;
+  final Backpressure backpressure;
+  
+  final ConcurrentLinkedQueue<OutboundMessage> queue = new ConcurrentLinkedQueue<>();
+  final Semaphore space;
+  final AtomicInteger depth = new AtomicInteger();
+  final AtomicInteger maxdepth = new AtomicInteger();
+  final LongAdder enqueued = new LongAdder();
+  final LongAdder sent = new LongAdder();
+  final LongAdder dropped = new LongAdder();
+  final LongAdder rejected = new LongAdder();
+  final LongAdder failures = new LongAdder();
+  final LongAdder batches = new LongAdder();
+  
+  volatile OutboundSpool spool = null;
+  volatile boolean running = false;
+  volatile SenderThread senderthread = null;
+
+  OutboundQueue( CoordinatorTransport transport, Logger logger, int capacity, int batchsize, Backpressure backpressure )
+  {
+    this.transport = transport;
+    this.logger = logger;
+    this.capacity = Math.max( 1, capacity );
+    this.batchsize = Math.max( 1, batchsize );
+    this.backpressure = backpressure == null ? Backpressure.BLOCK : backpressure;
+    this.space = new Semaphore( this.capacity );
+  }
+  
+  synchronized void start()
+  {
+    if ( senderthread != null )
+      return;
+    running = true;
+    senderthread = new SenderThread();
+    senderthread.start();
+  }
+  
+  /**
+   * Stops taking new messages and waits a short while for the sender to
+   * publish what is already queued. Anything still queued after that 
+   * fails.
+   */
+  void close()
+  {
+    SenderThread t;
+    synchronized ( this )
+    {
+      running = false;
+      t = senderthread;
+      senderthread = null;
+    }
+    if ( t != null )
+    {
+      LockSupport.unpark( t );
+      try { t.join( CLOSE_TIMEOUT ); }
+      catch ( InterruptedException ex ) { Thread.currentThread().interrupt(); }
+    }
+    failRemaining();
+  }
+  
+  private void failRemaining()
+  {
+    OutboundMessage m;
+    while ( (m = take()) != null )
+      m.future.completeExceptionally( new CancellationException( "Outbound queue closed before message was sent." ) );
+  }
+  
+  /**
+   * Put a message on the queue.
+   * 
+   * @param m The message.
+   * @return The message's future which completes when it is sent or fails.
+   */
+  CompletableFuture<Void> enqueue( OutboundMessage m )
+  {
+    if ( !running )
+    {
+      rejected.increment();
+      m.future.completeExceptionally( new RejectedExecutionException( "Outbound queue is not running." ) );
+      return m.future;
+    }
+    
+    switch ( backpressure )
+    {
+      case BLOCK:
+        try { space.acquire(); }
+        catch ( InterruptedException ex )
+        {
+          Thread.currentThread().interrupt();
+          rejected.increment();
+          m.future.completeExceptionally( ex );
+          return m.future;
+        }
+        break;
+        
+      case DROP_OLDEST:
+        while ( !space.tryAcquire() )
+        {
+          OutboundMessage oldest = take();
+          if ( oldest == null )
+            Thread.yield();
+          else
+          {
+            dropped.increment();
+            oldest.future.completeExceptionally( new CancellationException( "Dropped from full outbound queue." ) );
+          }
+        }
+        break;
+        
+      default:
+        if ( !space.tryAcquire() )
+        {
+          rejected.increment();
+          m.future.completeExceptionally( new RejectedExecutionException( "Outbound queue is full." ) );
+          return m.future;
+        }
+        break;
+    }
+    
+    queue.offer( m );
+    int d = depth.incrementAndGet();
+    if ( d > maxdepth.get() )
+      maxdepth.accumulateAndGet( d, Math::max );
+    enqueued.increment();
+    // If the queue was closed while this message was being added the sender
+    // and close() may both have finished draining, so nobody else will.
+    if ( !running )
+      failRemaining();
+    else
+      LockSupport.unpark( senderthread );
+    return m.future;
+  }
+  
+  private OutboundMessage take()
+  {
+    OutboundMessage m = queue.poll();
+    if ( m != null )
+    {
+      depth.decrementAndGet();
+      space.release();
+    }
+    return m;
+  }
+  
+  /** @return The number of messages waiting to be sent. */
+  public int getDepth() { return depth.get(); }
+  /** @return The largest number of messages that have been waiting at once. */
+  public int getMaxDepth() { return maxdepth.get(); }
+  /** @return The maximum number of messages that can wait. */
+  public int getCapacity() { return capacity; }
+  /** @return The backpressure setting. */
+  public Backpressure getBackpressure() { return backpressure; }
+  /** @return The total number of messages accepted onto the queue. */
+  public long getEnqueuedCount() { return enqueued.sum(); }
+  /** @return The total number of messages published. */
+  public long getSentCount() { return sent.sum(); }
+  /** @return The number of messages dropped to make room for newer ones. */
+  public long getDroppedCount() { return dropped.sum(); }
+  /** @return The number of messages refused because the queue was full or closed. */
+  public long getRejectedCount() { return rejected.sum(); }
+  /** @return The number of messages that could not be published. */
+  public long getFailedCount() { return failures.sum(); }
+  /** @return The number of batches published. */
+  public long getBatchCount() { return batches.sum(); }
+  
+  class SenderThread extends Thread
+  {
+    public SenderThread()
+    {
+      super( "BuildingBlockCoordinator.SenderThread" );
+      setDaemon( true );
+    }
+    
+    @Override
+    public void run()
+    {
+      ArrayList<OutboundMessage> batch = new ArrayList<>( batchsize );
+      while ( running || !queue.isEmpty() )
+      {
+        batch.clear();
+        OutboundMessage m;
+        while ( batch.size() < batchsize && (m = take()) != null )
+          batch.add( m );
+        if ( batch.isEmpty() )
+        {
+          LockSupport.parkNanos( this, IDLE_PARK_NANOS );
+          continue;
+        }
+        OutboundSpool s = spool;
+        if ( s != null && !s.isEmpty() )
+        {
+          divert( s, batch );
+          if ( batch.isEmpty() )
+            continue;
+        }
+        try
+        {
+          transport.publishBatch( batch );
+          sent.add( batch.size() );
+          batches.increment();
+          for ( OutboundMessage b : batch )
+            b.future.complete( null );
+        }
+        catch ( MessageQueueException ex )
+        {
+          s = spool;
+          for ( OutboundMessage b : batch )
+          {
+            if ( s != null && s.spoolable( b ) )
+              spoolOrFail( s, b, ex );
+            else
+            {
+              failures.increment();
+              b.future.completeExceptionally( ex );
+            }
+          }
+        }
+        catch ( RuntimeException ex )
+        {
+          logger.error( "Unexpected exception in outbound sender.", ex );
+          failures.add( batch.size() );
+          for ( OutboundMessage b : batch )
+            b.future.completeExceptionally( ex );
+        }
+      }
+    }
+    
+    /**
+     * Moves the messages that can be spooled from the batch to the end of
+     * the spool. What is left, such as requests and replies, is published
+     * as usual.
+     */
+    void divert( OutboundSpool s, ArrayList<OutboundMessage> batch )
+    {
+      for ( Iterator<OutboundMessage> i = batch.iterator(); i.hasNext(); )
+      {
+        OutboundMessage b = i.next();
+        if ( !s.spoolable( b ) )
+          continue;
+        i.remove();
+        spoolOrFail( s, b, new MessageQueueException( "Outbound spool is full." ) );
+      }
+    }
+    
+    /**
+     * Appends a message to the spool and completes its future, or fails
+     * the future if the spool has no room. A message that can't be encoded,
+     * because it is too big, fails on its own rather than ending this
+     * thread and leaving every later future waiting.
+     */
+    void spoolOrFail( OutboundSpool s, OutboundMessage b, Exception reason )
+    {
+      Exception failure = reason;
+      try
+      {
+        if ( s.append( b ) )
+        {
+          b.future.complete( null );
+          return;
+        }
+      }
+      catch ( RuntimeException ex )
+      {
+        logger.error( "Unable to spool outbound message.", ex );
+        failure = ex;
+      }
+      failures.increment();
+      b.future.completeExceptionally( failure );
+    }
+  }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import blackboard.platform.messagequeue.MessageQueueException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps messages that could not be sent in a file so that they can be sent
+ * later, in the same order, once the transport works again. Without this a
+ * message that fails to send while the broker is restarting is lost.
+ * 
+ * The file is a fixed size and memory mapped. Messages are appended after
+ * each other, each with its length and a checksum, and a small header 
+ * records where replay has got to and where the next message goes. When
+ * everything has been replayed both go back to the start; when the file
+ * is full anything already replayed is squeezed out and if there is still
+ * no room the message is dropped and counted. The file survives a restart
+ * of the server and replay carries on where it left off. A record that 
+ * was only partly written when the server died fails its checksum and it 
+ * and anything after it are discarded.
+ * 
+ * Replay runs on a thread of its own, so that it can wait for the broker
+ * without holding up heartbeats, and is throttled so that a backlog 
+ * doesn't flood the broker the moment it comes back.
+ * 
+ * Only messages that are still useful late are spooled, so coordination,
+ * request, reply and lease messages are not.
+ *
+ * @author jon
+ */
+public class OutboundSpool
+{
+  /**
+   * When changes to the file are forced to disk.
+   */
+  public enum FsyncPolicy
+  {
+    /** After every message is added, which is safest and slowest. */
+    ALWAYS,
+    /** Once a second if anything has changed. */
+    PERIODIC,
+    /** Never, leaving it to the operating system. */
+    NEVER
+  }
+  
+  public static final double DEFAULT_REPLAY_RATE = 100.0;
+  static final int MAGIC = 0x4C425553;
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 64;
+  static final int READ_OFFSET = 8;
+  static final int WRITE_OFFSET = 12;
+  static final int RECORD_HEADER_SIZE = 8;
+  static final long REPLAY_TICK = 100L;
+  static final long RETRY_DELAY = 1000L;
+  static final long FSYNC_INTERVAL = 1000L;
+  
+  final BuildingBlockCoordinator coordinator;
+  final File file;
+  final FsyncPolicy fsyncpolicy;
+  final double replayrate;
+  final RandomAccessFile raf;
+  final MappedByteBuffer map;
+  final int capacity;
+  
+  int readposition;
+  int writeposition;
+  int depth = 0;
+  boolean dirty = false;
+  boolean closed = false;
+  double allowance = 0.0;
+  long retryat = 0L;
+  final ScheduledThreadPoolExecutor executor;
+  final ScheduledFuture<?> replaytask;
+  final ScheduledFuture<?> fsynctask;
+  
+  final LongAdder spooled = new LongAdder();
+  final LongAdder replayed = new LongAdder();
+  final LongAdder dropped = new LongAdder();
+  final LongAdder corrupt = new LongAdder();
+
+  OutboundSpool( BuildingBlockCoordinator coordinator, File file, int maxbytes, FsyncPolicy fsyncpolicy, double replayrate ) throws IOException
+  {
+    this.coordinator = coordinator;
+    this.file = file;
+    this.fsyncpolicy = fsyncpolicy == null ? FsyncPolicy.PERIODIC : fsyncpolicy;
+    this.replayrate = replayrate > 0.0 ? replayrate : DEFAULT_REPLAY_RATE;
+    raf = new RandomAccessFile( file, "rw" );
+    try
+    {
+      capacity = (int) Math.max( raf.length(), Math.max( HEADER_SIZE + 1024, maxbytes ) );
+      map = raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, capacity );
+    }
+    catch ( IOException | RuntimeException ex )
+    {
+      raf.close();
+      throw ex;
+    }
+    recover();
+    // Publishing blocks while the broker is down, which is when the spool
+    // is used. On the coordinator's scheduler that would hold up heartbeats
+    // until peers timed this server out.
+    executor = new ScheduledThreadPoolExecutor( 1, r ->
+    {
+      Thread t = new Thread( r, "OutboundSpool-Replay" );
+      t.setDaemon( true );
+      return t;
+    });
+    replaytask = executor.scheduleWithFixedDelay( 
+            this::replay, REPLAY_TICK, REPLAY_TICK, TimeUnit.MILLISECONDS );
+    fsynctask = this.fsyncpolicy != FsyncPolicy.PERIODIC ? null 
+            : executor.scheduleWithFixedDelay( 
+                    this::fsync, FSYNC_INTERVAL, FSYNC_INTERVAL, TimeUnit.MILLISECONDS );
+  }
+  
+  /**
+   * Reads the header of an existing file, or starts a new one, and checks
+   * every record waiting to be replayed.
+   */
+  final synchronized void recover()
+  {
+    if ( map.getInt( 0 ) != MAGIC || map.getInt( 4 ) != VERSION )
+    {
+      map.putInt( 0, MAGIC );
+      map.putInt( 4, VERSION );
+      readposition = writeposition = HEADER_SIZE;
+      writeHeader();
+      return;
+    }
+    readposition = map.getInt( READ_OFFSET );
+    writeposition = map.getInt( WRITE_OFFSET );
+    if ( readposition < HEADER_SIZE || writeposition < readposition || writeposition > capacity )
+    {
+      coordinator.logger.error( "Outbound spool header is damaged. Discarding " + file );
+      readposition = writeposition = HEADER_SIZE;
+      writeHeader();
+      return;
+    }
+    int p = readposition;
+    while ( p < writeposition )
+    {
+      byte[] payload = payloadAt( p );
+      if ( payload == null )
+      {
+        coordinator.logger.error( "Damaged record in outbound spool. Discarding it and what follows." );
+        corrupt.increment();
+        writeposition = p;
+        writeHeader();
+        break;
+      }
+      p += RECORD_HEADER_SIZE + payload.length;
+      depth++;
+    }
+    if ( depth > 0 )
+      coordinator.logger.info( "Outbound spool has " + depth + " messages to replay." );
+  }
+  
+  /**
+   * Decides whether a message is worth keeping to send late.
+   * 
+   * @param m The message.
+   * @return False for messages that would be meaningless later.
+   */
+  boolean spoolable( OutboundMessage m )
+  {
+    String type = m.properties.getProperty( "LBUType" );
+    return !"coordination".equals( type )
+        && !RequestReplyManager.REQUEST_TYPE.equals( type )
+        && !RequestReplyManager.REPLY_TYPE.equals( type )
+        && !ClusterSingletonScheduler.LEASE_TYPE.equals( type )
+        // Streams have their own resends and time out long before a
+        // spooled chunk would be replayed.
+        && !( type != null && type.startsWith( ClusterStreams.TYPE_PREFIX ) );
+  }
+  
+  /**
+   * @return True if nothing is waiting to be replayed.
+   */
+  public synchronized boolean isEmpty()
+  {
+    return depth == 0;
+  }
+  
+  /**
+   * Adds a message to the end of the spool.
+   * 
+   * @param m The message.
+   * @return False if there was no room, the message is too big to store or
+   * the spool is closed.
+   */
+  synchronized boolean append( OutboundMessage m )
+  {
+    if ( closed )
+      return false;
+    ByteBuffer frame;
+    try
+    {
+      frame = MessageCodec.encode( m );
+    }
+    catch ( IllegalArgumentException ex )
+    {
+      // Bigger than MessageCodec.MAX_FRAME.
+      dropped.increment();
+      return false;
+    }
+    int need = RECORD_HEADER_SIZE + frame.remaining();
+    if ( writeposition + need > capacity )
+      compact();
+    if ( writeposition + need > capacity )
+    {
+      dropped.increment();
+      return false;
+    }
+    CRC32 crc = new CRC32();
+    crc.update( frame.duplicate() );
+    ByteBuffer b = map.duplicate();
+    b.position( writeposition );
+    b.putInt( frame.remaining() );
+    b.putInt( (int) crc.getValue() );
+    b.put( frame );
+    writeposition += need;
+    depth++;
+    spooled.increment();
+    writeHeader();
+    return true;
+  }
+  
+  /**
+   * Moves the records that haven't been replayed to the start of the file.
+   */
+  void compact()
+  {
+    if ( readposition == HEADER_SIZE )
+      return;
+    ByteBuffer from = map.duplicate();
+    from.position( readposition ).limit( writeposition );
+    ByteBuffer to = map.duplicate();
+    to.position( HEADER_SIZE );
+    to.put( from );
+    writeposition -= readposition - HEADER_SIZE;
+    readposition = HEADER_SIZE;
+    writeHeader();
+  }
+  
+  void writeHeader()
+  {
+    map.putInt( READ_OFFSET, readposition );
+    map.putInt( WRITE_OFFSET, writeposition );
+    if ( fsyncpolicy == FsyncPolicy.ALWAYS )
+      map.force();
+    else
+      dirty = true;
+  }
+  
+  /**
+   * Reads the record at a position and checks it. 
+   * 
+   * @return The payload or null if the record is damaged.
+   */
+  byte[] payloadAt( int p )
+  {
+    if ( p + RECORD_HEADER_SIZE > writeposition )
+      return null;
+    int length = map.getInt( p );
+    int checksum = map.getInt( p + 4 );
+    if ( length < 1 || p + RECORD_HEADER_SIZE + length > writeposition )
+      return null;
+    byte[] payload = new byte[ length ];
+    ByteBuffer b = map.duplicate();
+    b.position( p + RECORD_HEADER_SIZE );
+    b.get( payload );
+    CRC32 crc = new CRC32();
+    crc.update( payload );
+    return (int) crc.getValue() == checksum ? payload : null;
+  }
+  
+  synchronized byte[] peek()
+  {
+    if ( closed || depth == 0 )
+      return null;
+    byte[] payload = payloadAt( readposition );
+    if ( payload == null )
+    {
+      coordinator.logger.error( "Damaged record in outbound spool. Discarding it and what follows." );
+      corrupt.increment();
+      readposition = writeposition = HEADER_SIZE;
+      depth = 0;
+      writeHeader();
+    }
+    return payload;
+  }
+  
+  /**
+   * Removes the record at the head of the spool after it has been sent.
+   * This is the only thing that moves the read position forward so the 
+   * head record is still the one that was peeked even if the spool was 
+   * compacted in between.
+   */
+  synchronized void remove( byte[] payload )
+  {
+    if ( closed )
+      return;
+    readposition += RECORD_HEADER_SIZE + payload.length;
+    depth--;
+    replayed.increment();
+    if ( depth == 0 )
+      readposition = writeposition = HEADER_SIZE;
+    writeHeader();
+  }
+  
+  /**
+   * Sends as many spooled messages as the replay rate allows. Stops at the
+   * first failure and waits a while before trying again.
+   */
+  void replay()
+  {
+    try
+    {
+      long now = System.currentTimeMillis();
+      if ( now < retryat )
+        return;
+      allowance = Math.min( replayrate, allowance + replayrate * REPLAY_TICK / 1000.0 );
+      while ( allowance >= 1.0 )
+      {
+        byte[] payload = peek();
+        if ( payload == null )
+          return;
+        ByteBuffer frame = ByteBuffer.wrap( payload, 4, payload.length - 4 ).slice();
+        frame.get();
+        try
+        {
+          coordinator.transport.publish( MessageCodec.decode( frame ) );
+        }
+        catch ( MessageQueueException ex )
+        {
+          retryat = now + RETRY_DELAY;
+          return;
+        }
+        remove( payload );
+        allowance -= 1.0;
+      }
+    }
+    catch ( RuntimeException ex )
+    {
+      coordinator.logger.error( "Exception while replaying outbound spool.", ex );
+    }
+  }
+  
+  synchronized void fsync()
+  {
+    if ( dirty && !closed )
+    {
+      map.force();
+      dirty = false;
+    }
+  }
+  
+  /**
+   * Stops replaying and closes the file. Whatever is still waiting is 
+   * replayed when a spool is next opened on the same file.
+   */
+  synchronized void close()
+  {
+    if ( closed )
+      return;
+    replaytask.cancel( false );
+    if ( fsynctask != null )
+      fsynctask.cancel( false );
+    executor.shutdown();
+    if ( fsyncpolicy != FsyncPolicy.NEVER )
+      map.force();
+    closed = true;
+    try
+    {
+      raf.close();
+    }
+    catch ( IOException ex )
+    {
+      coordinator.logger.warn( "Unable to close outbound spool file.", ex );
+    }
+  }
+  
+  /** @return The file the spool is kept in. */
+  public File getFile() { return file; }
+  /** @return Messages waiting to be replayed. */
+  public synchronized int getDepth() { return depth; }
+  /** @return Bytes of the file in use, including replayed records not yet squeezed out. */
+  public synchronized int getUsedBytes() { return writeposition - HEADER_SIZE; }
+  /** @return Messages put in the spool. */
+  public long getSpooledCount() { return spooled.sum(); }
+  /** @return Messages sent from the spool. */
+  public long getReplayedCount() { return replayed.sum(); }
+  /** @return Messages lost because the spool was full. */
+  public long getDroppedCount() { return dropped.sum(); }
+  /** @return Damaged records found and discarded. */
+  public long getCorruptCount() { return corrupt.sum(); }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+/**
+ * A counter shared by all the servers that can go up and down. It is a 
+ * pair of grow only counters, one for increments and one for decrements,
+ * and its value is the difference.
+ *
+ * @author jon
+ */
+public class PNCounter
+{
+  final String name;
+  final GCounter p;
+  final GCounter n;
+
+  PNCounter( String name, GCounter p, GCounter n )
+  {
+    this.name = name;
+    this.p = p;
+    this.n = n;
+  }
+  
+  /** @return The name of the counter. */
+  public String getName()
+  {
+    return name;
+  }
+  
+  /** Adds one. */
+  public void increment()
+  {
+    p.increment();
+  }
+  
+  /** Takes away one. */
+  public void decrement()
+  {
+    n.increment();
+  }
+  
+  /**
+   * Adds to the counter.
+   * 
+   * @param delta The amount, which may be negative.
+   */
+  public void add( long delta )
+  {
+    if ( delta >= 0L )
+      p.add( delta );
+    else
+      n.add( -delta );
+  }
+  
+  /** @return The total for the whole cluster as far as this server knows. */
+  public long value()
+  {
+    return p.value() - n.value();
+  }
+  
+  /** @return The net amount added on this server. */
+  public long localValue()
+  {
+    return p.localValue() - n.localValue();
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+
+/**
+ * Compression of binary payloads and extraction of the payload from an
+ * incoming BytesMessage. Compressed payloads are tagged with the
+ * LBUCompression property and carry their original length in
+ * LBUUncompressedLength.
+ *
+ * @author jon
+ */
+class PayloadCodec
+{
+  public static final String COMPRESSION_PROPERTY = "LBUCompression";
+  public static final String UNCOMPRESSED_LENGTH_PROPERTY = "LBUUncompressedLength";
+  public static final String DEFLATE = "deflate";
+  
+  private PayloadCodec()
+  {
+  }
+  
+  /**
+   * Deflate part of an array.
+   * 
+   * @return The compressed bytes or null if compressing didn't make the
+   * payload smaller.
+   */
+  static byte[] compress( byte[] data, int offset, int length )
+  {
+    Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+    try
+    {
+      deflater.setInput( data, offset, length );
+      deflater.finish();
+      byte[] out = new byte[ length ];
+      int n = 0;
+      while ( !deflater.finished() )
+      {
+        if ( n == out.length )
+          return null;
+        n += deflater.deflate( out, n, out.length - n );
+      }
+      return n < length ? Arrays.copyOf( out, n ) : null;
+    }
+    finally
+    {
+      deflater.end();
+    }
+  }
+  
+  /**
+   * Inflate a payload that must come out at exactly its declared length.
+   * The length comes from the sender so it is checked before anything is
+   * allocated.
+   * 
+   * @param data The compressed bytes.
+   * @param uncompressedlength The declared length.
+   * @param maxlength The largest length that will be accepted.
+   * @return The uncompressed bytes.
+   * @throws DataFormatException If the length is out of range or the data
+   * doesn't inflate to exactly that length.
+   */
+  static byte[] decompress( byte[] data, int uncompressedlength, int maxlength ) throws DataFormatException
+  {
+    if ( uncompressedlength < 0 || uncompressedlength > maxlength )
+      throw new DataFormatException( "Declared uncompressed length " + uncompressedlength + " is out of range." );
+    Inflater inflater = new Inflater();
+    try
+    {
+      inflater.setInput( data );
+      byte[] out = new byte[ uncompressedlength ];
+      int n = 0;
+      while ( n < out.length && !inflater.finished() )
+      {
+        int k = inflater.inflate( out, n, out.length - n );
+        if ( k == 0 && ( inflater.needsInput() || inflater.needsDictionary() ) )
+          break;
+        n += k;
+      }
+      // The end of the stream may not have been read yet when the output
+      // filled up. There must be nothing more than that.
+      if ( n == out.length && !inflater.finished() && inflater.inflate( new byte[ 1 ] ) > 0 )
+        throw new DataFormatException( "Compressed payload is longer than its declared length." );
+      if ( n != out.length || !inflater.finished() )
+        throw new DataFormatException( "Compressed payload did not match its declared length." );
+      return out;
+    }
+    finally
+    {
+      inflater.end();
+    }
+  }
+  
+  /**
+   * Read the whole body of a BytesMessage, decompressing it if it was
+   * sent compressed.
+   * 
+   * @param message The incoming message.
+   * @param maxlength The largest payload that will be accepted, before or
+   * after decompression.
+   * @return A buffer wrapping the payload.
+   * @throws JMSException If the body can't be read or decompressed or is
+   * too large.
+   */
+  static ByteBuffer readPayload( BytesMessage message, int maxlength ) throws JMSException
+  {
+    if ( message.getBodyLength() > maxlength )
+      throw new JMSException( "Message payload of " + message.getBodyLength() + " bytes is too large." );
+    byte[] body = new byte[ (int)message.getBodyLength() ];
+    message.readBytes( body );
+    if ( !DEFLATE.equals( message.getStringProperty( COMPRESSION_PROPERTY ) ) )
+      return ByteBuffer.wrap( body );
+    try
+    {
+      int length = Integer.parseInt( message.getStringProperty( UNCOMPRESSED_LENGTH_PROPERTY ) );
+      return ByteBuffer.wrap( decompress( body, length, maxlength ) );
+    }
+    catch ( DataFormatException | NumberFormatException ex )
+    {
+      JMSException jmsex = new JMSException( "Unable to decompress message payload." );
+      jmsex.setLinkedException( ex );
+      throw jmsex;
+    }
+  }
+}
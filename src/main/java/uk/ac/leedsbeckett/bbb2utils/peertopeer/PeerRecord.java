@@ -0,0 +1,90 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+/**
+ * What is known about one peer. As well as when it was last heard from at
+ * all a record keeps the recent intervals between its heartbeats so that
+ * the failure detector can judge how overdue the peer is.
+ *
+ * @author jon
+ */
+class PeerRecord
+{
+  static final int MAX_SAMPLES = 100;
+  
+  final String name;
+  final long namehash;
+  final long starttime;
+  volatile long lastcontacttime;
+  
+  long lastheartbeattime = 0L;
+  final long[] intervals = new long[ MAX_SAMPLES ];
+  int samplecount = 0;
+  int nextsample = 0;
+  double intervalsum = 0.0;
+  double intervalsquaresum = 0.0;
+
+  public PeerRecord( String name, long starttime )
+  {
+    this.name = name;
+    this.namehash = RendezvousHash.hash( name );
+    lastcontacttime = this.starttime = starttime;
+  }
+  
+  /**
+   * Record the arrival of a heartbeat and the interval since the previous
+   * one.
+   */
+  synchronized void heartbeat( long now )
+  {
+    if ( lastheartbeattime > 0L && now > lastheartbeattime )
+    {
+      long interval = now - lastheartbeattime;
+      if ( samplecount == MAX_SAMPLES )
+      {
+        long old = intervals[ nextsample ];
+        intervalsum -= old;
+        intervalsquaresum -= (double)old * old;
+      }
+      else
+        samplecount++;
+      intervals[ nextsample ] = interval;
+      nextsample = (nextsample + 1) % MAX_SAMPLES;
+      intervalsum += interval;
+      intervalsquaresum += (double)interval * interval;
+    }
+    lastheartbeattime = now;
+  }
+  
+  synchronized int getSampleCount()
+  {
+    return samplecount;
+  }
+  
+  synchronized double getMeanInterval()
+  {
+    return samplecount == 0 ? 0.0 : intervalsum / samplecount;
+  }
+  
+  synchronized double getIntervalStandardDeviation()
+  {
+    if ( samplecount == 0 )
+      return 0.0;
+    double mean = intervalsum / samplecount;
+    return Math.sqrt( Math.max( 0.0, intervalsquaresum / samplecount - mean * mean ) );
+  }
+}
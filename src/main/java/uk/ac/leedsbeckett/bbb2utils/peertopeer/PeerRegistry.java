@@ -0,0 +1,222 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The set of known peers. Peers are indexed by name in a concurrent hash
+ * map and by start time in a skip list so the oldest and newest can be
+ * found without sorting and without a global lock. Each peer has an entry
+ * in a delay queue which falls due when the peer would time out, so
+ * expiring peers only looks at the peers which might have expired rather
+ * than scanning the whole list. How long a peer may stay silent is decided
+ * by the failure detector.
+ *
+ * @author jon
+ */
+class PeerRegistry
+{
+  static final Comparator<PeerRecord> BY_AGE = 
+          Comparator.comparingLong( (PeerRecord r) -> r.starttime ).thenComparing( r -> r.name );
+  
+  final ConcurrentHashMap<String,PeerRecord> peersbyname = new ConcurrentHashMap<>();
+  final ConcurrentSkipListSet<PeerRecord> peersbyage = new ConcurrentSkipListSet<>( BY_AGE );
+  final DelayQueue<Expiry> expiries = new DelayQueue<>();
+  final PhiAccrualFailureDetector detector;
+
+  /**
+   * @param detector Decides how long a peer can go without being heard from
+   * before it is removed.
+   */
+  PeerRegistry( PhiAccrualFailureDetector detector )
+  {
+    this.detector = detector;
+  }
+  
+  PeerRecord get( String name )
+  {
+    return peersbyname.get( name );
+  }
+  
+  boolean contains( String name )
+  {
+    return peersbyname.containsKey( name );
+  }
+  
+  /**
+   * Add a peer if it isn't already known.
+   * 
+   * @param name The peer's server ID.
+   * @param starttime When the peer started.
+   * @return The new record or null if the peer was already known.
+   */
+  PeerRecord add( String name, long starttime )
+  {
+    PeerRecord record = new PeerRecord( name, starttime );
+    if ( peersbyname.putIfAbsent( name, record ) != null )
+      return null;
+    peersbyage.add( record );
+    expiries.add( new Expiry( record, record.lastcontacttime + detector.timeoutFor( record ) ) );
+    return record;
+  }
+  
+  /**
+   * Remove a peer.
+   * 
+   * @param name The peer's server ID.
+   * @return The record that was removed or null if the peer wasn't known.
+   */
+  PeerRecord remove( String name )
+  {
+    PeerRecord record = peersbyname.remove( name );
+    if ( record != null )
+      peersbyage.remove( record );
+    return record;
+  }
+  
+  void touch( String name )
+  {
+    PeerRecord record = peersbyname.get( name );
+    if ( record != null )
+      record.lastcontacttime = System.currentTimeMillis();
+  }
+  
+  void heartbeat( String name )
+  {
+    PeerRecord record = peersbyname.get( name );
+    if ( record != null )
+    {
+      long now = System.currentTimeMillis();
+      record.heartbeat( now );
+      record.lastcontacttime = now;
+    }
+  }
+  
+  /**
+   * Removes peers that have been silent for too long. Only
+   * peers whose expiry entry has fallen due are looked at. If one of those
+   * has been heard from since the entry was made it gets a new entry.
+   * 
+   * @return The peers that were removed.
+   */
+  List<PeerRecord> expire()
+  {
+    List<PeerRecord> removed = null;
+    long now = System.currentTimeMillis();
+    Expiry e;
+    while ( (e = expiries.poll()) != null )
+    {
+      PeerRecord record = e.record;
+      if ( peersbyname.get( record.name ) != record )
+        continue;  // already removed or replaced
+      long deadline = record.lastcontacttime + detector.timeoutFor( record );
+      if ( deadline > now )
+      {
+        expiries.add( new Expiry( record, deadline ) );
+        continue;
+      }
+      if ( peersbyname.remove( record.name, record ) )
+      {
+        peersbyage.remove( record );
+        if ( removed == null ) removed = new ArrayList<>();
+        removed.add( record );
+      }
+    }
+    return removed == null ? Collections.emptyList() : removed;
+  }
+  
+  PeerRecord oldest()
+  {
+    Iterator<PeerRecord> it = peersbyage.iterator();
+    return it.hasNext() ? it.next() : null;
+  }
+
+  PeerRecord newest()
+  {
+    Iterator<PeerRecord> it = peersbyage.descendingIterator();
+    return it.hasNext() ? it.next() : null;
+  }
+  
+  /**
+   * Find the peer that owns a key by rendezvous hashing.
+   * 
+   * @param key The key.
+   * @return The owner or null if there are no peers.
+   */
+  PeerRecord ownerOf( String key )
+  {
+    long keyhash = RendezvousHash.hash( key );
+    PeerRecord owner = null;
+    long best = 0L;
+    for ( PeerRecord r : peersbyage )
+    {
+      long w = RendezvousHash.weight( keyhash, r.namehash );
+      if ( owner == null || Long.compareUnsigned( w, best ) > 0 )
+      {
+        owner = r;
+        best = w;
+      }
+    }
+    return owner;
+  }
+  
+  /**
+   * @return A snapshot of the peers in order of age, oldest first.
+   */
+  List<PeerRecord> list()
+  {
+    return new ArrayList<>( peersbyage );
+  }
+  
+  int size()
+  {
+    return peersbyname.size();
+  }
+  
+  static class Expiry implements Delayed
+  {
+    final PeerRecord record;
+    final long deadline;
+
+    Expiry( PeerRecord record, long deadline )
+    {
+      this.record = record;
+      this.deadline = deadline;
+    }
+    
+    @Override
+    public long getDelay( TimeUnit unit )
+    {
+      return unit.convert( deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS );
+    }
+
+    @Override
+    public int compareTo( Delayed o )
+    {
+      return Long.compare( deadline, ((Expiry)o).deadline );
+    }
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+/**
+ * Decides how long a peer can go unheard before it is presumed dead, based
+ * on the intervals actually seen between its heartbeats. The suspicion
+ * level phi is -log10 of the probability that a heartbeat would still turn
+ * up given how long it has been since the peer was last heard from,
+ * assuming intervals are normally distributed. A phi of 8 means there is
+ * roughly a one in a hundred million chance that the peer is alive.
+ * 
+ * Until a peer has sent a few heartbeats its intervals are assumed to match
+ * the configured heartbeat interval. If heartbeats are switched off the
+ * fixed maximum timeout is used, as it was before heartbeats existed.
+ *
+ * @author jon
+ */
+class PhiAccrualFailureDetector
+{
+  static final int MIN_SAMPLES = 3;
+  static final long MIN_STANDARD_DEVIATION = 500L;
+  
+  final long maxtimeout;
+  volatile long heartbeatinterval;
+  volatile double threshold;
+
+  /**
+   * @param heartbeatinterval Expected milliseconds between heartbeats, or
+   * zero if heartbeats are off.
+   * @param threshold The phi at which a peer is presumed dead.
+   * @param maxtimeout The longest a peer can go unheard, in milliseconds.
+   */
+  PhiAccrualFailureDetector( long heartbeatinterval, double threshold, long maxtimeout )
+  {
+    this.heartbeatinterval = heartbeatinterval;
+    this.threshold = threshold;
+    this.maxtimeout = maxtimeout;
+  }
+  
+  /**
+   * Work out the suspicion level for a peer.
+   * 
+   * @param r The peer.
+   * @param now The current time.
+   * @return Phi, which grows the longer the peer has been silent.
+   */
+  double phi( PeerRecord r, long now )
+  {
+    long elapsed = now - r.lastcontacttime;
+    if ( heartbeatinterval <= 0L )
+      return elapsed > maxtimeout ? Double.POSITIVE_INFINITY : 0.0;
+    double[] estimate = estimate( r );
+    return phi( elapsed, estimate[0], estimate[1] );
+  }
+  
+  /**
+   * @return The mean and standard deviation of the peer's heartbeat 
+   * intervals, or assumed values if there aren't enough samples yet.
+   */
+  double[] estimate( PeerRecord r )
+  {
+    synchronized ( r )
+    {
+      if ( r.getSampleCount() < MIN_SAMPLES )
+        return new double[] { heartbeatinterval, heartbeatinterval / 4.0 };
+      return new double[] { r.getMeanInterval(), r.getIntervalStandardDeviation() };
+    }
+  }
+  
+  /**
+   * Phi for a given silence, using a logistic approximation of the normal
+   * distribution. One missed heartbeat is allowed for before the clock
+   * starts.
+   */
+  double phi( long elapsed, double mean, double sd )
+  {
+    mean += heartbeatinterval;
+    sd = Math.max( sd, Math.max( MIN_STANDARD_DEVIATION, heartbeatinterval / 10.0 ) );
+    double y = (elapsed - mean) / sd;
+    double e = Math.exp( -y * (1.5976 + 0.070566 * y * y) );
+    double p = elapsed > mean ? e / (1.0 + e) : 1.0 - 1.0 / (1.0 + e);
+    if ( p <= 0.0 )
+      return Double.POSITIVE_INFINITY;
+    return -Math.log10( p );
+  }
+  
+  /**
+   * Work out how long after it was last heard from a peer will cross the
+   * threshold.
+   * 
+   * @param r The peer.
+   * @return Milliseconds after the last contact, at most maxtimeout.
+   */
+  long timeoutFor( PeerRecord r )
+  {
+    if ( heartbeatinterval <= 0L )
+      return maxtimeout;
+    double[] estimate = estimate( r );
+    if ( phi( maxtimeout, estimate[0], estimate[1] ) < threshold )
+      return maxtimeout;
+    long low = 0L, high = maxtimeout;
+    while ( high - low > 10L )
+    {
+      long mid = (low + high) >>> 1;
+      if ( phi( mid, estimate[0], estimate[1] ) >= threshold )
+        high = mid;
+      else
+        low = mid;
+    }
+    return high;
+  }
+}
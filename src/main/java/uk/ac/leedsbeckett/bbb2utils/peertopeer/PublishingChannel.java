@@ -0,0 +1,321 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import blackboard.platform.messagequeue.MessageQueueException;
+import blackboard.platform.messagequeue.MessageQueueUtil;
+import java.util.List;
+import java.util.Properties;
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import javax.jms.TopicPublisher;
+import org.apache.activemq.ActiveMQConnection;
+import org.apache.activemq.ActiveMQTopicSession;
+
+/**
+ * A long lived channel for publishing to one topic. Instead of getting a
+ * connection, session and publisher for every message and closing them
+ * afterwards the channel keeps one connection from the connection source 
+ * and a small
+ * number of sessions with publishers. JMS sessions must not be used by
+ * more than one thread at a time so each session lives in a 'stripe' with
+ * its own lock and a sending thread picks a stripe from its thread id.
+ *
+ * A further transacted session is kept for sending batches of messages
+ * which are then committed together.
+ *
+ * Coordination messages have their own stripe so that heartbeats never wait
+ * behind a thread that is publishing bulk user messages. They are also
+ * published with a higher JMS priority than user messages.
+ *
+ * If publishing fails the connection is given back to the source and every
+ * stripe rebuilds its session against a fresh connection on next use.
+ *
+ * @author jon
+ */
+class PublishingChannel
+{
+  public static final int DEFAULT_STRIPES = 4;
+  public static final int COORDINATION_PRIORITY = 7;
+  public static final int USER_PRIORITY = 4;
+
+  final ConnectionSource connections;
+  final CoordinatorMetrics metrics;
+  final String topic;
+  final Stripe[] stripes;
+  final Stripe batchstripe = new Stripe( true );
+  final Stripe prioritystripe = new Stripe( false );
+
+  final Object connectionlock = new Object();
+  ActiveMQConnection connection = null;
+  int generation = 0;
+  boolean closed = false;
+
+  PublishingChannel( ConnectionSource connections, CoordinatorMetrics metrics, String topic, int stripecount )
+  {
+    this.connections = connections;
+    this.metrics = metrics;
+    this.topic = topic;
+    stripes = new Stripe[ Math.max( 1, stripecount ) ];
+    for ( int i=0; i<stripes.length; i++ )
+      stripes[i] = new Stripe( false );
+  }
+
+  /**
+   * Publish a text message with the given string properties. One retry is
+   * made against a new connection if the first attempt fails.
+   *
+   * @param text The body of the message.
+   * @param properties String properties to set on the message.
+   * @throws MessageQueueException If the message could not be sent.
+   */
+  void publish( String text, Properties properties ) throws MessageQueueException
+  {
+    Stripe stripe = stripes[ (int)( Thread.currentThread().getId() % stripes.length ) ];
+    synchronized ( stripe )
+    {
+      withRetry( stripe, s -> s.send( text, properties ) );
+    }
+  }
+
+  /**
+   * Publish a text or binary message. One retry is made against a new 
+   * connection if the first attempt fails.
+   *
+   * @param m The message.
+   * @throws MessageQueueException If the message could not be sent.
+   */
+  void publish( OutboundMessage m ) throws MessageQueueException
+  {
+    Stripe stripe = m.isCoordination() 
+            ? prioritystripe 
+            : stripes[ (int)( Thread.currentThread().getId() % stripes.length ) ];
+    synchronized ( stripe )
+    {
+      withRetry( stripe, s -> s.send( m ) );
+    }
+  }
+
+  /**
+   * Publish a list of messages in a single transaction. One retry of the
+   * whole batch is made against a new connection if the first attempt
+   * fails.
+   *
+   * @param batch The messages to send.
+   * @throws MessageQueueException If the batch could not be sent.
+   */
+  void publishBatch( List<OutboundMessage> batch ) throws MessageQueueException
+  {
+    synchronized ( batchstripe )
+    {
+      withRetry( batchstripe, s -> 
+      {
+        for ( OutboundMessage m : batch )
+          s.send( m );
+        s.commit();
+      });
+    }
+  }
+  
+  private void withRetry( Stripe stripe, StripeAction action ) throws MessageQueueException
+  {
+    try
+    {
+      action.run( stripe );
+    }
+    catch ( Exception first )
+    {
+      stripe.discard();
+      try
+      {
+        action.run( stripe );
+      }
+      catch ( Exception ex )
+      {
+        stripe.discard();
+        throw new MessageQueueException( "Could not send AMQ message.", ex );
+      }
+    }
+  }
+
+  /**
+   * Close all the sessions and give the connection back to the source. The
+   * channel cannot be used after this.
+   */
+  void close()
+  {
+    synchronized ( connectionlock )
+    {
+      closed = true;
+    }
+    for ( Stripe stripe : stripes )
+      synchronized ( stripe )
+      {
+        stripe.close();
+      }
+    synchronized ( batchstripe )
+    {
+      batchstripe.close();
+    }
+    synchronized ( prioritystripe )
+    {
+      prioritystripe.close();
+    }
+    synchronized ( connectionlock )
+    {
+      releaseConnection();
+    }
+  }
+
+  /**
+   * Gets the shared connection, getting one from the source if necessary.
+   * The stripe is told which generation of connection it got so it can
+   * tell later if the connection has been replaced.
+   */
+  ActiveMQConnection getConnection( Stripe stripe ) throws Exception
+  {
+    synchronized ( connectionlock )
+    {
+      if ( closed )
+        throw new MessageQueueException( "Publishing channel is closed." );
+      if ( connection == null )
+      {
+        long t = System.nanoTime();
+        connection = connections.getConnection();
+        metrics.recordConnectionAcquire( System.nanoTime() - t );
+        generation++;
+      }
+      stripe.generation = generation;
+      return connection;
+    }
+  }
+
+  /**
+   * Gives the connection back to the source if the given generation is still
+   * the current one. Other stripes will notice the change of generation and
+   * rebuild their sessions.
+   */
+  void discardConnection( int failedgeneration )
+  {
+    synchronized ( connectionlock )
+    {
+      if ( failedgeneration == generation )
+        releaseConnection();
+    }
+  }
+
+  private void releaseConnection()
+  {
+    if ( connection != null )
+      connections.releaseConnection( connection );
+    connection = null;
+  }
+
+  boolean isCurrent( int stripegeneration )
+  {
+    synchronized ( connectionlock )
+    {
+      return connection != null && stripegeneration == generation;
+    }
+  }
+
+  interface StripeAction
+  {
+    void run( Stripe stripe ) throws Exception;
+  }
+  
+  class Stripe
+  {
+    final boolean transacted;
+    ActiveMQTopicSession session = null;
+    TopicPublisher publisher = null;
+    int generation = -1;
+
+    Stripe( boolean transacted )
+    {
+      this.transacted = transacted;
+    }
+    
+    void open() throws Exception
+    {
+      if ( session != null && !isCurrent( generation ) )
+        close();
+      if ( session == null )
+      {
+        ActiveMQConnection con = getConnection( this );
+        session = (ActiveMQTopicSession) con.createTopicSession( transacted, transacted ? Session.SESSION_TRANSACTED : 1 );
+        publisher = session.createPublisher( session.createTopic( topic ) );
+      }
+    }
+    
+    void send( String text, Properties properties ) throws Exception
+    {
+      open();
+      TextMessage message = session.createTextMessage( text );
+      setProperties( message, properties );
+      publisher.publish( message, publisher.getDeliveryMode(), USER_PRIORITY, publisher.getTimeToLive() );
+    }
+
+    void send( OutboundMessage m ) throws Exception
+    {
+      open();
+      Message message;
+      if ( m.isBinary() )
+      {
+        BytesMessage bm = session.createBytesMessage();
+        bm.writeBytes( m.bytes, m.offset, m.length );
+        message = bm;
+      }
+      else
+        message = session.createTextMessage( m.text );
+      if ( m.correlationid != null )
+        message.setJMSCorrelationID( m.correlationid );
+      setProperties( message, m.properties );
+      publisher.publish( message, 
+              publisher.getDeliveryMode(), 
+              m.isCoordination() ? COORDINATION_PRIORITY : USER_PRIORITY, 
+              publisher.getTimeToLive() );
+    }
+    
+    void setProperties( Message message, Properties properties ) throws JMSException
+    {
+      for ( Object key : properties.keySet() )
+        message.setStringProperty( key.toString(), properties.getProperty( key.toString() ) );
+    }
+
+    void commit() throws Exception
+    {
+      if ( transacted && session != null )
+        session.commit();
+    }
+    
+    void discard()
+    {
+      close();
+      discardConnection( generation );
+    }
+
+    void close()
+    {
+      MessageQueueUtil.closeMessageQueueObjects( session, null, null, publisher, null );
+      session = null;
+      publisher = null;
+    }
+  }
+}
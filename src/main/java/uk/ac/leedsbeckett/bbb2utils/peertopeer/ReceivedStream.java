@@ -0,0 +1,110 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stream that has arrived in full from a peer. Small streams are kept in
+ * memory as the chunks they arrived in and larger ones in a temporary 
+ * file. Either way the data can be read as many times as needed until the
+ * stream is closed.
+ *
+ * @author jon
+ */
+public class ReceivedStream implements Closeable
+{
+  final String from;
+  final String streamid;
+  final String label;
+  final long length;
+  final File file;
+  final List<byte[]> chunks;
+  final AtomicLong memoryinuse;
+  long memorybytes;
+  boolean closed = false;
+
+  ReceivedStream( String from, String streamid, String label, long length, File file, List<byte[]> chunks, long memorybytes, AtomicLong memoryinuse )
+  {
+    this.from = from;
+    this.streamid = streamid;
+    this.label = label;
+    this.length = length;
+    this.file = file;
+    this.chunks = chunks;
+    this.memorybytes = memorybytes;
+    this.memoryinuse = memoryinuse;
+  }
+
+  /** @return The server that sent the stream. */
+  public String getFrom() { return from; }
+  /** @return The ID the sender gave the stream. */
+  public String getStreamId() { return streamid; }
+  /** @return The label the sender gave the stream, which may be empty. */
+  public String getLabel() { return label; }
+  /** @return The number of bytes in the stream. */
+  public long getLength() { return length; }
+  /** @return True if the data is held in memory rather than in a file. */
+  public boolean isInMemory() { return file == null; }
+  /** @return The temporary file holding the data or null if it is in memory. */
+  public File getFile() { return file; }
+  
+  /**
+   * Opens the data for reading from the start.
+   * 
+   * @return An input stream which the caller must close.
+   * @throws IOException If the stream has been closed or the file can't 
+   * be opened.
+   */
+  public synchronized InputStream openStream() throws IOException
+  {
+    if ( closed )
+      throw new IOException( "Received stream " + streamid + " has been closed." );
+    if ( file != null )
+      return new FileInputStream( file );
+    List<InputStream> list = new ArrayList<>( chunks.size() );
+    for ( byte[] chunk : chunks )
+      list.add( new ByteArrayInputStream( chunk ) );
+    return new SequenceInputStream( Collections.enumeration( list ) );
+  }
+  
+  /**
+   * Deletes the temporary file or lets go of the data in memory.
+   */
+  @Override
+  public synchronized void close()
+  {
+    if ( closed )
+      return;
+    closed = true;
+    if ( file != null && !file.delete() )
+      file.deleteOnExit();
+    if ( chunks != null )
+      chunks.clear();
+    memoryinuse.addAndGet( -memorybytes );
+    memorybytes = 0L;
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Rendezvous (highest random weight) hashing. Every peer gets a
+ * pseudo-random weight for a key and the peer with the highest weight owns
+ * the key. When a peer leaves only the keys it owned move, and they spread
+ * evenly over the remaining peers. When a peer joins it takes an even
+ * share of keys from each of the others. No ring or virtual nodes are
+ * needed.
+ *
+ * @author jon
+ */
+class RendezvousHash
+{
+  private RendezvousHash()
+  {
+  }
+  
+  /**
+   * 64 bit FNV-1a hash of the UTF-8 bytes of a string, so that every
+   * server computes the same value whatever JVM it runs on.
+   */
+  static long hash( String s )
+  {
+    long h = 0xcbf29ce484222325L;
+    for ( byte b : s.getBytes( StandardCharsets.UTF_8 ) )
+    {
+      h ^= (b & 0xff);
+      h *= 0x100000001b3L;
+    }
+    return h;
+  }
+  
+  /**
+   * The weight of a peer for a key. The two hashes are combined and then
+   * mixed thoroughly so that weights for different peers are independent.
+   */
+  static long weight( long keyhash, long peerhash )
+  {
+    long z = keyhash ^ (peerhash * 0x9e3779b97f4a7c15L);
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * Request and reply messaging between peers. A request carries a JMS
+ * correlation ID and the reply comes back addressed to the requesting
+ * server with the same correlation ID, so any number of requests can be
+ * outstanding at once. Each request has its own timeout.
+ * 
+ * Futures are completed on the message delivery thread, so callers that
+ * do any real work when a reply arrives should use the async variants of
+ * the CompletableFuture methods.
+ *
+ * @author jon
+ */
+class RequestReplyManager
+{
+  static final String REQUEST_TYPE = "request";
+  static final String REPLY_TYPE = "reply";
+  
+  final BuildingBlockCoordinator coordinator;
+  final ConcurrentHashMap<String,Pending> pending = new ConcurrentHashMap<>();
+  final AtomicLong nextid = new AtomicLong();
+  final String idprefix;
+  volatile BuildingBlockPeerRequestHandler handler = null;
+
+  RequestReplyManager( BuildingBlockCoordinator coordinator )
+  {
+    this.coordinator = coordinator;
+    this.idprefix = coordinator.serverid + "-" + Long.toHexString( System.currentTimeMillis() ) + "-";
+  }
+  
+  /**
+   * Send a request to one server.
+   * 
+   * @param str The text of the request.
+   * @param toserverid The server to ask.
+   * @param timeout Milliseconds to wait for the reply.
+   * @return A future that completes with the reply or with a 
+   * TimeoutException.
+   */
+  CompletableFuture<Message> request( String str, String toserverid, long timeout )
+  {
+    Pending p = new Pending( 1 );
+    CompletableFuture<Message> result = p.future.thenApply( list -> list.get( 0 ) );
+    start( p, str, toserverid, timeout );
+    return result;
+  }
+  
+  /**
+   * Send a request to all servers and gather the replies.
+   * 
+   * @param str The text of the request.
+   * @param replies How many replies to wait for. Zero or less means one from
+   * each peer known when the request is sent.
+   * @param timeout Milliseconds to wait for the replies.
+   * @return A future that completes with the first replies to arrive or 
+   * with a TimeoutException if too few arrive in time.
+   */
+  CompletableFuture<List<Message>> requestAll( String str, int replies, long timeout )
+  {
+    int required = replies > 0 ? replies : coordinator.peers.size();
+    Pending p = new Pending( required );
+    if ( required == 0 )
+      p.future.complete( Collections.emptyList() );
+    else
+      start( p, str, "*", timeout );
+    return p.future;
+  }
+  
+  private void start( Pending p, String str, String to, long timeout )
+  {
+    String id = idprefix + nextid.incrementAndGet();
+    pending.put( id, p );
+    p.timer = coordinator.scheduler.schedule( () -> expire( id ), timeout, TimeUnit.MILLISECONDS );
+    
+    Properties props = coordinator.userMessageProperties( to );
+    props.setProperty( "LBUType", REQUEST_TYPE );
+    OutboundMessage m = new OutboundMessage( str, props );
+    m.correlationid = id;
+    coordinator.send( m ).whenComplete( ( v, ex ) ->
+    {
+      if ( ex != null && pending.remove( id, p ) )
+      {
+        p.timer.cancel( false );
+        p.future.completeExceptionally( ex );
+      }
+    });
+  }
+  
+  private void expire( String id )
+  {
+    Pending p = pending.remove( id );
+    if ( p != null )
+      p.future.completeExceptionally( new TimeoutException( "Only " + p.replies.size() + " of " + p.required + " replies received." ) );
+  }
+  
+  /**
+   * Handles incoming replies.
+   */
+  void consumeReply( Message message ) throws JMSException
+  {
+    String id = message.getJMSCorrelationID();
+    if ( id == null )
+      return;
+    Pending p = pending.get( id );
+    if ( p == null )
+      return;  // late or unknown
+    if ( p.add( message ) && pending.remove( id, p ) )
+    {
+      p.timer.cancel( false );
+      p.future.complete( p.replies );
+    }
+  }
+  
+  /**
+   * Handles incoming requests by passing them to the handler on the
+   * dispatcher, or inline if there is no dispatcher, and sending back
+   * the answer.
+   */
+  void consumeRequest( Message message ) throws JMSException
+  {
+    BuildingBlockPeerRequestHandler h = handler;
+    String id = message.getJMSCorrelationID();
+    String from = message.getStringProperty( "LBUFromServerID" );
+    if ( h == null || id == null || from == null )
+      return;
+    try
+    {
+      coordinator.dispatchUserWork( from, () -> reply( h, message, id, from ) );
+    }
+    catch ( InterruptedException ex )
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  private void reply( BuildingBlockPeerRequestHandler h, Message message, String id, String from )
+  {
+    String answer = h.handleRequest( message );
+    if ( answer == null )
+      return;
+    Properties props = coordinator.userMessageProperties( from );
+    props.setProperty( "LBUType", REPLY_TYPE );
+    OutboundMessage m = new OutboundMessage( answer, props );
+    m.correlationid = id;
+    coordinator.send( m ).whenComplete( coordinator::logSendFailure );
+  }
+  
+  /**
+   * Fails all outstanding requests.
+   */
+  void close()
+  {
+    for ( String id : pending.keySet() )
+    {
+      Pending p = pending.remove( id );
+      if ( p != null )
+      {
+        p.timer.cancel( false );
+        p.future.completeExceptionally( new IllegalStateException( "Coordinator stopped." ) );
+      }
+    }
+  }
+  
+  static class Pending
+  {
+    final int required;
+    final List<Message> replies;
+    final CompletableFuture<List<Message>> future = new CompletableFuture<>();
+    volatile ScheduledFuture<?> timer;
+
+    Pending( int required )
+    {
+      this.required = required;
+      this.replies = new ArrayList<>( required );
+    }
+    
+    /**
+     * @return True if this reply was the last one needed.
+     */
+    synchronized boolean add( Message message )
+    {
+      if ( replies.size() >= required )
+        return false;
+      replies.add( message );
+      return replies.size() == required;
+    }
+  }
+}
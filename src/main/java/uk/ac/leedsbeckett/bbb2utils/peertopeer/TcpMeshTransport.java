@@ -0,0 +1,820 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import blackboard.platform.messagequeue.MessageQueueException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * A transport that sends messages straight to known peers over TCP, with
+ * no broker in between. Every server listens on a port and keeps one
+ * outgoing connection to each peer, so a message to one peer is a single
+ * write and a message to everyone is one write per peer. The peers must 
+ * be configured in advance, by server ID and address, and all of them
+ * must use the same list.
+ * 
+ * One thread does all the network IO with non-blocking channels and a
+ * selector, and another passes incoming messages to the coordinator in
+ * the order they arrived. Sending only queues the encoded message for the
+ * IO thread so it does not wait for the network. If a peer can't be 
+ * reached its messages wait, up to a limit, while the connection is tried
+ * again every second. Messages to everyone that don't fit are dropped for 
+ * that peer and counted; a message to one peer that doesn't fit fails.
+ * 
+ * Coordination messages jump ahead of user messages waiting for the same
+ * peer and are passed to the coordinator on their own thread, so heartbeats
+ * are not delayed by a backlog of user messages.
+ * 
+ * Anything that can reach the listening port can send messages to the
+ * coordinator, so listen on an address that only the application servers
+ * can reach, such as one on a private network, rather than on every
+ * interface. When a shared secret is given every connection must start by
+ * proving that it knows the secret, with an HMAC over the topic, the time
+ * and a random nonce, and connections that don't are closed. The secret 
+ * does not encrypt anything, so on a network that others can watch the
+ * mesh should run over a VPN or an encrypted tunnel.
+ * 
+ * The building block's manifest needs a socket permission with the listen
+ * and accept actions as well as connect and resolve.
+ *
+ * @author jon
+ */
+public class TcpMeshTransport implements CoordinatorTransport
+{
+  public static final long DEFAULT_MAX_PENDING_BYTES = 16L * 1024L * 1024L;
+  static final long RECONNECT_DELAY = 1000L;
+  static final long CLOSE_TIMEOUT = 2000L;
+  static final int READ_BUFFER_SIZE = 64 * 1024;
+  static final long HELLO_WINDOW = 5L * 60L * 1000L;
+  static final int NONCE_SIZE = 16;
+  static final int MAC_SIZE = 32;
+  static final int MAX_HELLO = 4096;
+  static final String MAC_ALGORITHM = "HmacSHA256";
+  static final long WARNING_INTERVAL = 60L * 1000L;
+  
+  static final byte HELLO = 0;
+
+  final InetSocketAddress listenaddress;
+  final long maxpendingbytes;
+  final SecretKeySpec secret;
+  final SecureRandom random = new SecureRandom();
+  final HashMap<String,Long> noncesseen = new HashMap<>();
+  final AtomicLong lastdropwarning = new AtomicLong();
+  final AtomicLong dropssincewarning = new AtomicLong();
+  long lastrejectwarning = 0L;
+  final ConcurrentHashMap<String,InetSocketAddress> peeraddresses = new ConcurrentHashMap<>();
+  final ConcurrentHashMap<String,Link> links = new ConcurrentHashMap<>();
+  final ConcurrentLinkedQueue<Runnable> iotasks = new ConcurrentLinkedQueue<>();
+  final List<Inbound> inbound = new ArrayList<>();
+  
+  final LongAdder framessent = new LongAdder();
+  final LongAdder framesreceived = new LongAdder();
+  final LongAdder framesdropped = new LongAdder();
+  final LongAdder connectfailures = new LongAdder();
+  final LongAdder hellosrejected = new LongAdder();
+  
+  volatile BuildingBlockCoordinator coordinator = null;
+  volatile boolean running = false;
+  volatile long closedeadline = 0L;
+  Selector selector;
+  ServerSocketChannel server;
+  Thread iothread;
+  ExecutorService delivery;
+  ExecutorService coordinationdelivery;
+  byte[] hello;
+
+  /**
+   * @param listenaddress The address to accept connections from peers on.
+   * @param peers The server ID and address of every server in the mesh. An
+   * entry for this server is ignored so every server can be given the 
+   * same map.
+   */
+  public TcpMeshTransport( InetSocketAddress listenaddress, Map<String,InetSocketAddress> peers )
+  {
+    this( listenaddress, peers, DEFAULT_MAX_PENDING_BYTES );
+  }
+
+  /**
+   * @param listenaddress The address to accept connections from peers on.
+   * @param peers The server ID and address of every server in the mesh.
+   * @param maxpendingbytes How many bytes of messages may wait to be sent 
+   * to one peer.
+   */
+  public TcpMeshTransport( InetSocketAddress listenaddress, Map<String,InetSocketAddress> peers, long maxpendingbytes )
+  {
+    this( listenaddress, peers, maxpendingbytes, null );
+  }
+
+  /**
+   * @param listenaddress The address to accept connections from peers on.
+   * @param peers The server ID and address of every server in the mesh.
+   * @param maxpendingbytes How many bytes of messages may wait to be sent 
+   * to one peer.
+   * @param sharedsecret A secret that every server in the mesh is given,
+   * or null to accept any connection that names the right topic.
+   */
+  public TcpMeshTransport( InetSocketAddress listenaddress, Map<String,InetSocketAddress> peers, long maxpendingbytes, byte[] sharedsecret )
+  {
+    this.listenaddress = listenaddress;
+    this.maxpendingbytes = maxpendingbytes;
+    this.secret = sharedsecret == null ? null : new SecretKeySpec( sharedsecret, MAC_ALGORITHM );
+    if ( peers != null )
+      peeraddresses.putAll( peers );
+  }
+  
+  /**
+   * Adds a peer to the mesh or changes its address.
+   * 
+   * @param serverid The peer's server ID.
+   * @param address Where it listens.
+   */
+  public void addPeer( String serverid, InetSocketAddress address )
+  {
+    peeraddresses.put( serverid, address );
+    Link old = links.remove( serverid );
+    if ( old != null )
+      runOnIOThread( old::close );
+  }
+  
+  /**
+   * Removes a peer from the mesh. Messages waiting for it are discarded.
+   * 
+   * @param serverid The peer's server ID.
+   */
+  public void removePeer( String serverid )
+  {
+    peeraddresses.remove( serverid );
+    Link old = links.remove( serverid );
+    if ( old != null )
+      runOnIOThread( old::close );
+  }
+
+  @Override
+  public synchronized void subscribe( BuildingBlockCoordinator coordinator ) throws MessageQueueException
+  {
+    if ( running )
+      return;
+    this.coordinator = coordinator;
+    peeraddresses.remove( coordinator.serverid );
+    hello = coordinator.topic.getBytes( StandardCharsets.UTF_8 );
+    try
+    {
+      selector = Selector.open();
+      server = ServerSocketChannel.open();
+      server.setOption( StandardSocketOptions.SO_REUSEADDR, true );
+      server.bind( listenaddress );
+      server.configureBlocking( false );
+      server.register( selector, SelectionKey.OP_ACCEPT );
+    }
+    catch ( IOException ex )
+    {
+      closeQuietly();
+      throw new MessageQueueException( "Could not listen on " + listenaddress, ex );
+    }
+    delivery = Executors.newSingleThreadExecutor( r -> daemon( r, "TcpMeshTransport.Delivery" ) );
+    coordinationdelivery = Executors.newSingleThreadExecutor( r -> daemon( r, "TcpMeshTransport.CoordinationDelivery" ) );
+    running = true;
+    iothread = daemon( this::ioLoop, "TcpMeshTransport.IO" );
+    iothread.start();
+  }
+  
+  Thread daemon( Runnable r, String name )
+  {
+    Thread t = new Thread( r, name + "-" + coordinator.serverid );
+    t.setDaemon( true );
+    return t;
+  }
+
+  /**
+   * Stops accepting connections and reading from peers. Messages can still
+   * be sent.
+   */
+  @Override
+  public void unsubscribe()
+  {
+    runOnIOThread( () -> 
+    {
+      closeQuietly( server );
+      for ( Inbound in : inbound )
+        closeQuietly( in.channel );
+      inbound.clear();
+    });
+  }
+
+  @Override
+  public void publish( OutboundMessage m ) throws MessageQueueException
+  {
+    if ( !running )
+      throw new MessageQueueException( "Transport is not running." );
+    String to = m.getToServerId();
+    boolean priority = m.isCoordination();
+    ByteBuffer frame = MessageCodec.encode( m );
+    if ( "*".equals( to ) )
+    {
+      for ( String name : peeraddresses.keySet() )
+        if ( !link( name ).offer( frame.duplicate(), priority ) )
+          dropped( name );
+      return;
+    }
+    if ( !peeraddresses.containsKey( to ) )
+      throw new MessageQueueException( "No address known for " + to );
+    if ( !link( to ).offer( frame, priority ) )
+    {
+      framesdropped.increment();
+      throw new MessageQueueException( "Too many bytes waiting to be sent to " + to );
+    }
+  }
+  
+  Link link( String name )
+  {
+    Link l = links.get( name );
+    return l != null ? l : links.computeIfAbsent( name, Link::new );
+  }
+
+  /**
+   * Stops the transport after giving the IO thread a short time to send 
+   * what is waiting.
+   */
+  @Override
+  public void close()
+  {
+    Thread t;
+    synchronized ( this )
+    {
+      if ( !running )
+        return;
+      closedeadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+      running = false;
+      t = iothread;
+    }
+    selector.wakeup();
+    try
+    {
+      t.join( CLOSE_TIMEOUT * 2 );
+    }
+    catch ( InterruptedException ex )
+    {
+      Thread.currentThread().interrupt();
+    }
+    delivery.shutdown();
+    coordinationdelivery.shutdown();
+  }
+  
+  /** @return Messages written to a peer. A broadcast counts once per peer. */
+  public long getFramesSent() { return framessent.sum(); }
+  /** @return Messages read from peers. */
+  public long getFramesReceived() { return framesreceived.sum(); }
+  /** @return Messages not sent because too much was waiting for a peer. */
+  public long getFramesDropped() { return framesdropped.sum(); }
+  /** @return Failed attempts to connect to a peer. */
+  public long getConnectFailures() { return connectfailures.sum(); }
+  /** @return Incoming connections closed because their hello was wrong. */
+  public long getHellosRejected() { return hellosrejected.sum(); }
+  
+  /**
+   * Counts a message to everyone that didn't fit in a peer's queue and
+   * warns about it, but not more than once a minute however many are
+   * dropped.
+   */
+  void dropped( String name )
+  {
+    framesdropped.increment();
+    dropssincewarning.incrementAndGet();
+    long now = System.currentTimeMillis();
+    long last = lastdropwarning.get();
+    if ( now - last < WARNING_INTERVAL || !lastdropwarning.compareAndSet( last, now ) )
+      return;
+    coordinator.logger.warn( "Dropped " + dropssincewarning.getAndSet( 0L ) 
+            + " TCP mesh messages because too many bytes were waiting to be sent, most recently to " + name );
+  }
+  
+  void runOnIOThread( Runnable task )
+  {
+    iotasks.add( task );
+    Selector s = selector;
+    if ( s != null )
+      s.wakeup();
+  }
+  
+  void ioLoop()
+  {
+    try
+    {
+      while ( running || ( hasPendingWrites() && System.currentTimeMillis() < closedeadline ) )
+      {
+        selector.select( RECONNECT_DELAY );
+        Runnable task;
+        while ( (task = iotasks.poll()) != null )
+          task.run();
+        for ( SelectionKey key : selector.selectedKeys() )
+          handle( key );
+        selector.selectedKeys().clear();
+        long now = System.currentTimeMillis();
+        for ( Link l : links.values() )
+          if ( l.channel == null && l.hasQueued() && now >= l.nextattempt )
+            l.connect();
+      }
+    }
+    catch ( IOException | ClosedSelectorException ex )
+    {
+      if ( running )
+        coordinator.logger.error( "TCP mesh IO thread failed.", ex );
+    }
+    finally
+    {
+      for ( Link l : links.values() )
+        l.close();
+      for ( Inbound in : inbound )
+        closeQuietly( in.channel );
+      inbound.clear();
+      closeQuietly();
+    }
+  }
+  
+  boolean hasPendingWrites()
+  {
+    for ( Link l : links.values() )
+      if ( l.channel != null && ( l.current != null || l.hasQueued() ) )
+        return true;
+    return false;
+  }
+  
+  void handle( SelectionKey key )
+  {
+    if ( !key.isValid() )
+      return;
+    Object attachment = key.attachment();
+    if ( attachment instanceof Link )
+    {
+      Link l = (Link)attachment;
+      if ( key.isConnectable() )
+        l.finishConnect();
+      else if ( key.isWritable() )
+        l.write();
+    }
+    else if ( attachment instanceof Inbound )
+      ((Inbound)attachment).read();
+    else if ( key.isAcceptable() )
+      accept();
+  }
+  
+  void accept()
+  {
+    try
+    {
+      SocketChannel ch;
+      while ( (ch = server.accept()) != null )
+      {
+        ch.configureBlocking( false );
+        ch.setOption( StandardSocketOptions.TCP_NODELAY, true );
+        Inbound in = new Inbound( ch );
+        ch.register( selector, SelectionKey.OP_READ, in );
+        inbound.add( in );
+      }
+    }
+    catch ( IOException ex )
+    {
+      coordinator.logger.warn( "Unable to accept TCP mesh connection.", ex );
+    }
+  }
+  
+  void closeQuietly()
+  {
+    closeQuietly( server );
+    if ( selector != null )
+      try { selector.close(); } catch ( IOException ex ) {}
+  }
+  
+  static void closeQuietly( java.nio.channels.Channel channel )
+  {
+    if ( channel != null )
+      try { channel.close(); } catch ( IOException ex ) {}
+  }
+  
+  void received( ByteBuffer frame )
+  {
+    OutboundMessage m = MessageCodec.decode( frame );
+    framesreceived.increment();
+    try
+    {
+      Message message = m.toLocalMessage();
+      ( m.isCoordination() ? coordinationdelivery : delivery ).execute( () -> coordinator.onMessage( message ) );
+    }
+    catch ( JMSException ex )
+    {
+      coordinator.logger.error( "Unable to make message from TCP mesh frame.", ex );
+    }
+    catch ( RejectedExecutionException ex )
+    {
+      // Closing.
+    }
+  }
+  
+  /**
+   * The first frame on every outgoing connection. It names the topic and,
+   * if there is a shared secret, carries the time, a nonce and an HMAC of
+   * all three.
+   */
+  ByteBuffer helloFrame()
+  {
+    int size = 1 + 4 + hello.length;
+    if ( secret != null )
+      size += 8 + NONCE_SIZE + MAC_SIZE;
+    ByteBuffer b = ByteBuffer.allocate( 4 + size );
+    b.putInt( size );
+    b.put( HELLO );
+    MessageCodec.put( b, hello );
+    if ( secret != null )
+    {
+      long now = System.currentTimeMillis();
+      byte[] nonce = new byte[ NONCE_SIZE ];
+      random.nextBytes( nonce );
+      b.putLong( now );
+      b.put( nonce );
+      b.put( mac( hello, now, nonce ) );
+    }
+    b.flip();
+    return b;
+  }
+  
+  /**
+   * Checks the rest of a hello once the topic has been read. With a 
+   * shared secret the HMAC must match, the time must be recent and the 
+   * nonce must not have been seen before, so a recorded hello can't be
+   * played back. Runs on the IO thread.
+   */
+  boolean checkHello( ByteBuffer frame )
+  {
+    if ( secret == null )
+      return true;
+    if ( frame.remaining() != 8 + NONCE_SIZE + MAC_SIZE )
+      return false;
+    long time = frame.getLong();
+    byte[] nonce = new byte[ NONCE_SIZE ];
+    frame.get( nonce );
+    byte[] mac = new byte[ MAC_SIZE ];
+    frame.get( mac );
+    long now = System.currentTimeMillis();
+    if ( Math.abs( now - time ) > HELLO_WINDOW )
+      return false;
+    if ( !MessageDigest.isEqual( mac, mac( hello, time, nonce ) ) )
+      return false;
+    for ( Iterator<Long> i = noncesseen.values().iterator(); i.hasNext(); )
+      if ( i.next() < now )
+        i.remove();
+    return noncesseen.putIfAbsent( Base64.getEncoder().encodeToString( nonce ), now + 2L * HELLO_WINDOW ) == null;
+  }
+  
+  byte[] mac( byte[] topic, long time, byte[] nonce )
+  {
+    try
+    {
+      Mac m = Mac.getInstance( MAC_ALGORITHM );
+      m.init( secret );
+      m.update( topic );
+      m.update( ByteBuffer.allocate( 8 ).putLong( time ).array() );
+      m.update( nonce );
+      return m.doFinal();
+    }
+    catch ( GeneralSecurityException ex )
+    {
+      // Every Java platform has HmacSHA256.
+      throw new IllegalStateException( ex );
+    }
+  }
+
+  /**
+   * The outgoing connection to one peer and the frames waiting for it. 
+   * Frames are queued by any thread but the channel is only touched by
+   * the IO thread.
+   */
+  class Link
+  {
+    final String serverid;
+    final ConcurrentLinkedQueue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+    final ConcurrentLinkedQueue<ByteBuffer> priorityqueue = new ConcurrentLinkedQueue<>();
+    final AtomicLong pendingbytes = new AtomicLong();
+    final AtomicBoolean writescheduled = new AtomicBoolean();
+    SocketChannel channel = null;
+    SelectionKey key = null;
+    ByteBuffer current = null;
+    boolean hello = false;
+    boolean connected = false;
+    boolean warned = false;
+    long nextattempt = 0L;
+
+    Link( String serverid )
+    {
+      this.serverid = serverid;
+    }
+    
+    boolean offer( ByteBuffer frame, boolean priority )
+    {
+      int n = frame.remaining();
+      if ( pendingbytes.addAndGet( n ) > maxpendingbytes )
+      {
+        pendingbytes.addAndGet( -n );
+        return false;
+      }
+      ( priority ? priorityqueue : queue ).add( frame );
+      if ( writescheduled.compareAndSet( false, true ) )
+        runOnIOThread( this::wantWrite );
+      return true;
+    }
+    
+    boolean hasQueued()
+    {
+      return !priorityqueue.isEmpty() || !queue.isEmpty();
+    }
+    
+    ByteBuffer poll()
+    {
+      ByteBuffer frame = priorityqueue.poll();
+      return frame == null ? queue.poll() : frame;
+    }
+    
+    void wantWrite()
+    {
+      if ( channel == null )
+      {
+        if ( System.currentTimeMillis() >= nextattempt )
+          connect();
+      }
+      else if ( connected )
+        write();
+    }
+    
+    void connect()
+    {
+      InetSocketAddress address = peeraddresses.get( serverid );
+      if ( address == null )
+        return;
+      try
+      {
+        channel = SocketChannel.open();
+        channel.configureBlocking( false );
+        channel.setOption( StandardSocketOptions.TCP_NODELAY, true );
+        current = helloFrame();
+        hello = true;
+        if ( channel.connect( address ) )
+        {
+          key = channel.register( selector, SelectionKey.OP_WRITE, this );
+          connected();
+        }
+        else
+          key = channel.register( selector, SelectionKey.OP_CONNECT, this );
+      }
+      catch ( IOException ex )
+      {
+        fail( ex );
+      }
+    }
+    
+    void finishConnect()
+    {
+      try
+      {
+        if ( channel.finishConnect() )
+        {
+          key.interestOps( SelectionKey.OP_WRITE );
+          connected();
+        }
+      }
+      catch ( IOException ex )
+      {
+        fail( ex );
+      }
+    }
+    
+    void connected()
+    {
+      connected = true;
+      warned = false;
+      write();
+    }
+    
+    void write()
+    {
+      try
+      {
+        while ( true )
+        {
+          if ( current == null )
+          {
+            current = poll();
+            if ( current == null )
+            {
+              key.interestOps( 0 );
+              writescheduled.set( false );
+              // Something may have been queued after the poll but before
+              // the flag was cleared, in which case nobody woke us.
+              if ( !hasQueued() || !writescheduled.compareAndSet( false, true ) )
+                return;
+              continue;
+            }
+          }
+          channel.write( current );
+          if ( current.hasRemaining() )
+          {
+            key.interestOps( SelectionKey.OP_WRITE );
+            return;
+          }
+          if ( !hello )
+          {
+            pendingbytes.addAndGet( -current.limit() );
+            framessent.increment();
+          }
+          hello = false;
+          current = null;
+        }
+      }
+      catch ( IOException ex )
+      {
+        fail( ex );
+      }
+    }
+    
+    void fail( IOException ex )
+    {
+      connectfailures.increment();
+      if ( !warned )
+        coordinator.logger.warn( "Lost TCP mesh connection to " + serverid + ": " + ex.getMessage() );
+      warned = true;
+      close();
+      nextattempt = System.currentTimeMillis() + RECONNECT_DELAY;
+      writescheduled.set( false );
+    }
+    
+    void close()
+    {
+      if ( key != null )
+        key.cancel();
+      closeQuietly( channel );
+      // A frame that was partly written is lost.
+      if ( current != null && !hello )
+      {
+        pendingbytes.addAndGet( -current.limit() );
+        framesdropped.increment();
+      }
+      key = null;
+      channel = null;
+      current = null;
+      hello = false;
+      connected = false;
+    }
+  }
+  
+  /**
+   * An incoming connection from a peer. The first frame must be a hello
+   * naming the same topic, so that two building blocks, or two meshes,
+   * that are given each other's addresses by mistake don't mix messages,
+   * and proving knowledge of the shared secret if there is one. Nothing
+   * larger than a hello is read until then.
+   */
+  class Inbound
+  {
+    final SocketChannel channel;
+    ByteBuffer buffer = ByteBuffer.allocate( READ_BUFFER_SIZE );
+    boolean greeted = false;
+
+    Inbound( SocketChannel channel )
+    {
+      this.channel = channel;
+    }
+    
+    void read()
+    {
+      try
+      {
+        if ( channel.read( buffer ) < 0 )
+        {
+          close();
+          return;
+        }
+        buffer.flip();
+        int needed = 0;
+        while ( buffer.remaining() >= 4 )
+        {
+          int size = buffer.getInt( buffer.position() );
+          if ( size < 1 || size > ( greeted ? MessageCodec.MAX_FRAME : MAX_HELLO ) )
+            throw new IOException( "Bad frame length " + size );
+          if ( buffer.remaining() < 4 + size )
+          {
+            needed = 4 + size;
+            break;
+          }
+          buffer.position( buffer.position() + 4 );
+          ByteBuffer frame = buffer.slice();
+          frame.limit( size );
+          buffer.position( buffer.position() + size );
+          if ( !frame( frame ) )
+          {
+            close();
+            return;
+          }
+        }
+        buffer.compact();
+        if ( needed > buffer.capacity() )
+        {
+          ByteBuffer bigger = ByteBuffer.allocate( needed );
+          buffer.flip();
+          bigger.put( buffer );
+          buffer = bigger;
+        }
+      }
+      catch ( IOException | RuntimeException ex )
+      {
+        coordinator.logger.warn( "Closing bad TCP mesh connection: " + ex.getMessage() );
+        close();
+      }
+    }
+    
+    boolean frame( ByteBuffer frame )
+    {
+      byte kind = frame.get();
+      if ( !greeted )
+      {
+        greeted = kind == HELLO 
+                && coordinator.topic.equals( MessageCodec.string( frame ) ) 
+                && checkHello( frame );
+        if ( !greeted )
+        {
+          hellosrejected.increment();
+          // A misconfigured peer retries every second.
+          long now = System.currentTimeMillis();
+          if ( now - lastrejectwarning >= WARNING_INTERVAL )
+          {
+            lastrejectwarning = now;
+            coordinator.logger.warn( "Rejected TCP mesh connection from " + remote() + " with a bad hello." );
+          }
+        }
+        return greeted;
+      }
+      if ( kind != MessageCodec.TEXT && kind != MessageCodec.BYTES )
+        return false;
+      received( frame );
+      return true;
+    }
+    
+    String remote()
+    {
+      try
+      {
+        return String.valueOf( channel.getRemoteAddress() );
+      }
+      catch ( IOException ex )
+      {
+        return "unknown address";
+      }
+    }
+    
+    void close()
+    {
+      closeQuietly( channel );
+      inbound.remove( this );
+    }
+  }
+}
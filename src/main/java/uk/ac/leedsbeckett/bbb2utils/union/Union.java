@@ -17,6 +17,7 @@ package uk.ac.leedsbeckett.bbb2utils.union;
 
 import java.lang.reflect.Field;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *
@@ -25,20 +26,22 @@ import java.util.HashMap;
  */
 public abstract class Union<B>
 {
-  private static final HashMap<String,HashMap<String,Field>> mapoftypemaps = new HashMap<>();  
+  // Type maps are filled in before they are shared and never changed after
+  // so many threads can use them without locking.
+  private static final ConcurrentHashMap<String,HashMap<String,Field>> mapoftypemaps = new ConcurrentHashMap<>();  
   private static HashMap<String,Field> getTypeMap( Class currentcontainerclass )
   {
     String canonicalname = currentcontainerclass.getCanonicalName();
     HashMap<String,Field> typemap = mapoftypemaps.get( canonicalname );
     if ( typemap != null ) return typemap;
     typemap = new HashMap<>();
-    mapoftypemaps.put( canonicalname, typemap );
     for ( Field f : currentcontainerclass.getDeclaredFields() )
     {
       if ( f.isAnnotationPresent( UnionMember.class ) )
         typemap.put( f.getType().getCanonicalName(), f );
     }
-    return typemap;
+    HashMap<String,Field> existing = mapoftypemaps.putIfAbsent( canonicalname, typemap );
+    return existing != null ? existing : typemap;
   }
   
   public String classname;
@@ -0,0 +1,518 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.json;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SequenceWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that objects written in each format read back equal to the
+ * original, through the byte, stream and buffer methods and as arrays read
+ * and written one element at a time, and that merge patches and diffs 
+ * follow RFC 7386.
+ *
+ * @author jon
+ */
+public class JsonConvertorTest
+{
+  static Batch sample()
+  {
+    Batch b = new Batch();
+    b.courseid = "_1234_1";
+    b.exported = 1700000000123L;
+    for ( int i=0; i<20; i++ )
+    {
+      Item item = new Item();
+      item.name = "Assessment " + i + " \u00e9\u4e2d";
+      item.score = i * 4.5;
+      item.attempts = i % 3;
+      item.late = i % 5 == 0;
+      item.feedback = i % 4 == 0 ? null : "Feedback " + i;
+      b.items.add( item );
+    }
+    return b;
+  }
+  
+  void checkBytes( JsonConvertor.Format format ) throws Exception
+  {
+    JsonConvertor<Batch> convertor = new JsonConvertor<>( Batch.class, format );
+    Batch b = sample();
+    Batch read = convertor.read( convertor.writeBytes( b ) );
+    assertNotSame( b, read );
+    assertEquals( b, read );
+  }
+  
+  void checkStreamAndBuffer( JsonConvertor.Format format ) throws Exception
+  {
+    JsonConvertor<Batch> convertor = new JsonConvertor<>( Batch.class, format );
+    Batch b = sample();
+    
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    convertor.write( out, b );
+    assertEquals( b, convertor.read( new ByteArrayInputStream( out.toByteArray() ) ) );
+    
+    checkBuffer( convertor, ByteBuffer.allocate( 64 * 1024 ) );
+    checkBuffer( convertor, ByteBuffer.allocateDirect( 64 * 1024 ) );
+  }
+  
+  void checkBuffer( JsonConvertor<Batch> convertor, ByteBuffer buffer ) throws Exception
+  {
+    Batch b = sample();
+    buffer.position( 10 );
+    convertor.write( buffer, b );
+    buffer.limit( buffer.position() );
+    buffer.position( 10 );
+    assertEquals( b, convertor.read( buffer ) );
+    // Reading leaves the position where it was.
+    assertEquals( 10, buffer.position() );
+  }
+  
+  @Test
+  public void testJson() throws Exception
+  {
+    checkBytes( JsonConvertor.Format.JSON );
+    checkStreamAndBuffer( JsonConvertor.Format.JSON );
+    JsonConvertor<Batch> pretty = new JsonConvertor<>( Batch.class, JsonConvertor.Profile.PRETTY );
+    assertEquals( sample(), pretty.read( pretty.write( sample() ) ) );
+  }
+  
+  @Test
+  public void testSmile() throws Exception
+  {
+    checkBytes( JsonConvertor.Format.SMILE );
+    checkStreamAndBuffer( JsonConvertor.Format.SMILE );
+  }
+  
+  @Test
+  public void testCBOR() throws Exception
+  {
+    checkBytes( JsonConvertor.Format.CBOR );
+    checkStreamAndBuffer( JsonConvertor.Format.CBOR );
+  }
+  
+  @Test
+  public void testBinaryIsSmaller() throws Exception
+  {
+    Batch b = sample();
+    int json = new JsonConvertor<>( Batch.class, JsonConvertor.Format.JSON ).writeBytes( b ).length;
+    assertTrue( new JsonConvertor<>( Batch.class, JsonConvertor.Format.SMILE ).writeBytes( b ).length < json );
+    assertTrue( new JsonConvertor<>( Batch.class, JsonConvertor.Format.CBOR ).writeBytes( b ).length < json );
+  }
+  
+  @Test( expected = UnsupportedOperationException.class )
+  public void testBinaryIsNotText() throws Exception
+  {
+    new JsonConvertor<>( Batch.class, JsonConvertor.Format.SMILE ).write( sample() );
+  }
+  
+  @Test
+  public void testProfiles() throws Exception
+  {
+    // The default is unchanged from before there were profiles.
+    JsonConvertor<Batch> pretty = new JsonConvertor<>( Batch.class );
+    assertEquals( JsonConvertor.Profile.PRETTY, pretty.getProfile() );
+    assertEquals( JsonConvertor.Format.JSON, pretty.getFormat() );
+    String text = pretty.write( sample() );
+    assertTrue( text.contains( "\n" ) );
+    assertTrue( text.contains( "\n  \"courseid\"" ) );
+    
+    JsonConvertor<Batch> compact = new JsonConvertor<>( Batch.class, JsonConvertor.Format.JSON );
+    assertEquals( JsonConvertor.Profile.COMPACT, compact.getProfile() );
+    text = compact.write( sample() );
+    assertFalse( text.contains( "\n" ) );
+    assertFalse( text.contains( "  " ) );
+    assertTrue( text.startsWith( "{\"courseid\":" ) );
+    assertEquals( text, new String( compact.writeBytes( sample() ), "UTF-8" ) );
+    assertTrue( text.length() < pretty.write( sample() ).length() );
+    
+    assertEquals( JsonConvertor.Profile.COMPACT, new JsonConvertor<>( Batch.class, JsonConvertor.Format.SMILE ).getProfile() );
+    assertEquals( JsonConvertor.Format.JSON, new JsonConvertor<>( Batch.class, JsonConvertor.Profile.COMPACT ).getFormat() );
+    
+    // Either profile reads what the other wrote.
+    assertEquals( sample(), compact.read( pretty.write( sample() ) ) );
+    assertEquals( sample(), pretty.read( compact.write( sample() ) ) );
+  }
+  
+  @Test
+  public void testSequenceText() throws Exception
+  {
+    JsonConvertor<Item> convertor = new JsonConvertor<>( Item.class, JsonConvertor.Profile.COMPACT );
+    List<Item> items = sample().items;
+    StringWriter w = new StringWriter();
+    try ( SequenceWriter sw = convertor.writeValues( w ) )
+    {
+      for ( Item item : items )
+        sw.write( item );
+    }
+    assertTrue( w.toString().startsWith( "[" ) );
+    assertTrue( w.toString().endsWith( "]" ) );
+    
+    List<Item> read = new ArrayList<>();
+    try ( MappingIterator<Item> it = convertor.readValues( new StringReader( w.toString() ) ) )
+    {
+      while ( it.hasNext() )
+        read.add( it.next() );
+    }
+    assertEquals( items, read );
+    
+    try ( Stream<Item> stream = convertor.stream( new StringReader( w.toString() ) ) )
+    {
+      assertEquals( items, stream.collect( Collectors.toList() ) );
+    }
+  }
+  
+  @Test
+  public void testSequenceEmpty() throws Exception
+  {
+    JsonConvertor<Item> convertor = new JsonConvertor<>( Item.class, JsonConvertor.Profile.COMPACT );
+    StringWriter w = new StringWriter();
+    convertor.writeValues( w ).close();
+    assertEquals( "[]", w.toString() );
+    try ( MappingIterator<Item> it = convertor.readValues( new StringReader( "[]" ) ) )
+    {
+      assertFalse( it.hasNext() );
+    }
+    try ( Stream<Item> stream = convertor.stream( new StringReader( "[ ]" ) ) )
+    {
+      assertEquals( 0L, stream.count() );
+    }
+  }
+  
+  @Test
+  public void testStreamCloses() throws Exception
+  {
+    JsonConvertor<Item> convertor = new JsonConvertor<>( Item.class );
+    boolean[] closed = new boolean[ 1 ];
+    StringReader reader = new StringReader( "[{\"name\":\"a\"},{\"name\":\"b\"},{\"name\":\"c\"}]" )
+    {
+      @Override
+      public void close()
+      {
+        closed[0] = true;
+        super.close();
+      }
+    };
+    Stream<Item> stream = convertor.stream( reader );
+    assertEquals( "a", stream.iterator().next().name );
+    assertFalse( closed[0] );
+    stream.close();
+    assertTrue( closed[0] );
+  }
+  
+  void checkBinarySequence( JsonConvertor.Format format ) throws Exception
+  {
+    JsonConvertor<Item> convertor = new JsonConvertor<>( Item.class, format );
+    List<Item> items = sample().items;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try ( SequenceWriter sw = convertor.writeValues( out ) )
+    {
+      for ( Item item : items )
+        sw.write( item );
+    }
+    List<Item> read = new ArrayList<>();
+    try ( MappingIterator<Item> it = convertor.readValues( new ByteArrayInputStream( out.toByteArray() ) ) )
+    {
+      while ( it.hasNext() )
+        read.add( it.next() );
+    }
+    assertEquals( items, read );
+    try ( Stream<Item> stream = convertor.stream( new ByteArrayInputStream( out.toByteArray() ) ) )
+    {
+      assertEquals( items, stream.collect( Collectors.toList() ) );
+    }
+    
+    try
+    {
+      convertor.readValues( new StringReader( "[]" ) );
+      fail( format + " read from a Reader" );
+    }
+    catch ( UnsupportedOperationException ex )
+    {
+      // expected
+    }
+    try
+    {
+      convertor.stream( new StringReader( "[]" ) );
+      fail( format + " streamed from a Reader" );
+    }
+    catch ( UnsupportedOperationException ex )
+    {
+      // expected
+    }
+    try
+    {
+      convertor.writeValues( new StringWriter() );
+      fail( format + " wrote to a Writer" );
+    }
+    catch ( UnsupportedOperationException ex )
+    {
+      // expected
+    }
+  }
+  
+  @Test
+  public void testSequenceBinary() throws Exception
+  {
+    checkBinarySequence( JsonConvertor.Format.SMILE );
+    checkBinarySequence( JsonConvertor.Format.CBOR );
+  }
+  
+  static Course course()
+  {
+    Course c = new Course();
+    c.name = "Chemistry";
+    c.code = "CHEM101";
+    c.settings = new Settings();
+    c.settings.visible = true;
+    c.settings.colour = "red";
+    c.tags = new ArrayList<>( Arrays.asList( "a", "b", "c" ) );
+    return c;
+  }
+  
+  @Test
+  public void testMergePatchNullRemovesFromMap() throws Exception
+  {
+    JsonConvertor<Map> convertor = new JsonConvertor<>( Map.class );
+    Map map = convertor.read( "{\"a\":1,\"b\":2,\"c\":3}" );
+    Map patched = convertor.applyMergePatch( map, "{\"b\":null,\"c\":4}" );
+    assertSame( map, patched );
+    assertEquals( convertor.read( "{\"a\":1,\"c\":4}" ), patched );
+    assertFalse( patched.containsKey( "b" ) );
+  }
+  
+  @Test
+  public void testMergePatchNullClearsBean() throws Exception
+  {
+    JsonConvertor<Course> convertor = new JsonConvertor<>( Course.class );
+    Course c = course();
+    Course patched = convertor.applyMergePatch( c, "{\"code\":null}" );
+    assertSame( c, patched );
+    assertNull( patched.code );
+    assertEquals( "Chemistry", patched.name );
+    assertEquals( "red", patched.settings.colour );
+  }
+  
+  @Test
+  public void testMergePatchNested() throws Exception
+  {
+    JsonConvertor<Course> convertor = new JsonConvertor<>( Course.class );
+    Course c = convertor.applyMergePatch( course(), "{\"settings\":{\"colour\":\"blue\"}}" );
+    assertTrue( c.settings.visible );
+    assertEquals( "blue", c.settings.colour );
+    assertEquals( "CHEM101", c.code );
+    
+    c = convertor.applyMergePatch( c, "{\"settings\":{\"colour\":null,\"visible\":false}}" );
+    assertFalse( c.settings.visible );
+    assertNull( c.settings.colour );
+    
+    ObjectMapper mapper = new ObjectMapper();
+    JsonNode target = mapper.readTree( "{\"a\":{\"b\":1,\"c\":{\"d\":2,\"e\":3}}}" );
+    JsonNode patch = mapper.readTree( "{\"a\":{\"c\":{\"e\":null,\"f\":4}},\"g\":{\"h\":null}}" );
+    assertEquals( mapper.readTree( "{\"a\":{\"b\":1,\"c\":{\"d\":2,\"f\":4}},\"g\":{}}" ), 
+            JsonConvertor.mergePatch( target, patch ) );
+  }
+  
+  @Test
+  public void testMergePatchReplacesArrays() throws Exception
+  {
+    JsonConvertor<Course> convertor = new JsonConvertor<>( Course.class );
+    Course c = convertor.applyMergePatch( course(), "{\"tags\":[\"x\"]}" );
+    assertEquals( Arrays.asList( "x" ), c.tags );
+    
+    ObjectMapper mapper = new ObjectMapper();
+    assertEquals( mapper.readTree( "{\"a\":[{\"c\":1}]}" ), 
+            JsonConvertor.mergePatch( mapper.readTree( "{\"a\":[{\"b\":1},2]}" ), mapper.readTree( "{\"a\":[{\"c\":1}]}" ) ) );
+  }
+  
+  @Test
+  public void testMergePatchNotAnObject() throws Exception
+  {
+    ObjectMapper mapper = new ObjectMapper();
+    JsonNode target = mapper.readTree( "{\"a\":1}" );
+    assertEquals( mapper.readTree( "[1,2]" ), JsonConvertor.mergePatch( target, mapper.readTree( "[1,2]" ) ) );
+    assertEquals( mapper.readTree( "\"text\"" ), JsonConvertor.mergePatch( target, mapper.readTree( "\"text\"" ) ) );
+    
+    JsonConvertor<List> convertor = new JsonConvertor<>( List.class );
+    List existing = convertor.read( "[3]" );
+    List patched = convertor.applyMergePatch( existing, "[1,2]" );
+    assertNotSame( existing, patched );
+    assertEquals( Arrays.asList( 1, 2 ), patched );
+    
+    JsonConvertor<Map> maps = new JsonConvertor<>( Map.class );
+    assertNull( maps.applyMergePatch( maps.read( "{\"a\":1}" ), "null" ) );
+  }
+  
+  @Test
+  public void testDiffRoundTrip() throws Exception
+  {
+    JsonConvertor<Course> convertor = new JsonConvertor<>( Course.class );
+    Course original = course();
+    Course updated = course();
+    updated.name = "Organic Chemistry";
+    updated.code = null;
+    updated.settings.colour = "green";
+    updated.tags.remove( "b" );
+    
+    JsonNode patch = convertor.diff( original, updated );
+    assertEquals( new ObjectMapper().readTree( 
+            "{\"code\":null,\"name\":\"Organic Chemistry\",\"settings\":{\"colour\":\"green\"},\"tags\":[\"a\",\"c\"]}" ), 
+            patch );
+    assertEquals( updated, convertor.applyMergePatch( course(), patch ) );
+    assertEquals( updated, convertor.applyMergePatch( course(), convertor.writeDiff( original, updated ) ) );
+    assertEquals( updated, convertor.applyMergePatch( course(), convertor.writeDiffBytes( original, updated ) ) );
+    assertEquals( "{}", convertor.writeDiff( updated, updated ).replaceAll( "\\s", "" ) );
+  }
+  
+  @Test
+  public void testDiffRemovedProperty() throws Exception
+  {
+    JsonConvertor<Map> convertor = new JsonConvertor<>( Map.class );
+    Map original = convertor.read( "{\"a\":1,\"b\":2,\"c\":3,\"d\":{\"e\":5,\"f\":6}}" );
+    Map updated = convertor.read( "{\"a\":1,\"c\":null,\"d\":{\"e\":5},\"g\":7}" );
+    Map patched = convertor.applyMergePatch( convertor.read( convertor.write( original ) ), convertor.diff( original, updated ) );
+    // A merge patch can't set a member to null so c is removed.
+    assertEquals( convertor.read( "{\"a\":1,\"d\":{\"e\":5},\"g\":7}" ), patched );
+  }
+  
+  @Test
+  public void testReadInto() throws Exception
+  {
+    JsonConvertor<Course> convertor = new JsonConvertor<>( Course.class );
+    Course c = course();
+    assertSame( c, convertor.readInto( c, "{\"name\":\"Physics\"}" ) );
+    assertEquals( "Physics", c.name );
+    assertEquals( "CHEM101", c.code );
+    assertEquals( "red", c.settings.colour );
+    convertor.readInto( c, "{\"code\":\"PHYS101\"}".getBytes( "UTF-8" ) );
+    assertEquals( "PHYS101", c.code );
+    assertEquals( "Physics", c.name );
+  }
+  
+  public static class Batch
+  {
+    public String courseid;
+    public long exported;
+    public List<Item> items = new ArrayList<>();
+
+    @Override
+    public boolean equals( Object o )
+    {
+      if ( !(o instanceof Batch) )
+        return false;
+      Batch other = (Batch)o;
+      return Objects.equals( courseid, other.courseid ) 
+              && exported == other.exported 
+              && Objects.equals( items, other.items );
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return Objects.hash( courseid, exported, items );
+    }
+  }
+  
+  public static class Item
+  {
+    public String name;
+    public double score;
+    public int attempts;
+    public boolean late;
+    public String feedback;
+
+    @Override
+    public boolean equals( Object o )
+    {
+      if ( !(o instanceof Item) )
+        return false;
+      Item other = (Item)o;
+      return Objects.equals( name, other.name ) 
+              && score == other.score 
+              && attempts == other.attempts
+              && late == other.late
+              && Objects.equals( feedback, other.feedback );
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return Objects.hash( name, score, attempts, late, feedback );
+    }
+  }
+  
+  public static class Course
+  {
+    public String name;
+    public String code;
+    public Settings settings;
+    public List<String> tags;
+
+    @Override
+    public boolean equals( Object o )
+    {
+      if ( !(o instanceof Course) )
+        return false;
+      Course other = (Course)o;
+      return Objects.equals( name, other.name ) 
+              && Objects.equals( code, other.code ) 
+              && Objects.equals( settings, other.settings )
+              && Objects.equals( tags, other.tags );
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return Objects.hash( name, code, settings, tags );
+    }
+  }
+  
+  public static class Settings
+  {
+    public boolean visible;
+    public String colour;
+
+    @Override
+    public boolean equals( Object o )
+    {
+      if ( !(o instanceof Settings) )
+        return false;
+      Settings other = (Settings)o;
+      return visible == other.visible && Objects.equals( colour, other.colour );
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return Objects.hash( visible, colour );
+    }
+  }
+}
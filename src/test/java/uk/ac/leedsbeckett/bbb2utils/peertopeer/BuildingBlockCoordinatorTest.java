@@ -0,0 +1,225 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import static org.junit.Assert.*;
+
+/**
+ * Runs three coordinators against an embedded broker through an injected
+ * ConnectionSource, as a Blackboard server would run them against its
+ * own broker, and then the same tests over the in-memory and TCP mesh
+ * transports.
+ *
+ * @author jon
+ */
+@RunWith( Parameterized.class )
+public class BuildingBlockCoordinatorTest
+{
+  static final int PEERS = 3;
+  static final Logger logger = Logger.getLogger( BuildingBlockCoordinatorTest.class );
+  
+  @Parameterized.Parameters( name = "{0}" )
+  public static Collection<Object[]> transports()
+  {
+    return Arrays.asList( new Object[][] { { "broker" }, { "memory" }, { "mesh" } } );
+  }
+  
+  @Parameterized.Parameter
+  public String transport;
+  
+  BrokerService broker;
+  ConnectionSource connections;
+  final List<BuildingBlockCoordinator> coordinators = new ArrayList<>();
+  final AtomicInteger texts = new AtomicInteger();
+  volatile CountDownLatch textlatch = new CountDownLatch( 0 );
+  final AtomicReference<byte[]> bytes = new AtomicReference<>();
+  final CountDownLatch byteslatch = new CountDownLatch( 1 );
+  // Every coordinator hears of every coordinator, itself included.
+  final CountDownLatch joined = new CountDownLatch( PEERS * PEERS );
+  final CountDownLatch left = new CountDownLatch( PEERS - 1 );
+  
+  @Before
+  public void setUp() throws Exception
+  {
+    if ( "broker".equals( transport ) )
+    {
+      broker = new BrokerService();
+      broker.setBrokerName( "lbucoordinatortest" );
+      broker.setPersistent( false );
+      broker.setUseJmx( false );
+      broker.setUseShutdownHook( false );
+      broker.start();
+      broker.waitUntilStarted();
+      connections = new ActiveMQConnectionFactorySource( "vm://lbucoordinatortest?create=false" );
+    }
+    InMemoryTransport.Network network = new InMemoryTransport.Network();
+    List<TcpMeshTransport> mesh = new ArrayList<>();
+    
+    BuildingBlockPeerMessageListener listener = new BuildingBlockPeerMessageListener()
+    {
+      @Override
+      public void consumeMessage( Message message )
+      {
+        texts.incrementAndGet();
+        textlatch.countDown();
+      }
+
+      @Override
+      public void consumeBytes( Message message, ByteBuffer data )
+      {
+        byte[] b = new byte[ data.remaining() ];
+        data.get( b );
+        bytes.set( b );
+        byteslatch.countDown();
+      }
+    };
+    for ( int i=0; i<PEERS; i++ )
+    {
+      String id = "server" + i;
+      BuildingBlockCoordinator c;
+      switch ( transport )
+      {
+        case "memory":
+          c = new BuildingBlockCoordinator( "test", "coordinator", id, listener, logger, new InMemoryTransport( network ) );
+          break;
+        case "mesh":
+          // Each listens on any free port and is told the others' once
+          // they have all started.
+          TcpMeshTransport t = new TcpMeshTransport( new InetSocketAddress( "127.0.0.1", 0 ), null );
+          mesh.add( t );
+          c = new BuildingBlockCoordinator( "test", "coordinator", id, listener, logger, t );
+          break;
+        default:
+          c = new BuildingBlockCoordinator( "test", "coordinator", id, listener, logger, connections );
+      }
+      c.setHeartbeatInterval( 200 );
+      // A listener that fails must not stop the ones after it hearing of
+      // changes, or stop the heartbeat.
+      c.addMembershipListener( new BuildingBlockMembershipListener()
+      {
+        @Override
+        public void peerJoined( String serverid, long starttime ) { throw new IllegalStateException( "Test" ); }
+        @Override
+        public void peerLeft( String serverid ) { throw new IllegalStateException( "Test" ); }
+        @Override
+        public void peerTimedOut( String serverid ) { throw new IllegalStateException( "Test" ); }
+      });
+      c.addMembershipListener( new BuildingBlockMembershipListener()
+      {
+        @Override
+        public void peerJoined( String serverid, long starttime ) { joined.countDown(); }
+        @Override
+        public void peerLeft( String serverid )
+        {
+          // Only count the survivors noticing that server0 stopped.
+          if ( "server0".equals( serverid ) && !"server0".equals( id ) )
+            left.countDown();
+        }
+      });
+      coordinators.add( c );
+    }
+    for ( BuildingBlockCoordinator c : coordinators )
+      c.start();
+    for ( TcpMeshTransport t : mesh )
+      for ( int i=0; i<mesh.size(); i++ )
+        t.addPeer( "server" + i, new InetSocketAddress( "127.0.0.1", mesh.get( i ).server.socket().getLocalPort() ) );
+    assertTrue( "Peers did not find each other", joined.await( 20, TimeUnit.SECONDS ) );
+  }
+  
+  @After
+  public void tearDown() throws Exception
+  {
+    for ( BuildingBlockCoordinator c : coordinators )
+      c.destroy();
+    if ( broker != null )
+    {
+      broker.stop();
+      broker.waitUntilStopped();
+    }
+  }
+  
+  @Test
+  public void testMembership()
+  {
+    for ( BuildingBlockCoordinator c : coordinators )
+      assertEquals( PEERS, c.getPeerNames().size() );
+    String owner = coordinators.get( 0 ).ownerOf( "some key" );
+    for ( BuildingBlockCoordinator c : coordinators )
+      assertEquals( owner, c.ownerOf( "some key" ) );
+  }
+  
+  @Test
+  public void testBroadcastAndDirect() throws Exception
+  {
+    textlatch = new CountDownLatch( 10 * PEERS + 10 );
+    for ( int i=0; i<10; i++ )
+    {
+      coordinators.get( 0 ).sendTextMessageToAllAsync( "broadcast " + i ).get( 10, TimeUnit.SECONDS );
+      coordinators.get( 0 ).sendTextMessageAsync( "direct " + i, "server2" ).get( 10, TimeUnit.SECONDS );
+    }
+    assertTrue( "Only got " + texts.get(), textlatch.await( 10, TimeUnit.SECONDS ) );
+    Thread.sleep( 200L );
+    assertEquals( 10 * PEERS + 10, texts.get() );
+  }
+  
+  @Test
+  public void testCompressedBytes() throws Exception
+  {
+    byte[] data = new byte[ 200000 ];
+    for ( int i=0; i<data.length; i++ )
+      data[ i ] = (byte)(i % 7);
+    coordinators.get( 0 ).sendBytesAsync( ByteBuffer.wrap( data ), "server1" ).get( 10, TimeUnit.SECONDS );
+    assertTrue( byteslatch.await( 10, TimeUnit.SECONDS ) );
+    assertArrayEquals( data, bytes.get() );
+  }
+  
+  @Test
+  public void testRequestReply() throws Exception
+  {
+    coordinators.get( 2 ).setRequestHandler( m -> "pong" );
+    Message reply = coordinators.get( 1 ).sendRequest( "ping", "server2", 10000L ).get( 10, TimeUnit.SECONDS );
+    assertEquals( "pong", ((TextMessage)reply).getText() );
+  }
+  
+  @Test
+  public void testStopIsSeen() throws Exception
+  {
+    BuildingBlockCoordinator stopping = coordinators.remove( 0 );
+    stopping.destroy();
+    assertTrue( left.await( 10, TimeUnit.SECONDS ) );
+    for ( BuildingBlockCoordinator c : coordinators )
+      assertEquals( PEERS - 1, c.getPeerNames().size() );
+  }
+}
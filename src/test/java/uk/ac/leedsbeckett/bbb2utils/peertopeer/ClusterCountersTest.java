@@ -0,0 +1,201 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Runs counters on four coordinators connected in memory, splits them
+ * into two groups that can't hear each other, counts on both sides and
+ * checks that each side stays consistent and that they converge once the
+ * partition heals.
+ *
+ * @author jon
+ */
+public class ClusterCountersTest
+{
+  static final int PEERS = 4;
+  static final Logger logger = Logger.getLogger( ClusterCountersTest.class );
+  
+  /**
+   * Servers in this set can only hear each other while the partition is up.
+   */
+  volatile Set<String> partition = Collections.emptySet();
+  
+  /**
+   * Drops messages from the other side of the partition.
+   */
+  class PartitionedTransport extends InMemoryTransport
+  {
+    PartitionedTransport( Network network )
+    {
+      super( network );
+    }
+
+    @Override
+    void deliver( Message message, boolean coordination )
+    {
+      try
+      {
+        Set<String> p = partition;
+        if ( p.contains( message.getStringProperty( "LBUFromServerID" ) ) != p.contains( coordinator.serverid ) )
+          return;
+      }
+      catch ( JMSException ex )
+      {
+        throw new IllegalStateException( ex );
+      }
+      super.deliver( message, coordination );
+    }
+  }
+  
+  final List<BuildingBlockCoordinator> coordinators = new ArrayList<>();
+  final List<ClusterCounters> counters = new ArrayList<>();
+  
+  @Before
+  public void setUp() throws Exception
+  {
+    InMemoryTransport.Network network = new InMemoryTransport.Network();
+    for ( int i=0; i<PEERS; i++ )
+    {
+      BuildingBlockCoordinator c = new BuildingBlockCoordinator( "test", "counters", "server" + i, m -> {}, logger, new PartitionedTransport( network ) );
+      c.setHeartbeatInterval( 100 );
+      coordinators.add( c );
+      counters.add( new ClusterCounters( c, "test", 100L ) );
+    }
+    for ( BuildingBlockCoordinator c : coordinators )
+      c.start();
+    await( "Peers did not find each other", () -> peersSeen( 0, PEERS ) && peersSeen( PEERS-1, PEERS ) );
+  }
+  
+  @After
+  public void tearDown() throws Exception
+  {
+    for ( ClusterCounters c : counters )
+      c.close();
+    for ( BuildingBlockCoordinator c : coordinators )
+      c.destroy();
+  }
+  
+  static void await( String message, BooleanSupplier condition ) throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + 20000L;
+    while ( !condition.getAsBoolean() )
+    {
+      assertTrue( message, System.currentTimeMillis() < deadline );
+      Thread.sleep( 20L );
+    }
+  }
+  
+  boolean peersSeen( int from, int n )
+  {
+    for ( int i=from; i<from+n && i<PEERS; i++ )
+      if ( coordinators.get( i ).getPeerNames().size() != n )
+        return false;
+    return true;
+  }
+  
+  boolean values( String name, int from, int to, long g, long pn )
+  {
+    for ( int i=from; i<to; i++ )
+    {
+      if ( counters.get( i ).getGCounter( name ).value() != g )
+        return false;
+      if ( counters.get( i ).getPNCounter( name ).value() != pn )
+        return false;
+    }
+    return true;
+  }
+  
+  void count( int server, long g, long pn )
+  {
+    counters.get( server ).getGCounter( "hits" ).add( g );
+    counters.get( server ).getPNCounter( "hits" ).add( pn );
+  }
+  
+  @Test
+  public void testConvergence() throws Exception
+  {
+    long g = 0L, pn = 0L;
+    for ( int i=0; i<PEERS; i++ )
+    {
+      count( i, i+1, i % 2 == 0 ? i+1 : -(i+1) );
+      g += i+1;
+      pn += i % 2 == 0 ? i+1 : -(i+1);
+    }
+    long fg = g, fpn = pn;
+    await( "Counters did not converge", () -> values( "hits", 0, PEERS, fg, fpn ) );
+  }
+  
+  @Test
+  public void testPartitionHeals() throws Exception
+  {
+    for ( int i=0; i<PEERS; i++ )
+      count( i, 10, 10 );
+    await( "Counters did not converge", () -> values( "hits", 0, PEERS, 40, 40 ) );
+    
+    // Split into server0 and server1 against server2 and server3 and wait
+    // until both sides notice.
+    partition = new HashSet<>( Arrays.asList( "server0", "server1" ) );
+    await( "The partition was not noticed", () -> peersSeen( 0, 2 ) && peersSeen( 2, 2 ) );
+    
+    // Both sides count. Each side agrees on its own count, which is what
+    // it has seen and no more.
+    count( 0, 5, -3 );
+    count( 1, 1, -1 );
+    count( 2, 7, 2 );
+    count( 3, 2, -8 );
+    await( "One side did not converge", () -> values( "hits", 0, 2, 46, 36 ) );
+    await( "Other side did not converge", () -> values( "hits", 2, 4, 49, 34 ) );
+    Thread.sleep( 500L );
+    assertTrue( values( "hits", 0, 2, 46, 36 ) );
+    assertTrue( values( "hits", 2, 4, 49, 34 ) );
+    
+    // Once healed everyone has every count exactly once.
+    partition = Collections.emptySet();
+    await( "Peers did not find each other again", () -> peersSeen( 0, PEERS ) );
+    await( "Counters did not converge after healing", () -> values( "hits", 0, PEERS, 55, 30 ) );
+  }
+  
+  @Test
+  public void testCountingWhileHealing() throws Exception
+  {
+    partition = new HashSet<>( Arrays.asList( "server0" ) );
+    await( "The partition was not noticed", () -> peersSeen( 0, 1 ) && peersSeen( 1, 3 ) );
+    for ( int round=0; round<10; round++ )
+    {
+      for ( int i=0; i<PEERS; i++ )
+        count( i, 1, i == 0 ? -1 : 1 );
+      if ( round == 5 )
+        partition = Collections.emptySet();
+      Thread.sleep( 30L );
+    }
+    await( "Counters did not converge after healing", () -> values( "hits", 0, PEERS, 40, 20 ) );
+  }
+}
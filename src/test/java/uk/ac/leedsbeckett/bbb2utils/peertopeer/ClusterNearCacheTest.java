@@ -0,0 +1,68 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the encoding of invalidation batches, which ClusterCounters and
+ * ClusterStreams use as well.
+ *
+ * @author jon
+ */
+public class ClusterNearCacheTest
+{
+  static void roundTrip( List<String> keys )
+  {
+    assertEquals( keys, ClusterNearCache.decode( ClusterNearCache.encode( keys ) ) );
+  }
+  
+  @Test
+  public void testRoundTrip()
+  {
+    roundTrip( Arrays.asList( "a", "bb", "ccc" ) );
+    roundTrip( Arrays.asList( "back\\slash", "new\nline", "both\\n\n", "\\" ) );
+  }
+  
+  @Test
+  public void testEmpty()
+  {
+    roundTrip( new ArrayList<>() );
+    assertTrue( ClusterNearCache.decode( "" ).isEmpty() );
+    assertTrue( ClusterNearCache.decode( null ).isEmpty() );
+  }
+  
+  @Test
+  public void testEmptyKeys()
+  {
+    roundTrip( Collections.singletonList( "" ) );
+    roundTrip( Arrays.asList( "", "a" ) );
+    roundTrip( Arrays.asList( "a", "" ) );
+    roundTrip( Arrays.asList( "", "", "" ) );
+  }
+  
+  @Test
+  public void testOldFormat()
+  {
+    // Earlier versions separated keys instead of ending them.
+    assertEquals( Arrays.asList( "a", "b\nc" ), ClusterNearCache.decode( "a\nb\\nc" ) );
+  }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Drives several limiters with a made up clock and gossip delivered by
+ * hand, checking the shares they work out and that together they grant 
+ * no more than the rate and burst allow.
+ *
+ * @author jon
+ */
+public class ClusterRateLimiterTest
+{
+  static final double RATE = 1000.0;
+  static final double BURST = 100.0;
+  static final long MS = 1000000L;
+  static final long ROUND = 100L;
+  static final double EPSILON = 1.0e-9;
+  static final Logger logger = Logger.getLogger( ClusterRateLimiterTest.class );
+  
+  final List<BuildingBlockCoordinator> coordinators = new ArrayList<>();
+  ClusterCounters[] counters;
+  ClusterRateLimiter[] limiters;
+  
+  /**
+   * Makes coordinators that are never started but believe they have n
+   * peers, each with a limiter created at time zero. Their own gossip is
+   * too slow to ever run.
+   */
+  void make( int n ) throws Exception
+  {
+    InMemoryTransport.Network network = new InMemoryTransport.Network();
+    counters = new ClusterCounters[ n ];
+    limiters = new ClusterRateLimiter[ n ];
+    for ( int i=0; i<n; i++ )
+    {
+      BuildingBlockCoordinator c = new BuildingBlockCoordinator( "test", "limiter", "server" + i, m -> {}, logger, new InMemoryTransport( network ) );
+      coordinators.add( c );
+      for ( int j=0; j<n; j++ )
+        c.addPeer( "server" + j, j );
+      counters[ i ] = new ClusterCounters( c, "test", 3600000L );
+      limiters[ i ] = new ClusterRateLimiter( counters[ i ], "mail", RATE, BURST, counters[ i ].counter( "L:mail" ), 0L );
+    }
+  }
+  
+  @After
+  public void tearDown() throws Exception
+  {
+    for ( BuildingBlockCoordinator c : coordinators )
+      c.destroy();
+  }
+  
+  List<Map<String,Long>> states()
+  {
+    List<Map<String,Long>> states = new ArrayList<>();
+    for ( int i=0; i<limiters.length; i++ )
+      states.add( limiters[ i ].demand.state( counters[ i ].ownSlot() ) );
+    return states;
+  }
+  
+  /**
+   * Delivers demand counts to every limiter, as ClusterCounters would.
+   */
+  void gossip( List<Map<String,Long>> states )
+  {
+    for ( int i=0; i<limiters.length; i++ )
+    {
+      String own = counters[ i ].ownSlot();
+      for ( int j=0; j<limiters.length; j++ )
+        if ( j != i )
+          for ( Map.Entry<String,Long> e : states.get( j ).entrySet() )
+            if ( !own.equals( e.getKey() ) )
+              limiters[ i ].demand.merge( e.getKey(), e.getValue() );
+    }
+  }
+  
+  /**
+   * @return The total of the shares after rebalancing.
+   */
+  double rebalance( long millis )
+  {
+    double total = 0.0;
+    for ( int i=0; i<limiters.length; i++ )
+    {
+      limiters[ i ].rebalance( counters[ i ].ownSlot(), millis * MS );
+      total += limiters[ i ].getShare();
+    }
+    return total;
+  }
+  
+  long granted()
+  {
+    long g = 0L;
+    for ( ClusterRateLimiter l : limiters )
+      g += l.getGrantedCount();
+    return g;
+  }
+  
+  @Test
+  public void testFloor() throws Exception
+  {
+    make( 4 );
+    // Until the first round each has only the floor.
+    for ( ClusterRateLimiter l : limiters )
+      assertEquals( 1.0 / 16.0, l.getShare(), EPSILON );
+    
+    // Nobody asked so everything is divided equally.
+    gossip( states() );
+    assertEquals( 1.0, rebalance( 1000L ), EPSILON );
+    for ( ClusterRateLimiter l : limiters )
+      assertEquals( 0.25, l.getShare(), EPSILON );
+    
+    // One server wants everything. The others keep their floor.
+    limiters[ 0 ].tryAcquire( 1000, 1500L * MS );
+    gossip( states() );
+    assertEquals( 1.0, rebalance( 2000L ), EPSILON );
+    assertEquals( 1.0 - 3.0 / 16.0, limiters[ 0 ].getShare(), EPSILON );
+    for ( int i=1; i<4; i++ )
+      assertEquals( 1.0 / 16.0, limiters[ i ].getShare(), EPSILON );
+  }
+  
+  @Test
+  public void testMaxMinShares() throws Exception
+  {
+    make( 3 );
+    // Asking for 10%, 50% and 90% of the rate. The first gets what it
+    // asked for and the others split the rest.
+    limiters[ 0 ].tryAcquire( 100, 500L * MS );
+    limiters[ 1 ].tryAcquire( 500, 500L * MS );
+    limiters[ 2 ].tryAcquire( 900, 500L * MS );
+    gossip( states() );
+    assertEquals( 1.0, rebalance( 1000L ), EPSILON );
+    assertEquals( 0.10, limiters[ 0 ].getShare(), EPSILON );
+    assertEquals( 0.45, limiters[ 1 ].getShare(), EPSILON );
+    assertEquals( 0.45, limiters[ 2 ].getShare(), EPSILON );
+    
+    // Asking for 10%, 20% and 30%. Everyone gets what they asked for and
+    // the rest is divided equally.
+    limiters[ 0 ].tryAcquire( 100, 1500L * MS );
+    limiters[ 1 ].tryAcquire( 200, 1500L * MS );
+    limiters[ 2 ].tryAcquire( 300, 1500L * MS );
+    gossip( states() );
+    assertEquals( 1.0, rebalance( 2000L ), EPSILON );
+    assertEquals( 0.1 + 0.4 / 3.0, limiters[ 0 ].getShare(), EPSILON );
+    assertEquals( 0.2 + 0.4 / 3.0, limiters[ 1 ].getShare(), EPSILON );
+    assertEquals( 0.3 + 0.4 / 3.0, limiters[ 2 ].getShare(), EPSILON );
+  }
+  
+  /**
+   * Runs 20 seconds of uneven demand that moves between servers every
+   * second, a millisecond at a time, with a gossip round every ROUND 
+   * milliseconds. Checks that in every stretch of whole rounds the 
+   * servers together granted no more than the rate and burst, plus the
+   * excess when the shares added up to more than one.
+   * 
+   * @return The most by which the shares added up to more than one.
+   */
+  double simulate( int n, boolean late, long seed ) throws Exception
+  {
+    make( n );
+    Random random = new Random( seed );
+    double[] wanted = new double[ n ];
+    double[] owed = new double[ n ];
+    int rounds = 200;
+    long[] grantedby = new long[ rounds + 1 ];
+    // How many more permits than the rate allowed each round.
+    double[] excess = new double[ rounds + 1 ];
+    double maxtotal = 1.0;
+    List<Map<String,Long>> previous = null;
+    
+    for ( long t=0; t<rounds*ROUND; t++ )
+    {
+      if ( t % 1000L == 0 )
+        for ( int i=0; i<n; i++ )
+          wanted[ i ] = random.nextInt( 3 ) == 0 ? 0.0 : random.nextDouble() * 2.5 * RATE;
+      for ( int i=0; i<n; i++ )
+      {
+        for ( owed[ i ] += wanted[ i ] / 1000.0; owed[ i ] >= 1.0; owed[ i ] -= 1.0 )
+          limiters[ i ].tryAcquire( 1, t * MS );
+      }
+      if ( (t+1) % ROUND == 0 )
+      {
+        int round = (int)((t+1) / ROUND);
+        List<Map<String,Long>> current = states();
+        gossip( late && previous != null ? previous : current );
+        previous = current;
+        double total = rebalance( t+1 );
+        if ( !late )
+          assertEquals( 1.0, total, EPSILON );
+        grantedby[ round ] = granted();
+        // The shares just worked out apply to the next round.
+        if ( round < rounds )
+          excess[ round + 1 ] = Math.max( 0.0, total - 1.0 ) * RATE * ROUND / 1000.0;
+        maxtotal = Math.max( maxtotal, total );
+      }
+    }
+    
+    for ( int a=0; a<rounds; a++ )
+    {
+      double allowed = BURST * maxtotal;
+      for ( int b=a+1; b<=rounds; b++ )
+      {
+        allowed += RATE * ROUND / 1000.0 + excess[ b ];
+        long g = grantedby[ b ] - grantedby[ a ];
+        assertTrue( "Granted " + g + " in rounds " + a + " to " + b + ", more than " + allowed, g <= allowed + EPSILON );
+      }
+    }
+    // Most of the time the limit is close to being reached.
+    assertTrue( granted() > 0.8 * RATE * rounds * ROUND / 1000.0 );
+    return maxtotal - 1.0;
+  }
+  
+  @Test
+  public void testTotalWithinRateAndBurst() throws Exception
+  {
+    simulate( 4, false, 1L );
+  }
+  
+  @Test
+  public void testTotalWithLateGossip() throws Exception
+  {
+    double over = simulate( 4, true, 2L );
+    // A little over, never more than every server getting everything.
+    assertTrue( over > 0.0 );
+    assertTrue( over < 3.0 );
+  }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Sends streams between coordinators connected in memory. Two of them are
+ * started to begin with and the third is started by the tests that need
+ * it, including one where it joins while a stream to all is being sent.
+ *
+ * @author jon
+ */
+public class ClusterStreamsTest
+{
+  static final int PEERS = 3;
+  static final int CHUNK = 64 * 1024;
+  static final long CEILING = 1024L * 1024L;
+  static final Logger logger = Logger.getLogger( ClusterStreamsTest.class );
+  
+  /**
+   * The sequence number of a chunk that server1 will miss the first time
+   * it is sent, or null.
+   */
+  volatile String dropseq = null;
+  final AtomicBoolean dropped = new AtomicBoolean();
+  
+  /**
+   * Loses one chunk on its way to server1.
+   */
+  class DroppingTransport extends InMemoryTransport
+  {
+    DroppingTransport( Network network )
+    {
+      super( network );
+    }
+
+    @Override
+    void deliver( Message message, boolean coordination )
+    {
+      try
+      {
+        if ( "server1".equals( coordinator.serverid ) &&
+             "chunk".equals( message.getStringProperty( "LBUSubType" ) ) &&
+             message.getStringProperty( "LBUStreamSeq" ).equals( dropseq ) &&
+             dropped.compareAndSet( false, true ) )
+          return;
+      }
+      catch ( JMSException ex )
+      {
+        throw new IllegalStateException( ex );
+      }
+      super.deliver( message, coordination );
+    }
+  }
+  
+  final List<BuildingBlockCoordinator> coordinators = new ArrayList<>();
+  final List<ClusterStreams> streams = new ArrayList<>();
+  final List<LinkedBlockingQueue<ReceivedStream>> received = new ArrayList<>();
+  
+  @Before
+  public void setUp() throws Exception
+  {
+    InMemoryTransport.Network network = new InMemoryTransport.Network();
+    for ( int i=0; i<PEERS; i++ )
+    {
+      BuildingBlockCoordinator c = new BuildingBlockCoordinator( "test", "streams", "server" + i, m -> {}, logger, new DroppingTransport( network ) );
+      c.setHeartbeatInterval( 100 );
+      coordinators.add( c );
+      LinkedBlockingQueue<ReceivedStream> queue = new LinkedBlockingQueue<>();
+      received.add( queue );
+      ClusterStreams s = new ClusterStreams( c, "test", queue::add, null, CEILING );
+      s.setChunkSize( CHUNK );
+      streams.add( s );
+    }
+    coordinators.get( 0 ).start();
+    coordinators.get( 1 ).start();
+    await( "Peers did not find each other", () -> peersSeen( 2 ) );
+  }
+  
+  @After
+  public void tearDown() throws Exception
+  {
+    for ( LinkedBlockingQueue<ReceivedStream> queue : received )
+      for ( ReceivedStream r : queue )
+        r.close();
+    for ( ClusterStreams s : streams )
+      s.close();
+    for ( BuildingBlockCoordinator c : coordinators )
+      c.destroy();
+  }
+  
+  static void await( String message, BooleanSupplier condition ) throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + 20000L;
+    while ( !condition.getAsBoolean() )
+    {
+      assertTrue( message, System.currentTimeMillis() < deadline );
+      Thread.sleep( 20L );
+    }
+  }
+  
+  boolean peersSeen( int n )
+  {
+    for ( int i=0; i<n; i++ )
+      if ( coordinators.get( i ).getPeerNames().size() != n )
+        return false;
+    return true;
+  }
+  
+  void startThird() throws Exception
+  {
+    coordinators.get( 2 ).start();
+    await( "Third server was not seen", () -> peersSeen( PEERS ) );
+  }
+  
+  static byte[] data( int length, long seed )
+  {
+    byte[] data = new byte[ length ];
+    new Random( seed ).nextBytes( data );
+    return data;
+  }
+  
+  ReceivedStream take( int server ) throws InterruptedException
+  {
+    ReceivedStream r = received.get( server ).poll( 20, TimeUnit.SECONDS );
+    assertNotNull( "Nothing received by server" + server, r );
+    return r;
+  }
+  
+  static byte[] read( ReceivedStream r ) throws IOException
+  {
+    try ( InputStream in = r.openStream() )
+    {
+      return in.readAllBytes();
+    }
+  }
+  
+  @Test
+  public void testRoundTrip() throws Exception
+  {
+    // Not a whole number of chunks.
+    byte[] data = data( 5 * CHUNK + 123, 1L );
+    streams.get( 0 ).sendBuffer( ByteBuffer.wrap( data ), "roundtrip", "server1" ).get( 20, TimeUnit.SECONDS );
+    ReceivedStream r = take( 1 );
+    assertEquals( "server0", r.getFrom() );
+    assertEquals( "roundtrip", r.getLabel() );
+    assertEquals( data.length, r.getLength() );
+    assertTrue( r.isInMemory() );
+    assertArrayEquals( data, read( r ) );
+    // Held against the ceiling until it is closed.
+    assertEquals( data.length, streams.get( 1 ).getMemoryInUse() );
+    r.close();
+    assertEquals( 0L, streams.get( 1 ).getMemoryInUse() );
+    assertEquals( 6L, streams.get( 0 ).getChunksSent() );
+    assertEquals( 1L, streams.get( 0 ).getStreamsSent() );
+    assertEquals( 1L, streams.get( 1 ).getStreamsReceived() );
+    assertEquals( 0L, streams.get( 1 ).getStreamsSpilled() );
+  }
+  
+  @Test
+  public void testSpillToFile() throws Exception
+  {
+    startThird();
+    byte[] data = data( (int)(3L * CEILING) + 7, 2L );
+    streams.get( 0 ).sendBuffer( ByteBuffer.wrap( data ), "big", "*" ).get( 20, TimeUnit.SECONDS );
+    for ( int i=1; i<PEERS; i++ )
+    {
+      ReceivedStream r = take( i );
+      assertFalse( r.isInMemory() );
+      assertTrue( r.getFile().exists() );
+      assertEquals( data.length, r.getLength() );
+      assertArrayEquals( data, read( r ) );
+      assertEquals( 1L, streams.get( i ).getStreamsSpilled() );
+      r.close();
+      assertFalse( r.getFile().exists() );
+      assertEquals( 0L, streams.get( i ).getMemoryInUse() );
+      try
+      {
+        r.openStream();
+        fail( "Opened a closed stream" );
+      }
+      catch ( IOException ex )
+      {
+        // Expected.
+      }
+    }
+  }
+  
+  @Test
+  public void testEmptyStream() throws Exception
+  {
+    streams.get( 0 ).sendStream( new ByteArrayInputStream( new byte[ 0 ] ), "empty", "server1" ).get( 20, TimeUnit.SECONDS );
+    ReceivedStream r = take( 1 );
+    assertEquals( "empty", r.getLabel() );
+    assertEquals( 0L, r.getLength() );
+    assertEquals( 0, read( r ).length );
+    r.close();
+    assertEquals( 0L, streams.get( 0 ).getChunksSent() );
+    assertEquals( 0L, streams.get( 1 ).getMemoryInUse() );
+  }
+  
+  @Test
+  public void testDroppedChunkIsResent() throws Exception
+  {
+    dropseq = "2";
+    byte[] data = data( 8 * CHUNK, 3L );
+    streams.get( 0 ).sendBuffer( ByteBuffer.wrap( data ), "lossy", "server1" ).get( 20, TimeUnit.SECONDS );
+    assertTrue( dropped.get() );
+    ReceivedStream r = take( 1 );
+    assertArrayEquals( data, read( r ) );
+    r.close();
+    assertTrue( streams.get( 0 ).getChunksResent() >= 1L );
+    assertEquals( 8L, streams.get( 1 ).getChunksReceived() );
+  }
+  
+  @Test
+  public void testChunkBeyondMaxStreamBytes() throws Exception
+  {
+    ClusterStreams receiver = streams.get( 1 );
+    receiver.setMaxStreamBytes( CEILING );
+    // The last chunk that could fit is taken and the first that can't is
+    // rejected before anything is stored for it.
+    int last = (int)(CEILING / ClusterStreams.MIN_CHUNK_SIZE) - 1;
+    forgeChunk( "edge", last );
+    forgeChunk( "beyond", last + 1 );
+    await( "Chunk was not rejected", () -> receiver.abandoned.containsKey( "server0/beyond" ) );
+    await( "Chunk was not stored", () -> receiver.getChunksReceived() == 1L );
+    assertTrue( receiver.incoming.containsKey( "server0/edge" ) );
+    assertFalse( receiver.incoming.containsKey( "server0/beyond" ) );
+    assertEquals( 1L, receiver.getStreamsAbandoned() );
+    
+    // A real stream that is too big fails at the sender.
+    CompletableFuture<Void> f = streams.get( 0 ).sendBuffer( ByteBuffer.wrap( data( (int)(2L * CEILING), 4L ) ), "toobig", "server1" );
+    try
+    {
+      f.get( 20, TimeUnit.SECONDS );
+      fail( "Sent a stream that was too big" );
+    }
+    catch ( ExecutionException ex )
+    {
+      assertTrue( ex.getCause() instanceof IOException );
+    }
+    assertEquals( 1L, streams.get( 0 ).getStreamsNotDelivered() );
+    assertTrue( received.get( 1 ).isEmpty() );
+  }
+  
+  void forgeChunk( String id, int seq ) throws Exception
+  {
+    Properties p = streams.get( 0 ).properties( "server1", "chunk", id );
+    p.setProperty( "LBUStreamSeq", Integer.toString( seq ) );
+    p.setProperty( "LBUStreamChunkSize", Integer.toString( ClusterStreams.MIN_CHUNK_SIZE ) );
+    byte[] body = new byte[ 10 ];
+    OutboundMessage m = new OutboundMessage( body, 0, body.length, p );
+    m.includelocal = false;
+    coordinators.get( 0 ).send( m ).get( 20, TimeUnit.SECONDS );
+  }
+  
+  @Test
+  public void testLateJoinerIsAborted() throws Exception
+  {
+    byte[] data = data( 64 * CHUNK, 5L );
+    // Hold the rest of the input back until the third server has joined.
+    CountDownLatch gate = new CountDownLatch( 1 );
+    InputStream rest = new FilterInputStream( new ByteArrayInputStream( data, CHUNK, data.length - CHUNK ) )
+    {
+      @Override
+      public int read( byte[] b, int off, int len ) throws IOException
+      {
+        try
+        {
+          gate.await();
+        }
+        catch ( InterruptedException ex )
+        {
+          throw new IOException( ex );
+        }
+        return super.read( b, off, len );
+      }
+    };
+    InputStream in = new SequenceInputStream( new ByteArrayInputStream( data, 0, CHUNK ), rest );
+    // A small window keeps the sender waiting for server1.
+    streams.get( 0 ).setWindow( 4 );
+    CompletableFuture<Void> f = streams.get( 0 ).sendStream( in, "all", "*" );
+    await( "First chunk was not sent", () -> streams.get( 0 ).getChunksSent() == 1L );
+    startThird();
+    gate.countDown();
+    
+    f.get( 20, TimeUnit.SECONDS );
+    ReceivedStream r = take( 1 );
+    assertArrayEquals( data, read( r ) );
+    r.close();
+    ClusterStreams late = streams.get( 2 );
+    await( "Late joiner was not told to drop the stream", () -> late.getStreamsAbandoned() == 1L );
+    assertEquals( 1, late.abandoned.size() );
+    assertTrue( late.abandoned.keySet().iterator().next().startsWith( "server0/" ) );
+    assertTrue( late.incoming.isEmpty() );
+    assertEquals( 0L, late.getMemoryInUse() );
+    assertEquals( 0L, late.getStreamsReceived() );
+    assertTrue( received.get( 2 ).isEmpty() );
+  }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import blackboard.platform.messagequeue.MessageQueueException;
+import blackboard.platform.messagequeue.MessageQueueUtil;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TopicSubscriber;
+import org.apache.activemq.ActiveMQConnection;
+import org.apache.activemq.ActiveMQTopicSession;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the selector text and that an embedded broker delivers exactly the
+ * messages it should, including for server IDs that need quoting, and that
+ * with the selector each server is sent a smaller share of the directed 
+ * traffic as the cluster grows while without it every server is sent all
+ * of it.
+ *
+ * @author jon
+ */
+public class FilteredSubscriptionTest
+{
+  static final String TOPIC = "lbutest";
+  static final String ME = "o'brien";
+  // Directed messages sent across the whole cluster in each round. Divides
+  // evenly between every ordered pair of servers for 2, 4 and 8 servers.
+  static final int TOTAL = 168;
+  static final Logger logger = Logger.getLogger( FilteredSubscriptionTest.class );
+  
+  BrokerService broker;
+  ConnectionSource connections;
+  ActiveMQConnection sender;
+  Session session;
+  MessageProducer producer;
+  
+  @Before
+  public void setUp() throws Exception
+  {
+    broker = new BrokerService();
+    broker.setBrokerName( "lbufilteredtest" );
+    broker.setPersistent( false );
+    broker.setUseJmx( false );
+    broker.setUseShutdownHook( false );
+    broker.start();
+    broker.waitUntilStarted();
+    connections = new ActiveMQConnectionFactorySource( "vm://lbufilteredtest?create=false" );
+    sender = (ActiveMQConnection) connections.getConnection();
+    session = sender.createSession( false, Session.AUTO_ACKNOWLEDGE );
+    producer = session.createProducer( session.createTopic( TOPIC ) );
+    producer.setDeliveryMode( DeliveryMode.NON_PERSISTENT );
+  }
+  
+  @After
+  public void tearDown() throws Exception
+  {
+    connections.releaseConnection( sender );
+    broker.stop();
+    broker.waitUntilStopped();
+  }
+  
+  @Test
+  public void testQuoting()
+  {
+    assertEquals( "plain", FilteredSubscription.quote( "plain" ) );
+    assertEquals( "o''brien", FilteredSubscription.quote( "o'brien" ) );
+    assertEquals( "''''", FilteredSubscription.quote( "''" ) );
+    assertEquals( 
+            "LBUToServerID IN ('*','o''brien') AND LBUFromServerID <> 'o''brien'", 
+            FilteredSubscription.selectorFor( ME ) );
+  }
+  
+  void send( String name, String to, String from, String type ) throws JMSException
+  {
+    Message m = session.createTextMessage( name );
+    m.setStringProperty( "Case", name );
+    m.setStringProperty( "LBUToServerID", to );
+    m.setStringProperty( "LBUFromServerID", from );
+    if ( type != null )
+      m.setStringProperty( "LBUType", type );
+    producer.send( m );
+  }
+  
+  @Test
+  public void testDelivery() throws Exception
+  {
+    Set<String> expected = new HashSet<>();
+    expected.add( "broadcast-user" );
+    expected.add( "direct-user" );
+    expected.add( "broadcast-coordination" );
+    expected.add( "direct-coordination" );
+    expected.add( "direct-typed" );
+    
+    Set<String> received = Collections.synchronizedSet( new HashSet<>() );
+    CountDownLatch latch = new CountDownLatch( expected.size() );
+    FilteredSubscription subscription = new FilteredSubscription( connections, TOPIC, ME, m -> 
+    {
+      try
+      {
+        received.add( m.getStringProperty( "Case" ) );
+      }
+      catch ( JMSException ex )
+      {
+        // Shows up as an unexpected entry.
+        received.add( ex.toString() );
+      }
+      latch.countDown();
+    });
+    subscription.open();
+    try
+    {
+      send( "broadcast-user",         "*",       "other",   null );
+      send( "direct-user",            ME,        "other",   null );
+      send( "broadcast-coordination", "*",       "other",   "coordination" );
+      send( "direct-coordination",    ME,        "other",   "coordination" );
+      send( "direct-typed",           ME,        "other",   "cache:x" );
+      send( "for-someone-else",       "other",   "another", null );
+      send( "unquoted-id",            "o'",      "other",   null );
+      send( "from-me",                "*",       ME,        null );
+      send( "from-me-coordination",   "*",       ME,        "coordination" );
+
+      assertTrue( "Only got " + received, latch.await( 10, TimeUnit.SECONDS ) );
+      // Give anything that shouldn't have matched time to turn up.
+      Thread.sleep( 250L );
+      assertEquals( expected, received );
+    }
+    finally
+    {
+      subscription.close();
+    }
+    assertNull( subscription.connection );
+  }
+  
+  @Test
+  public void testDeliveryAsClusterGrows() throws Exception
+  {
+    int[] sizes = { 2, 4, 8 };
+    int previous = Integer.MAX_VALUE;
+    for ( int n : sizes )
+    {
+      int filtered   = deliveredPerServer( n, true );
+      int unfiltered = deliveredPerServer( n, false );
+      // The broker only sends a server what is addressed to it...
+      assertEquals( "Filtered, " + n + " servers", TOTAL / n, filtered );
+      // ...instead of everything that goes through the topic.
+      assertEquals( "Unfiltered, " + n + " servers", TOTAL, unfiltered );
+      assertTrue( filtered < previous );
+      previous = filtered;
+    }
+  }
+  
+  /**
+   * Starts a cluster of coordinators, has every one send the same number
+   * of text messages to every other one, TOTAL in all, and counts the user
+   * messages the broker delivers to each server.
+   * 
+   * @param n How many coordinators.
+   * @param filtered Whether to subscribe with the selector.
+   * @return The number of user messages delivered to each server, which
+   * must be the same for all of them.
+   */
+  int deliveredPerServer( int n, boolean filtered ) throws Exception
+  {
+    String prefix = (filtered ? "filtered" : "unfiltered") + n + "-";
+    AtomicInteger consumed = new AtomicInteger();
+    List<CountingTransport> transports = new ArrayList<>();
+    List<BuildingBlockCoordinator> coordinators = new ArrayList<>();
+    try
+    {
+      for ( int i=0; i<n; i++ )
+      {
+        CountingTransport t = new CountingTransport( connections, filtered );
+        transports.add( t );
+        BuildingBlockCoordinator c = new BuildingBlockCoordinator( "test", "x", prefix + i, m -> consumed.incrementAndGet(), logger, t );
+        c.setHeartbeatInterval( 100 );
+        coordinators.add( c );
+      }
+      for ( BuildingBlockCoordinator c : coordinators )
+        c.start();
+      await( "Peers did not find each other", () -> 
+      {
+        for ( BuildingBlockCoordinator c : coordinators )
+          if ( c.getPeerNames().size() != n )
+            return false;
+        return true;
+      });
+
+      int each = TOTAL / (n * (n-1));
+      for ( int from=0; from<n; from++ )
+        for ( int to=0; to<n; to++ )
+          if ( from != to )
+            for ( int k=0; k<each; k++ )
+              coordinators.get( from ).sendTextMessageAsync( "m" + k, prefix + to ).get( 10, TimeUnit.SECONDS );
+      // Whatever is delivered, each coordinator only passes on its own.
+      await( "Not all consumed", () -> consumed.get() == TOTAL );
+      int expected = filtered ? TOTAL / n : TOTAL;
+      await( "Not all delivered", () -> 
+      {
+        for ( CountingTransport t : transports )
+          if ( t.delivered.get() < expected )
+            return false;
+        return true;
+      });
+      // Give anything extra time to turn up.
+      Thread.sleep( 250L );
+      assertEquals( TOTAL, consumed.get() );
+      int delivered = transports.get( 0 ).delivered.get();
+      for ( CountingTransport t : transports )
+        assertEquals( delivered, t.delivered.get() );
+      return delivered;
+    }
+    finally
+    {
+      for ( BuildingBlockCoordinator c : coordinators )
+        c.destroy();
+    }
+  }
+  
+  static void await( String message, BooleanSupplier condition ) throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + 20000L;
+    while ( !condition.getAsBoolean() )
+    {
+      assertTrue( message, System.currentTimeMillis() < deadline );
+      Thread.sleep( 20L );
+    }
+  }
+  
+  /**
+   * The broker transport with a count of the user messages the broker 
+   * delivers, and optionally a plain subscription to the whole topic in
+   * place of the filtered one, as Blackboard's own subscriber would have.
+   */
+  static class CountingTransport extends ActiveMQTransport
+  {
+    final boolean filtered;
+    final AtomicInteger delivered = new AtomicInteger();
+    ActiveMQConnection connection = null;
+    ActiveMQTopicSession session = null;
+    TopicSubscriber subscriber = null;
+    
+    CountingTransport( ConnectionSource connections, boolean filtered )
+    {
+      super( connections );
+      this.filtered = filtered;
+    }
+
+    @Override
+    public synchronized void subscribe( BuildingBlockCoordinator coordinator ) throws MessageQueueException
+    {
+      this.coordinator = coordinator;
+      channel = new PublishingChannel( connections, coordinator.metrics, coordinator.topic, stripes );
+      MessageListener counting = m -> 
+      {
+        try
+        {
+          if ( "".equals( m.getStringProperty( "LBUType" ) ) )
+            delivered.incrementAndGet();
+        }
+        catch ( JMSException ex )
+        {
+          // The coordinator will log it.
+        }
+        coordinator.onMessage( m );
+      };
+      if ( filtered )
+      {
+        subscription = new FilteredSubscription( connections, coordinator.topic, coordinator.serverid, counting );
+        subscription.open();
+        return;
+      }
+      try
+      {
+        connection = connections.getConnection();
+        session = (ActiveMQTopicSession) connection.createTopicSession( false, Session.AUTO_ACKNOWLEDGE );
+        subscriber = session.createSubscriber( session.createTopic( coordinator.topic ) );
+        subscriber.setMessageListener( counting );
+        connection.start();
+      }
+      catch ( Exception ex )
+      {
+        throw new MessageQueueException( "Could not subscribe to " + coordinator.topic, ex );
+      }
+    }
+
+    @Override
+    public synchronized void unsubscribe()
+    {
+      if ( filtered )
+      {
+        super.unsubscribe();
+        return;
+      }
+      if ( subscriber != null )
+        try { subscriber.close(); } catch ( JMSException ex ) {}
+      MessageQueueUtil.closeMessageQueueObjects( session, null, null, null, null );
+      if ( connection != null )
+        connections.releaseConnection( connection );
+      subscriber = null;
+      session = null;
+      connection = null;
+    }
+  }
+}
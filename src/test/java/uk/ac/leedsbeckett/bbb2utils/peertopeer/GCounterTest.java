@@ -0,0 +1,166 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that merging gossiped state is commutative and idempotent and that
+ * replicas converge whatever order the gossip arrives in.
+ *
+ * @author jon
+ */
+public class GCounterTest
+{
+  /**
+   * One gossiped entry, as ClusterCounters would send it.
+   */
+  static class Entry
+  {
+    final String slot;
+    final long value;
+    Entry( String slot, long value )
+    {
+      this.slot = slot;
+      this.value = value;
+    }
+  }
+
+  /**
+   * Merges like ClusterCounters does, ignoring entries for the receiver's
+   * own slot because its local count is always the latest.
+   */
+  static void deliver( List<Entry> entries, GCounter to, String toslot )
+  {
+    for ( Entry e : entries )
+      if ( !toslot.equals( e.slot ) )
+        to.merge( e.slot, e.value );
+  }
+  
+  static List<Entry> gossip( GCounter from, String fromslot )
+  {
+    List<Entry> entries = new ArrayList<>();
+    for ( Map.Entry<String,Long> e : from.state( fromslot ).entrySet() )
+      entries.add( new Entry( e.getKey(), e.getValue() ) );
+    return entries;
+  }
+  
+  @Test
+  public void testLocalCounting()
+  {
+    GCounter c = new GCounter( "c" );
+    c.increment();
+    c.add( 41L );
+    assertEquals( 42L, c.value() );
+    assertEquals( 42L, c.localValue() );
+  }
+  
+  @Test( expected = IllegalArgumentException.class )
+  public void testCannotGoDown()
+  {
+    new GCounter( "c" ).add( -1L );
+  }
+  
+  @Test
+  public void testMergeIsCommutative()
+  {
+    GCounter a = new GCounter( "c" );
+    GCounter b = new GCounter( "c" );
+    a.merge( "x", 5L );
+    a.merge( "y", 3L );
+    b.merge( "y", 3L );
+    b.merge( "x", 5L );
+    assertEquals( a.state( "self" ), b.state( "self" ) );
+    assertEquals( 8L, a.value() );
+  }
+  
+  @Test
+  public void testMergeIsIdempotent()
+  {
+    GCounter c = new GCounter( "c" );
+    c.merge( "x", 5L );
+    c.merge( "x", 5L );
+    c.merge( "x", 5L );
+    assertEquals( 5L, c.value() );
+  }
+  
+  @Test
+  public void testStaleValueIsIgnored()
+  {
+    GCounter c = new GCounter( "c" );
+    c.merge( "x", 7L );
+    c.merge( "x", 2L );
+    assertEquals( 7L, c.value() );
+  }
+  
+  @Test
+  public void testReplicasConvergeAfterReplay()
+  {
+    Random random = new Random( 1234L );
+    int n = 4;
+    GCounter[] replicas = new GCounter[ n ];
+    String[] slots = new String[ n ];
+    for ( int i=0; i<n; i++ )
+    {
+      replicas[ i ] = new GCounter( "c" );
+      slots[ i ] = "server" + i + "@" + i;
+    }
+    
+    // Each round every replica counts a little and its gossip is kept. The
+    // gossip is then delivered late, out of order and some of it twice.
+    long total = 0L;
+    List<List<Entry>> sent = new ArrayList<>();
+    List<Integer> senders = new ArrayList<>();
+    for ( int round=0; round<20; round++ )
+    {
+      for ( int i=0; i<n; i++ )
+      {
+        long d = random.nextInt( 10 );
+        replicas[ i ].add( d );
+        total += d;
+        sent.add( gossip( replicas[ i ], slots[ i ] ) );
+        senders.add( i );
+      }
+    }
+    List<Integer> order = new ArrayList<>();
+    for ( int k=0; k<sent.size(); k++ )
+    {
+      order.add( k );
+      if ( random.nextInt( 3 ) == 0 )
+        order.add( k );
+    }
+    
+    for ( int i=0; i<n; i++ )
+    {
+      Collections.shuffle( order, random );
+      for ( int k : order )
+        if ( senders.get( k ) != i )
+          deliver( sent.get( k ), replicas[ i ], slots[ i ] );
+    }
+    
+    for ( int i=0; i<n; i++ )
+    {
+      assertEquals( total, replicas[ i ].value() );
+      assertEquals( replicas[ 0 ].state( slots[ 0 ] ), replicas[ i ].state( slots[ i ] ) );
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a counter built from two grow only counters merges and
+ * converges the same way they do.
+ *
+ * @author jon
+ */
+public class PNCounterTest
+{
+  static PNCounter counter()
+  {
+    return new PNCounter( "c", new GCounter( "P:c" ), new GCounter( "N:c" ) );
+  }
+  
+  /**
+   * Merges like ClusterCounters does, ignoring entries for the receiver's
+   * own slot.
+   */
+  static void deliver( PNCounter from, String fromslot, PNCounter to, String toslot )
+  {
+    for ( Map.Entry<String,Long> e : from.p.state( fromslot ).entrySet() )
+      if ( !toslot.equals( e.getKey() ) )
+        to.p.merge( e.getKey(), e.getValue() );
+    for ( Map.Entry<String,Long> e : from.n.state( fromslot ).entrySet() )
+      if ( !toslot.equals( e.getKey() ) )
+        to.n.merge( e.getKey(), e.getValue() );
+  }
+  
+  @Test
+  public void testUpAndDown()
+  {
+    PNCounter c = counter();
+    c.increment();
+    c.increment();
+    c.decrement();
+    c.add( -5L );
+    c.add( 3L );
+    assertEquals( -1L, c.value() );
+    assertEquals( -1L, c.localValue() );
+    assertEquals( 5L, c.p.localValue() );
+    assertEquals( 6L, c.n.localValue() );
+  }
+  
+  @Test
+  public void testMergeIsCommutativeAndIdempotent()
+  {
+    PNCounter a = counter();
+    PNCounter b = counter();
+    PNCounter x = counter();
+    PNCounter y = counter();
+    a.add( 10L );
+    a.add( -4L );
+    b.add( -7L );
+    
+    deliver( a, "a", x, "x" );
+    deliver( b, "b", x, "x" );
+    deliver( b, "b", y, "y" );
+    deliver( a, "a", y, "y" );
+    deliver( a, "a", y, "y" );
+    
+    assertEquals( -1L, x.value() );
+    assertEquals( x.value(), y.value() );
+  }
+  
+  @Test
+  public void testConvergesAfterReplay()
+  {
+    PNCounter a = counter();
+    PNCounter b = counter();
+    
+    a.add( 5L );
+    PNCounter olda = counter();
+    deliver( a, "a", olda, "olda" );
+    a.add( -8L );
+    b.add( 2L );
+    
+    // b hears the later state first and then a stale copy of the earlier.
+    deliver( a, "a", b, "b" );
+    b.p.merge( "a", olda.p.slots.get( "a" ) );
+    b.n.merge( "a", 0L );
+    deliver( b, "b", a, "a" );
+    
+    assertEquals( -1L, a.value() );
+    assertEquals( a.value(), b.value() );
+  }
+}
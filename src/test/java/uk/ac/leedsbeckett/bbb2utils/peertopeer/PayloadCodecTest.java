@@ -0,0 +1,97 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that payloads round trip and that declared lengths which don't
+ * match the data, or are out of range, are refused.
+ *
+ * @author jon
+ */
+public class PayloadCodecTest
+{
+  static final int MAX = 1024 * 1024;
+  
+  static byte[] sample( int length )
+  {
+    byte[] data = new byte[ length ];
+    byte[] text = "All work and no play makes Jack a dull boy. ".getBytes( StandardCharsets.US_ASCII );
+    for ( int i=0; i<length; i++ )
+      data[ i ] = text[ i % text.length ];
+    return data;
+  }
+  
+  @Test
+  public void testRoundTrip() throws DataFormatException
+  {
+    byte[] data = sample( 100000 );
+    byte[] compressed = PayloadCodec.compress( data, 0, data.length );
+    assertNotNull( compressed );
+    assertTrue( compressed.length < data.length );
+    assertArrayEquals( data, PayloadCodec.decompress( compressed, data.length, MAX ) );
+  }
+  
+  @Test
+  public void testIncompressible()
+  {
+    byte[] data = new byte[ 64 ];
+    new Random( 1L ).nextBytes( data );
+    assertNull( PayloadCodec.compress( data, 0, data.length ) );
+  }
+  
+  @Test( expected = DataFormatException.class )
+  public void testNegativeLength() throws DataFormatException
+  {
+    byte[] data = sample( 1000 );
+    PayloadCodec.decompress( PayloadCodec.compress( data, 0, data.length ), -1, MAX );
+  }
+  
+  @Test( expected = DataFormatException.class )
+  public void testLengthOverMaximum() throws DataFormatException
+  {
+    byte[] data = sample( 1000 );
+    PayloadCodec.decompress( PayloadCodec.compress( data, 0, data.length ), Integer.MAX_VALUE, MAX );
+  }
+  
+  @Test( expected = DataFormatException.class )
+  public void testDeclaredTooShort() throws DataFormatException
+  {
+    byte[] data = sample( 1000 );
+    PayloadCodec.decompress( PayloadCodec.compress( data, 0, data.length ), 999, MAX );
+  }
+  
+  @Test( expected = DataFormatException.class )
+  public void testDeclaredTooLong() throws DataFormatException
+  {
+    byte[] data = sample( 1000 );
+    PayloadCodec.decompress( PayloadCodec.compress( data, 0, data.length ), 1001, MAX );
+  }
+  
+  @Test( expected = DataFormatException.class )
+  public void testTruncated() throws DataFormatException
+  {
+    byte[] data = sample( 1000 );
+    byte[] compressed = PayloadCodec.compress( data, 0, data.length );
+    PayloadCodec.decompress( Arrays.copyOf( compressed, compressed.length - 4 ), 1000, MAX );
+  }
+}
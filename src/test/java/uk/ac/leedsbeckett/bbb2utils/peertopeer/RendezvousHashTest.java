@@ -0,0 +1,143 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that key ownership is stable and that only the keys that have to
+ * move do move when a peer joins or leaves.
+ *
+ * @author jon
+ */
+public class RendezvousHashTest
+{
+  static final int KEYS = 10000;
+  
+  PeerRegistry registry;
+  
+  @Before
+  public void setUp()
+  {
+    registry = new PeerRegistry( new PhiAccrualFailureDetector( 1000L, 8.0, 60000L ) );
+    for ( int i=0; i<5; i++ )
+      registry.add( "server" + i, 1000L + i );
+  }
+  
+  Map<String,String> owners()
+  {
+    HashMap<String,String> owners = new HashMap<>();
+    for ( int i=0; i<KEYS; i++ )
+      owners.put( "key" + i, registry.ownerOf( "key" + i ).name );
+    return owners;
+  }
+  
+  @Test
+  public void testHashIsFnv1a()
+  {
+    // Published FNV-1a 64 test vectors.
+    assertEquals( 0xcbf29ce484222325L, RendezvousHash.hash( "" ) );
+    assertEquals( 0xaf63dc4c8601ec8cL, RendezvousHash.hash( "a" ) );
+    assertEquals( 0x85944171f73967e8L, RendezvousHash.hash( "foobar" ) );
+  }
+  
+  @Test
+  public void testOwnershipIsStable()
+  {
+    Map<String,String> before = owners();
+    assertEquals( before, owners() );
+    
+    // A registry that learned of the same peers in a different order must
+    // agree on every owner.
+    PeerRegistry other = new PeerRegistry( new PhiAccrualFailureDetector( 1000L, 8.0, 60000L ) );
+    for ( int i=4; i>=0; i-- )
+      other.add( "server" + i, 1000L + i );
+    for ( int i=0; i<KEYS; i++ )
+      assertEquals( before.get( "key" + i ), other.ownerOf( "key" + i ).name );
+  }
+  
+  @Test
+  public void testKeysSpreadEvenly()
+  {
+    HashMap<String,Integer> counts = new HashMap<>();
+    for ( String owner : owners().values() )
+      counts.merge( owner, 1, Integer::sum );
+    assertEquals( 5, counts.size() );
+    for ( int c : counts.values() )
+      assertTrue( "Uneven share " + c, c > KEYS / 5 * 0.8 && c < KEYS / 5 * 1.2 );
+  }
+  
+  @Test
+  public void testLeaveMovesOnlyTheLeaversKeys()
+  {
+    Map<String,String> before = owners();
+    registry.remove( "server2" );
+    Map<String,String> after = owners();
+    
+    HashMap<String,Integer> gained = new HashMap<>();
+    for ( Map.Entry<String,String> e : before.entrySet() )
+    {
+      String now = after.get( e.getKey() );
+      if ( "server2".equals( e.getValue() ) )
+      {
+        assertNotEquals( "server2", now );
+        gained.merge( now, 1, Integer::sum );
+      }
+      else
+        assertEquals( "Key moved needlessly", e.getValue(), now );
+    }
+    // The orphaned keys are spread over all the survivors.
+    assertEquals( 4, gained.size() );
+  }
+  
+  @Test
+  public void testJoinTakesAShareFromEachPeer()
+  {
+    Map<String,String> before = owners();
+    registry.add( "server5", 2000L );
+    Map<String,String> after = owners();
+    
+    HashMap<String,Integer> lost = new HashMap<>();
+    int moved = 0;
+    for ( Map.Entry<String,String> e : before.entrySet() )
+    {
+      String now = after.get( e.getKey() );
+      if ( !e.getValue().equals( now ) )
+      {
+        assertEquals( "A key moved to a peer that didn't join", "server5", now );
+        lost.merge( e.getValue(), 1, Integer::sum );
+        moved++;
+      }
+    }
+    // About one sixth of the keys move and every old peer gives some up.
+    assertTrue( "Moved " + moved, moved > KEYS / 6 * 0.8 && moved < KEYS / 6 * 1.2 );
+    assertEquals( 5, lost.size() );
+    
+    registry.remove( "server5" );
+    assertEquals( before, owners() );
+  }
+  
+  @Test
+  public void testNoPeersNoOwner()
+  {
+    PeerRegistry empty = new PeerRegistry( new PhiAccrualFailureDetector( 1000L, 8.0, 60000L ) );
+    assertNull( empty.ownerOf( "key" ) );
+  }
+}
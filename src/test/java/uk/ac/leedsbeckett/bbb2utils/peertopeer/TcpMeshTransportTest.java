@@ -0,0 +1,320 @@
+/*
+ * Copyright 2022 Leeds Beckett University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.leedsbeckett.bbb2utils.peertopeer;
+
+import blackboard.platform.messagequeue.MessageQueueException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import javax.jms.JMSException;
+import javax.jms.TextMessage;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Talks to a coordinator's TCP mesh transport over loopback sockets,
+ * checking that frames are put back together however the bytes arrive,
+ * that connections without a good hello are closed and that a peer that
+ * can't be reached only has so much waiting for it.
+ *
+ * @author jon
+ */
+public class TcpMeshTransportTest
+{
+  static final Logger logger = Logger.getLogger( TcpMeshTransportTest.class );
+  static final byte[] SECRET = "the right secret".getBytes( StandardCharsets.UTF_8 );
+  
+  final List<String> received = Collections.synchronizedList( new ArrayList<>() );
+  BuildingBlockCoordinator coordinator;
+  TcpMeshTransport transport;
+  InetSocketAddress address;
+  
+  @Before
+  public void setUp() throws Exception
+  {
+    transport = new TcpMeshTransport( new InetSocketAddress( "127.0.0.1", 0 ), null, 
+            TcpMeshTransport.DEFAULT_MAX_PENDING_BYTES, SECRET );
+    coordinator = new BuildingBlockCoordinator( "test", "mesh", "server0", m -> 
+    {
+      try
+      {
+        received.add( ((TextMessage)m).getText() );
+      }
+      catch ( JMSException ex )
+      {
+        throw new IllegalStateException( ex );
+      }
+    }, logger, transport );
+    coordinator.start();
+    address = new InetSocketAddress( "127.0.0.1", transport.server.socket().getLocalPort() );
+  }
+  
+  @After
+  public void tearDown() throws Exception
+  {
+    coordinator.destroy();
+  }
+  
+  /**
+   * A transport that is never started, used to make hellos as a peer 
+   * would.
+   */
+  TcpMeshTransport client( byte[] secret )
+  {
+    TcpMeshTransport t = new TcpMeshTransport( address, null, TcpMeshTransport.DEFAULT_MAX_PENDING_BYTES, secret );
+    t.hello = coordinator.topic.getBytes( StandardCharsets.UTF_8 );
+    return t;
+  }
+  
+  static byte[] bytes( ByteBuffer b )
+  {
+    byte[] a = new byte[ b.remaining() ];
+    b.get( a );
+    return a;
+  }
+  
+  byte[] message( String text )
+  {
+    Properties p = new Properties();
+    p.setProperty( "LBUToServerID", "server0" );
+    p.setProperty( "LBUFromServerID", "client" );
+    p.setProperty( "LBUPluginID", coordinator.pluginid );
+    p.setProperty( "LBUType", "" );
+    p.setProperty( "LBUSubType", "" );
+    return bytes( MessageCodec.encode( new OutboundMessage( text, p ) ) );
+  }
+  
+  /**
+   * Makes a hello by hand so that its parts can be wrong.
+   */
+  static byte[] hello( String topic, long time, byte[] nonce, byte[] mac )
+  {
+    byte[] t = topic.getBytes( StandardCharsets.UTF_8 );
+    int size = 1 + 4 + t.length + 8 + nonce.length + mac.length;
+    ByteBuffer b = ByteBuffer.allocate( 4 + size );
+    b.putInt( size );
+    b.put( TcpMeshTransport.HELLO );
+    b.putInt( t.length );
+    b.put( t );
+    b.putLong( time );
+    b.put( nonce );
+    b.put( mac );
+    b.flip();
+    return bytes( b );
+  }
+  
+  Socket connect() throws IOException
+  {
+    Socket s = new Socket();
+    s.setTcpNoDelay( true );
+    s.setSoTimeout( 10000 );
+    s.connect( address, 10000 );
+    return s;
+  }
+  
+  void awaitReceived( int n ) throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + 10000L;
+    while ( received.size() < n && System.currentTimeMillis() < deadline )
+      Thread.sleep( 10L );
+    assertEquals( n, received.size() );
+  }
+  
+  /**
+   * Sends a hello and then a message, and checks whether the message
+   * arrived and whether the connection was closed.
+   */
+  void checkHello( byte[] hello, boolean accepted ) throws Exception
+  {
+    received.clear();
+    long rejected = transport.getHellosRejected();
+    try ( Socket s = connect() )
+    {
+      OutputStream out = s.getOutputStream();
+      out.write( hello );
+      out.write( message( "after hello" ) );
+      out.flush();
+      if ( accepted )
+      {
+        awaitReceived( 1 );
+        assertEquals( rejected, transport.getHellosRejected() );
+      }
+      else
+      {
+        assertEquals( -1, s.getInputStream().read() );
+        assertEquals( rejected + 1, transport.getHellosRejected() );
+        Thread.sleep( 100L );
+        assertTrue( received.isEmpty() );
+      }
+    }
+  }
+  
+  @Test
+  public void testFramesInPieces() throws Exception
+  {
+    Random random = new Random( 99L );
+    List<String> sent = new ArrayList<>();
+    try ( Socket s = connect() )
+    {
+      OutputStream out = s.getOutputStream();
+      out.write( bytes( client( SECRET ).helloFrame() ) );
+      
+      // Small frames a few bytes at a time, so that reads end part way 
+      // through the length and the body.
+      for ( int i=0; i<20; i++ )
+      {
+        String text = "message " + i;
+        sent.add( text );
+        byte[] frame = message( text );
+        for ( int p=0; p<frame.length; )
+        {
+          int n = Math.min( frame.length - p, 1 + random.nextInt( 7 ) );
+          out.write( frame, p, n );
+          out.flush();
+          p += n;
+          Thread.sleep( 1L );
+        }
+      }
+      
+      // A frame several times bigger than the read buffer, which must grow.
+      StringBuilder sb = new StringBuilder();
+      while ( sb.length() < 5 * TcpMeshTransport.READ_BUFFER_SIZE )
+        sb.append( (char)( 'a' + random.nextInt( 26 ) ) );
+      sent.add( sb.toString() );
+      byte[] big = message( sb.toString() );
+      for ( int p=0; p<big.length; p+=10000 )
+      {
+        out.write( big, p, Math.min( 10000, big.length - p ) );
+        out.flush();
+        Thread.sleep( 2L );
+      }
+      
+      // Many frames in one write, so one read holds several.
+      ByteBuffer many = ByteBuffer.allocate( 100000 );
+      for ( int i=0; i<100; i++ )
+      {
+        String text = "batched " + i;
+        sent.add( text );
+        many.put( message( text ) );
+      }
+      out.write( many.array(), 0, many.position() );
+      out.flush();
+      
+      awaitReceived( sent.size() );
+      assertEquals( sent, received );
+    }
+  }
+  
+  @Test
+  public void testWrongSecret() throws Exception
+  {
+    checkHello( bytes( client( "the wrong secret".getBytes( StandardCharsets.UTF_8 ) ).helloFrame() ), false );
+    checkHello( bytes( client( null ).helloFrame() ), false );
+    checkHello( bytes( client( SECRET ).helloFrame() ), true );
+  }
+  
+  @Test
+  public void testWrongTopic() throws Exception
+  {
+    TcpMeshTransport c = client( SECRET );
+    c.hello = "some other topic".getBytes( StandardCharsets.UTF_8 );
+    checkHello( bytes( c.helloFrame() ), false );
+  }
+  
+  @Test
+  public void testStaleHello() throws Exception
+  {
+    TcpMeshTransport c = client( SECRET );
+    byte[] nonce = new byte[ TcpMeshTransport.NONCE_SIZE ];
+    for ( long age : new long[] { TcpMeshTransport.HELLO_WINDOW + 60000L, -TcpMeshTransport.HELLO_WINDOW - 60000L } )
+    {
+      new Random().nextBytes( nonce );
+      long time = System.currentTimeMillis() - age;
+      checkHello( hello( coordinator.topic, time, nonce, c.mac( c.hello, time, nonce ) ), false );
+    }
+    new Random().nextBytes( nonce );
+    long time = System.currentTimeMillis() - 10000L;
+    checkHello( hello( coordinator.topic, time, nonce, c.mac( c.hello, time, nonce ) ), true );
+  }
+  
+  @Test
+  public void testReplayedHello() throws Exception
+  {
+    byte[] hello = bytes( client( SECRET ).helloFrame() );
+    checkHello( hello, true );
+    checkHello( hello, false );
+  }
+  
+  @Test
+  public void testMaxPendingBytes() throws Exception
+  {
+    int port;
+    try ( ServerSocket ss = new ServerSocket( 0 ) )
+    {
+      port = ss.getLocalPort();
+    }
+    // Nothing listens there now, so everything for it waits.
+    Map<String,InetSocketAddress> peers = new HashMap<>();
+    peers.put( "absent", new InetSocketAddress( "127.0.0.1", port ) );
+    TcpMeshTransport t = new TcpMeshTransport( new InetSocketAddress( "127.0.0.1", 0 ), peers, 10000L, SECRET );
+    BuildingBlockCoordinator c = new BuildingBlockCoordinator( "test", "mesh", "sender", m -> {}, logger, t );
+    try
+    {
+      c.start();
+      Properties p = c.userMessageProperties( "*" );
+      String text = new String( new char[ 1000 ] ).replace( '\0', 'x' );
+      long dropped = t.getFramesDropped();
+      int accepted = 0;
+      for ( int i=0; i<20; i++ )
+      {
+        t.publish( new OutboundMessage( text, p ) );
+        if ( t.getFramesDropped() == dropped )
+          accepted++;
+      }
+      assertTrue( accepted > 0 );
+      assertTrue( accepted < 10 );
+      assertEquals( 20 - accepted, t.getFramesDropped() - dropped );
+      
+      try
+      {
+        t.publish( new OutboundMessage( text, c.userMessageProperties( "absent" ) ) );
+        fail( "A message to one peer was accepted with no room for it." );
+      }
+      catch ( MessageQueueException ex )
+      {
+        // expected
+      }
+    }
+    finally
+    {
+      c.destroy();
+    }
+  }
+}